@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.analyze;
+
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Select;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.op.UnaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+
+import javax.annotation.concurrent.Immutable;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static com.wrmsr.wava.util.collect.MoreCollectors.toHashSet;
+
+/*
+Infers which i32 values are only ever 0 or 1 and only ever consumed as conditions, so they can be carried as java
+booleans instead of being materialized with (c ? 1 : 0) and retested with != 0.
+*/
+@Immutable
+public final class BooleanAnalysis
+{
+    public static final Set<BinaryOp> BOOLEAN_PRESERVING_OPS = Collections.unmodifiableSet(EnumSet.of(BinaryOp.And, BinaryOp.Or, BinaryOp.Xor));
+
+    private final Set<Node> booleanNodes;
+    private final Set<Index> booleanLocals;
+
+    private BooleanAnalysis(Set<Node> booleanNodes, Set<Index> booleanLocals)
+    {
+        this.booleanNodes = Collections.unmodifiableSet(booleanNodes);
+        this.booleanLocals = ImmutableSet.copyOf(booleanLocals);
+    }
+
+    public boolean isBoolean(Node node)
+    {
+        return booleanNodes.contains(node);
+    }
+
+    public boolean isBooleanLocal(Index index)
+    {
+        return booleanLocals.contains(index);
+    }
+
+    public Set<Index> getBooleanLocals()
+    {
+        return booleanLocals;
+    }
+
+    public static BooleanAnalysis analyze(Function function)
+    {
+        Node root = function.getBody();
+        Set<Index> locals = function.getNonArgLocals().stream()
+                .filter(l -> l.getType() == Type.I32)
+                .map(Local::getIndex)
+                .collect(toHashSet());
+
+        while (true) {
+            Set<Node> booleanNodes = findBooleanNodes(root, locals);
+            Set<Index> rejected = new HashSet<>();
+            root.accept(new Visitor<Boolean, Void>()
+            {
+                private void visitChild(Node child, boolean isConditional)
+                {
+                    child.accept(this, isConditional);
+                }
+
+                @Override
+                protected Void visitNode(Node node, Boolean context)
+                {
+                    node.getChildren().forEach(c -> visitChild(c, false));
+                    return null;
+                }
+
+                @Override
+                public Void visitBinary(Binary node, Boolean context)
+                {
+                    boolean isConditional = booleanNodes.contains(node) && BOOLEAN_PRESERVING_OPS.contains(node.getOp());
+                    visitChild(node.getLeft(), isConditional);
+                    visitChild(node.getRight(), isConditional);
+                    return null;
+                }
+
+                @Override
+                public Void visitGetLocal(GetLocal node, Boolean context)
+                {
+                    if (!context) {
+                        rejected.add(node.getIndex());
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visitIf(If node, Boolean context)
+                {
+                    boolean isConditional = booleanNodes.contains(node);
+                    visitChild(node.getCondition(), true);
+                    visitChild(node.getIfTrue(), isConditional);
+                    visitChild(node.getIfFalse(), isConditional);
+                    return null;
+                }
+
+                @Override
+                public Void visitSelect(Select node, Boolean context)
+                {
+                    boolean isConditional = booleanNodes.contains(node);
+                    visitChild(node.getIfTrue(), isConditional);
+                    visitChild(node.getIfFalse(), isConditional);
+                    visitChild(node.getCondition(), true);
+                    return null;
+                }
+
+                @Override
+                public Void visitSetLocal(SetLocal node, Boolean context)
+                {
+                    if (locals.contains(node.getIndex()) && !booleanNodes.contains(node.getValue())) {
+                        rejected.add(node.getIndex());
+                    }
+                    visitChild(node.getValue(), locals.contains(node.getIndex()));
+                    return null;
+                }
+
+                @Override
+                public Void visitUnary(Unary node, Boolean context)
+                {
+                    visitChild(node.getValue(), node.getOp() == UnaryOp.EqZ);
+                    return null;
+                }
+            }, false);
+
+            if (!locals.removeAll(rejected)) {
+                return new BooleanAnalysis(booleanNodes, locals);
+            }
+        }
+    }
+
+    private static Set<Node> findBooleanNodes(Node root, Set<Index> locals)
+    {
+        Set<Node> ret = Collections.newSetFromMap(new IdentityHashMap<>());
+        root.accept(new Visitor<Void, Boolean>()
+        {
+            private boolean process(Node node, boolean isBoolean)
+            {
+                if (isBoolean) {
+                    ret.add(node);
+                }
+                return isBoolean;
+            }
+
+            @Override
+            protected Boolean visitNode(Node node, Void context)
+            {
+                node.getChildren().forEach(c -> c.accept(this, context));
+                return false;
+            }
+
+            @Override
+            public Boolean visitBinary(Binary node, Void context)
+            {
+                boolean left = node.getLeft().accept(this, context);
+                boolean right = node.getRight().accept(this, context);
+                return process(node, node.getOp().isBoolean() || (node.getType() == Type.I32 && BOOLEAN_PRESERVING_OPS.contains(node.getOp()) && left && right));
+            }
+
+            @Override
+            public Boolean visitConst(Const node, Void context)
+            {
+                return process(node, node.getLiteral().getType() == Type.I32 && (node.getLiteral().getI32() == 0 || node.getLiteral().getI32() == 1));
+            }
+
+            @Override
+            public Boolean visitGetLocal(GetLocal node, Void context)
+            {
+                return process(node, locals.contains(node.getIndex()));
+            }
+
+            @Override
+            public Boolean visitIf(If node, Void context)
+            {
+                node.getCondition().accept(this, context);
+                boolean ifTrue = node.getIfTrue().accept(this, context);
+                boolean ifFalse = node.getIfFalse().accept(this, context);
+                return process(node, ifTrue && ifFalse);
+            }
+
+            @Override
+            public Boolean visitSelect(Select node, Void context)
+            {
+                boolean ifTrue = node.getIfTrue().accept(this, context);
+                boolean ifFalse = node.getIfFalse().accept(this, context);
+                node.getCondition().accept(this, context);
+                return process(node, ifTrue && ifFalse);
+            }
+
+            @Override
+            public Boolean visitSetLocal(SetLocal node, Void context)
+            {
+                node.getValue().accept(this, context);
+                return process(node, locals.contains(node.getIndex()));
+            }
+
+            @Override
+            public Boolean visitUnary(Unary node, Void context)
+            {
+                node.getValue().accept(this, context);
+                return process(node, node.getOp() == UnaryOp.EqZ);
+            }
+        }, null);
+        return ret;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.analyze;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.unit.Export;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+
+import javax.annotation.concurrent.Immutable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+import static java.util.Objects.requireNonNull;
+
+@Immutable
+public final class CallGraph
+{
+    @Immutable
+    public static final class Entry
+    {
+        private final Set<Name> directCallees;
+        private final Set<Name> importCallees;
+        private final Set<Signature> indirectSignatures;
+        private final Set<Name> indirectCallees;
+
+        public Entry(Set<Name> directCallees, Set<Name> importCallees, Set<Signature> indirectSignatures, Set<Name> indirectCallees)
+        {
+            this.directCallees = ImmutableSet.copyOf(directCallees);
+            this.importCallees = ImmutableSet.copyOf(importCallees);
+            this.indirectSignatures = ImmutableSet.copyOf(indirectSignatures);
+            this.indirectCallees = ImmutableSet.copyOf(indirectCallees);
+        }
+
+        public Set<Name> getDirectCallees()
+        {
+            return directCallees;
+        }
+
+        public Set<Name> getImportCallees()
+        {
+            return importCallees;
+        }
+
+        public Set<Signature> getIndirectSignatures()
+        {
+            return indirectSignatures;
+        }
+
+        public Set<Name> getIndirectCallees()
+        {
+            return indirectCallees;
+        }
+
+        public Set<Name> getFunctionCallees()
+        {
+            return ImmutableSet.<Name>builder().addAll(directCallees).addAll(indirectCallees).build();
+        }
+    }
+
+    private final Map<Name, Entry> entries;
+    private final SetMultimap<Signature, Name> tableTargetsBySignature;
+    private final SetMultimap<Name, Name> callers;
+
+    private CallGraph(Map<Name, Entry> entries, SetMultimap<Signature, Name> tableTargetsBySignature)
+    {
+        this.entries = ImmutableMap.copyOf(entries);
+        this.tableTargetsBySignature = ImmutableSetMultimap.copyOf(tableTargetsBySignature);
+        ImmutableSetMultimap.Builder<Name, Name> callers = ImmutableSetMultimap.builder();
+        entries.forEach((caller, entry) -> entry.getFunctionCallees().forEach(callee -> callers.put(callee, caller)));
+        this.callers = callers.build();
+    }
+
+    public Entry get(Name function)
+    {
+        return requireNonNull(entries.get(function));
+    }
+
+    public Map<Name, Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public Set<Name> getTableTargets(Signature signature)
+    {
+        return tableTargetsBySignature.get(signature);
+    }
+
+    public Set<Name> getCallers(Name function)
+    {
+        return callers.get(function);
+    }
+
+    public static Set<Name> getRoots(Module module)
+    {
+        return ImmutableSet.<Name>builder()
+                .addAll(module.getExports().values().stream().map(Export::getFunctionName).iterator())
+                .addAll(module.getTable().getNames())
+                .build();
+    }
+
+    public Set<Name> getReachable(Set<Name> roots)
+    {
+        Set<Name> seen = new LinkedHashSet<>();
+        Deque<Name> queue = new ArrayDeque<>();
+        roots.stream().filter(entries::containsKey).forEach(queue::add);
+        while (!queue.isEmpty()) {
+            Name cur = queue.removeFirst();
+            if (seen.add(cur)) {
+                entries.get(cur).getFunctionCallees().stream().filter(n -> !seen.contains(n)).forEach(queue::addLast);
+            }
+        }
+        return seen;
+    }
+
+    public static CallGraph analyze(Module module)
+    {
+        ImmutableSetMultimap.Builder<Signature, Name> tableTargets = ImmutableSetMultimap.builder();
+        for (Name name : module.getTable().getNames()) {
+            Function function = module.getFunctions().get(name);
+            if (function != null) {
+                tableTargets.put(function.getSignature(), name);
+            }
+        }
+        SetMultimap<Signature, Name> tableTargetsBySignature = tableTargets.build();
+
+        ImmutableMap.Builder<Name, Entry> entries = ImmutableMap.builder();
+        for (Function function : module.getFunctions().values()) {
+            Set<Call> calls = Analyses.findNodes(function.getBody(), Call.class);
+            Set<Signature> indirectSignatures = Analyses.findNodes(function.getBody(), CallIndirect.class).stream()
+                    .map(CallIndirect::getSignature)
+                    .collect(toImmutableSet());
+            entries.put(function.getName(), new Entry(
+                    calls.stream()
+                            .filter(c -> c.getTarget() instanceof Call.DirectTarget)
+                            .map(c -> ((Call.DirectTarget) c.getTarget()).getName())
+                            .collect(toImmutableSet()),
+                    calls.stream()
+                            .filter(c -> c.getTarget() instanceof Call.ImportTarget)
+                            .map(c -> ((Call.ImportTarget) c.getTarget()).getName())
+                            .collect(toImmutableSet()),
+                    indirectSignatures,
+                    indirectSignatures.stream()
+                            .flatMap(s -> tableTargetsBySignature.get(s).stream())
+                            .collect(toImmutableSet())));
+        }
+        return new CallGraph(entries.build(), tableTargetsBySignature);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.analyze;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.BreakTable;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+
+import javax.annotation.concurrent.Immutable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+// Conservative live ranges over the structured tree. Positions are assigned in evaluation order, ranges touching a loop
+// are widened to the whole loop, and anything possibly read before being written is treated as live from entry.
+@Immutable
+public final class LivenessAnalysis
+{
+    public static final int ENTRY = 0;
+
+    @Immutable
+    public static final class Interval
+    {
+        private final int start;
+        private final int end;
+
+        public Interval(int start, int end)
+        {
+            checkArgument(start <= end);
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getStart()
+        {
+            return start;
+        }
+
+        public int getEnd()
+        {
+            return end;
+        }
+
+        public boolean overlaps(Interval other)
+        {
+            return start <= other.end && other.start <= end;
+        }
+
+        public boolean contains(Interval other)
+        {
+            return start <= other.start && other.end <= end;
+        }
+
+        public Interval span(Interval other)
+        {
+            return new Interval(Math.min(start, other.start), Math.max(end, other.end));
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[" + start + ", " + end + "]";
+        }
+    }
+
+    private final Map<Index, Interval> intervals;
+    private final Set<Index> uninitializedReads;
+
+    public LivenessAnalysis(Map<Index, Interval> intervals, Set<Index> uninitializedReads)
+    {
+        this.intervals = ImmutableMap.copyOf(intervals);
+        this.uninitializedReads = ImmutableSet.copyOf(uninitializedReads);
+    }
+
+    public Map<Index, Interval> getIntervals()
+    {
+        return intervals;
+    }
+
+    public Set<Index> getUninitializedReads()
+    {
+        return uninitializedReads;
+    }
+
+    public boolean isReferenced(Index index)
+    {
+        return intervals.containsKey(index);
+    }
+
+    public Interval getInterval(Index index)
+    {
+        return requireNonNull(intervals.get(index));
+    }
+
+    public boolean interferes(Index a, Index b)
+    {
+        Interval ia = intervals.get(a);
+        Interval ib = intervals.get(b);
+        return ia != null && ib != null && ia.overlaps(ib);
+    }
+
+    public static LivenessAnalysis analyze(Node root, Set<Index> liveIn)
+    {
+        Set<Index> uninitializedReads = findUninitializedReads(root, liveIn);
+
+        Map<Index, Interval> intervals = new HashMap<>();
+        List<Interval> loops = new ArrayList<>();
+        root.accept(new Visitor<Void, Void>()
+        {
+            private int position = ENTRY + 1;
+
+            private void touch(Index index)
+            {
+                Interval interval = new Interval(position, position);
+                intervals.merge(index, interval, Interval::span);
+                ++position;
+            }
+
+            @Override
+            protected Void visitNode(Node node, Void context)
+            {
+                ++position;
+                node.getChildren().forEach(child -> child.accept(this, context));
+                return null;
+            }
+
+            @Override
+            public Void visitGetLocal(GetLocal node, Void context)
+            {
+                touch(node.getIndex());
+                return null;
+            }
+
+            @Override
+            public Void visitSetLocal(SetLocal node, Void context)
+            {
+                node.getValue().accept(this, context);
+                touch(node.getIndex());
+                return null;
+            }
+
+            @Override
+            public Void visitLoop(Loop node, Void context)
+            {
+                int start = position++;
+                node.getBody().accept(this, context);
+                loops.add(new Interval(start, position++));
+                return null;
+            }
+        }, null);
+
+        for (Index index : intervals.keySet()) {
+            if (liveIn.contains(index) || uninitializedReads.contains(index)) {
+                intervals.put(index, intervals.get(index).span(new Interval(ENTRY, ENTRY)));
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Index, Interval> entry : intervals.entrySet()) {
+                for (Interval loop : loops) {
+                    Interval interval = entry.getValue();
+                    if (interval.overlaps(loop) && !interval.contains(loop)) {
+                        entry.setValue(interval.span(loop));
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        return new LivenessAnalysis(intervals, uninitializedReads);
+    }
+
+    private static Set<Index> intersect(Set<Index> left, Set<Index> right)
+    {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        Set<Index> ret = new HashSet<>(left);
+        ret.retainAll(right);
+        return ret;
+    }
+
+    // Definite assignment in the style of jls8 16. A null state means the point is unreachable.
+    public static Set<Index> findUninitializedReads(Node root, Set<Index> liveIn)
+    {
+        Set<Index> ret = new HashSet<>();
+        Map<Name, Set<Index>> breakStates = new HashMap<>();
+        root.accept(new Visitor<Set<Index>, Set<Index>>()
+        {
+            private void recordBreak(Name target, Set<Index> state)
+            {
+                if (state != null) {
+                    breakStates.put(target, breakStates.containsKey(target) ? intersect(breakStates.get(target), state) : state);
+                }
+            }
+
+            @Override
+            protected Set<Index> visitNode(Node node, Set<Index> context)
+            {
+                Set<Index> state = context;
+                for (Node child : node.getChildren()) {
+                    state = child.accept(this, state);
+                }
+                return state;
+            }
+
+            @Override
+            public Set<Index> visitBreak(Break node, Set<Index> context)
+            {
+                recordBreak(node.getTarget(), node.getValue().accept(this, context));
+                return null;
+            }
+
+            @Override
+            public Set<Index> visitBreakTable(BreakTable node, Set<Index> context)
+            {
+                Set<Index> state = node.getCondition().accept(this, context);
+                node.getTargets().forEach(t -> recordBreak(t, state));
+                recordBreak(node.getDefaultTarget(), state);
+                return null;
+            }
+
+            @Override
+            public Set<Index> visitGetLocal(GetLocal node, Set<Index> context)
+            {
+                if (context != null && !context.contains(node.getIndex())) {
+                    ret.add(node.getIndex());
+                }
+                return context;
+            }
+
+            @Override
+            public Set<Index> visitIf(If node, Set<Index> context)
+            {
+                Set<Index> state = node.getCondition().accept(this, context);
+                return intersect(
+                        node.getIfTrue().accept(this, state),
+                        node.getIfFalse().accept(this, state));
+            }
+
+            @Override
+            public Set<Index> visitLabel(Label node, Set<Index> context)
+            {
+                Set<Index> state = node.getBody().accept(this, context);
+                return intersect(state, breakStates.remove(node.getName()));
+            }
+
+            @Override
+            public Set<Index> visitLoop(Loop node, Set<Index> context)
+            {
+                Set<Index> state = node.getBody().accept(this, context);
+                breakStates.remove(node.getName());
+                return state;
+            }
+
+            @Override
+            public Set<Index> visitReturn(Return node, Set<Index> context)
+            {
+                node.getValue().accept(this, context);
+                return null;
+            }
+
+            @Override
+            public Set<Index> visitSetLocal(SetLocal node, Set<Index> context)
+            {
+                Set<Index> state = node.getValue().accept(this, context);
+                if (state == null) {
+                    return null;
+                }
+                state = new HashSet<>(state);
+                state.add(node.getIndex());
+                return state;
+            }
+
+            @Override
+            public Set<Index> visitSwitch(Switch node, Set<Index> context)
+            {
+                Set<Index> state = node.getCondition().accept(this, context);
+                Set<Index> merged = null;
+                boolean hasDefault = false;
+                for (Switch.Entry entry : node.getEntries()) {
+                    merged = intersect(merged, entry.getBody().accept(this, state));
+                    hasDefault |= entry.getValues().contains(Switch.Value.DEFAULT);
+                }
+                return hasDefault ? merged : intersect(merged, state);
+            }
+
+            @Override
+            public Set<Index> visitUnreachable(Unreachable node, Set<Index> context)
+            {
+                return null;
+            }
+        }, new HashSet<>(liveIn));
+        return ret;
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.analyze;
+
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Select;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+
+import javax.annotation.concurrent.Immutable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/*
+Flow-insensitive signed interval analysis of i32 and i64 values. Locals take the union of every value assigned to them,
+widened to the type bounds once a loop keeps growing them.
+*/
+@Immutable
+public final class RangeAnalysis
+{
+    private static final int WIDENING_ITERATIONS = 3;
+
+    @Immutable
+    public static final class Range
+    {
+        private final Type type;
+        private final long min;
+        private final long max;
+
+        public Range(Type type, long min, long max)
+        {
+            checkArgument(type == Type.I32 || type == Type.I64);
+            checkArgument(min <= max);
+            this.type = type;
+            this.min = min;
+            this.max = max;
+        }
+
+        public static Range full(Type type)
+        {
+            return new Range(type, minValue(type), maxValue(type));
+        }
+
+        public static Range of(Type type, long min, long max)
+        {
+            if (min < minValue(type) || max > maxValue(type)) {
+                return full(type);
+            }
+            return new Range(type, min, max);
+        }
+
+        public static long minValue(Type type)
+        {
+            return type == Type.I32 ? Integer.MIN_VALUE : Long.MIN_VALUE;
+        }
+
+        public static long maxValue(Type type)
+        {
+            return type == Type.I32 ? Integer.MAX_VALUE : Long.MAX_VALUE;
+        }
+
+        public Type getType()
+        {
+            return type;
+        }
+
+        public long getMin()
+        {
+            return min;
+        }
+
+        public long getMax()
+        {
+            return max;
+        }
+
+        public boolean isNonNegative()
+        {
+            return min >= 0;
+        }
+
+        public boolean isFull()
+        {
+            return min == minValue(type) && max == maxValue(type);
+        }
+
+        public Range union(Range other)
+        {
+            checkArgument(type == other.type);
+            return new Range(type, Math.min(min, other.min), Math.max(max, other.max));
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Range range = (Range) o;
+            return min == range.min &&
+                    max == range.max &&
+                    type == range.type;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(type, min, max);
+        }
+
+        @Override
+        public String toString()
+        {
+            return type + "[" + min + ", " + max + "]";
+        }
+    }
+
+    private final Map<Node, Range> ranges;
+    private final Map<Index, Range> localRanges;
+
+    private RangeAnalysis(Map<Node, Range> ranges, Map<Index, Range> localRanges)
+    {
+        this.ranges = Collections.unmodifiableMap(ranges);
+        this.localRanges = Collections.unmodifiableMap(localRanges);
+    }
+
+    public Optional<Range> get(Node node)
+    {
+        return Optional.ofNullable(ranges.get(node));
+    }
+
+    public boolean isNonNegative(Node node)
+    {
+        Range range = ranges.get(node);
+        return range != null && range.isNonNegative();
+    }
+
+    public Map<Index, Range> getLocalRanges()
+    {
+        return localRanges;
+    }
+
+    // Non-arg locals are zero initialized, so zero is always included in their range.
+    public static RangeAnalysis analyze(Node root, Set<Index> args)
+    {
+        Map<Index, Range> localRanges = new HashMap<>();
+        for (int iteration = 0; ; ++iteration) {
+            Map<Node, Range> ranges = new IdentityHashMap<>();
+            Map<Index, Range> newLocalRanges = new HashMap<>();
+            root.accept(new RangeVisitor(ranges, localRanges, newLocalRanges, args), null);
+
+            boolean changed = false;
+            for (Map.Entry<Index, Range> e : newLocalRanges.entrySet()) {
+                Range prev = localRanges.get(e.getKey());
+                Range next = prev != null ? prev.union(e.getValue()) : e.getValue();
+                if (!next.equals(prev)) {
+                    if (prev != null && iteration >= WIDENING_ITERATIONS) {
+                        Type type = next.getType();
+                        next = new Range(
+                                type,
+                                next.getMin() < prev.getMin() ? Range.minValue(type) : next.getMin(),
+                                next.getMax() > prev.getMax() ? Range.maxValue(type) : next.getMax());
+                    }
+                    localRanges.put(e.getKey(), next);
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return new RangeAnalysis(ranges, localRanges);
+            }
+        }
+    }
+
+    private static boolean isInteger(Type type)
+    {
+        return type == Type.I32 || type == Type.I64;
+    }
+
+    private static int getBitLength(long value)
+    {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static final class RangeVisitor
+            extends Visitor<Void, Range>
+    {
+        private final Map<Node, Range> ranges;
+        private final Map<Index, Range> localRanges;
+        private final Map<Index, Range> newLocalRanges;
+        private final Set<Index> args;
+        private final Map<Name, Range> breakRanges = new HashMap<>();
+
+        private RangeVisitor(Map<Node, Range> ranges, Map<Index, Range> localRanges, Map<Index, Range> newLocalRanges, Set<Index> args)
+        {
+            this.ranges = ranges;
+            this.localRanges = localRanges;
+            this.newLocalRanges = newLocalRanges;
+            this.args = args;
+        }
+
+        private Range analyze(Node node)
+        {
+            Range range = node.accept(this, null);
+            if (range != null) {
+                ranges.put(node, range);
+            }
+            return range;
+        }
+
+        @Override
+        protected Range visitNode(Node node, Void context)
+        {
+            node.getChildren().forEach(this::analyze);
+            return null;
+        }
+
+        @Override
+        public Range visitBinary(Binary node, Void context)
+        {
+            Range left = analyze(node.getLeft());
+            Range right = analyze(node.getRight());
+            if (node.getOp().isBoolean()) {
+                return new Range(Type.I32, 0, 1);
+            }
+            Type type = node.getType();
+            if (!isInteger(type) || left == null || right == null) {
+                return null;
+            }
+            Range full = Range.full(type);
+            int bits = type == Type.I32 ? 32 : 64;
+            switch (node.getOp()) {
+                case Add: {
+                    if (type == Type.I32) {
+                        return Range.of(type, left.min + right.min, left.max + right.max);
+                    }
+                    return full;
+                }
+                case Sub: {
+                    if (type == Type.I32) {
+                        return Range.of(type, left.min - right.max, left.max - right.min);
+                    }
+                    return full;
+                }
+                case Mul: {
+                    if (type == Type.I32 && left.isNonNegative() && right.isNonNegative() && left.max <= Integer.MAX_VALUE && right.max <= Integer.MAX_VALUE) {
+                        return Range.of(type, left.min * right.min, left.max * right.max);
+                    }
+                    return full;
+                }
+                case And: {
+                    if (left.isNonNegative() && right.isNonNegative()) {
+                        return new Range(type, 0, Math.min(left.max, right.max));
+                    }
+                    else if (left.isNonNegative()) {
+                        return new Range(type, 0, left.max);
+                    }
+                    else if (right.isNonNegative()) {
+                        return new Range(type, 0, right.max);
+                    }
+                    return full;
+                }
+                case Or:
+                case Xor: {
+                    if (left.isNonNegative() && right.isNonNegative()) {
+                        int length = getBitLength(Math.max(left.max, right.max));
+                        return new Range(type, 0, length >= 63 ? Long.MAX_VALUE : (1L << length) - 1);
+                    }
+                    return full;
+                }
+                case Shl: {
+                    if (right.min == right.max && left.isNonNegative()) {
+                        int shift = (int) (right.min & (bits - 1));
+                        if (getBitLength(left.max) + shift < bits) {
+                            return new Range(type, left.min << shift, left.max << shift);
+                        }
+                    }
+                    return full;
+                }
+                case ShrS: {
+                    if (right.min == right.max) {
+                        int shift = (int) (right.min & (bits - 1));
+                        return new Range(type, left.min >> shift, left.max >> shift);
+                    }
+                    return full;
+                }
+                case ShrU: {
+                    if (right.min == right.max) {
+                        int shift = (int) (right.min & (bits - 1));
+                        if (left.isNonNegative()) {
+                            return new Range(type, left.min >> shift, left.max >> shift);
+                        }
+                        else if (shift > 0) {
+                            return new Range(type, 0, (shift == 1 && bits == 64) ? Long.MAX_VALUE : (1L << (bits - shift)) - 1);
+                        }
+                    }
+                    return full;
+                }
+                case DivS:
+                case DivU: {
+                    if (left.isNonNegative() && right.isNonNegative()) {
+                        return new Range(type, 0, left.max);
+                    }
+                    return full;
+                }
+                case RemS: {
+                    if (left.isNonNegative() && right.isNonNegative() && right.max > 0) {
+                        return new Range(type, 0, Math.min(left.max, right.max - 1));
+                    }
+                    return full;
+                }
+                case RemU: {
+                    if (right.isNonNegative() && right.max > 0) {
+                        return new Range(type, 0, left.isNonNegative() ? Math.min(left.max, right.max - 1) : right.max - 1);
+                    }
+                    return full;
+                }
+                default: {
+                    return full;
+                }
+            }
+        }
+
+        @Override
+        public Range visitBlock(Block node, Void context)
+        {
+            Range range = null;
+            for (Node child : node.getChildren()) {
+                range = analyze(child);
+            }
+            return range;
+        }
+
+        @Override
+        public Range visitBreak(Break node, Void context)
+        {
+            Range value = analyze(node.getValue());
+            Range prev = breakRanges.get(node.getTarget());
+            if (value == null || breakRanges.containsKey(node.getTarget()) && prev == null) {
+                breakRanges.put(node.getTarget(), null);
+            }
+            else {
+                breakRanges.put(node.getTarget(), prev != null ? prev.union(value) : value);
+            }
+            return null;
+        }
+
+        @Override
+        public Range visitConst(Const node, Void context)
+        {
+            Type type = node.getLiteral().getType();
+            if (!isInteger(type)) {
+                return null;
+            }
+            long value = type == Type.I32 ? node.getLiteral().getI32() : node.getLiteral().getI64();
+            return new Range(type, value, value);
+        }
+
+        @Override
+        public Range visitGetLocal(GetLocal node, Void context)
+        {
+            if (!isInteger(node.getType())) {
+                return null;
+            }
+            if (args.contains(node.getIndex())) {
+                return Range.full(node.getType());
+            }
+            Range range = localRanges.get(node.getIndex());
+            return range != null ? range : new Range(node.getType(), 0, 0);
+        }
+
+        @Override
+        public Range visitIf(If node, Void context)
+        {
+            analyze(node.getCondition());
+            Range ifTrue = analyze(node.getIfTrue());
+            Range ifFalse = analyze(node.getIfFalse());
+            return ifTrue != null && ifFalse != null && ifTrue.getType() == ifFalse.getType() ? ifTrue.union(ifFalse) : null;
+        }
+
+        @Override
+        public Range visitLabel(Label node, Void context)
+        {
+            Range body = analyze(node.getBody());
+            if (!breakRanges.containsKey(node.getName())) {
+                return body;
+            }
+            Range breaks = breakRanges.remove(node.getName());
+            return body != null && breaks != null && body.getType() == breaks.getType() ? body.union(breaks) : null;
+        }
+
+        @Override
+        public Range visitLoad(Load node, Void context)
+        {
+            analyze(node.getPtr());
+            Type type = node.getType();
+            if (!isInteger(type)) {
+                return null;
+            }
+            int bits = node.getBytes() * 8;
+            if (bits >= (type == Type.I32 ? 32 : 64)) {
+                return Range.full(type);
+            }
+            else if (node.isSigned()) {
+                return new Range(type, -(1L << (bits - 1)), (1L << (bits - 1)) - 1);
+            }
+            else {
+                return new Range(type, 0, (1L << bits) - 1);
+            }
+        }
+
+        @Override
+        public Range visitLoop(Loop node, Void context)
+        {
+            return analyze(node.getBody());
+        }
+
+        @Override
+        public Range visitSelect(Select node, Void context)
+        {
+            Range ifTrue = analyze(node.getIfTrue());
+            Range ifFalse = analyze(node.getIfFalse());
+            analyze(node.getCondition());
+            return ifTrue != null && ifFalse != null && ifTrue.getType() == ifFalse.getType() ? ifTrue.union(ifFalse) : null;
+        }
+
+        @Override
+        public Range visitSetLocal(SetLocal node, Void context)
+        {
+            Range value = analyze(node.getValue());
+            if (!isInteger(node.getType())) {
+                return null;
+            }
+            if (value == null) {
+                value = Range.full(node.getType());
+            }
+            Range prev = newLocalRanges.get(node.getIndex());
+            newLocalRanges.put(node.getIndex(), prev != null ? prev.union(value) : value.union(new Range(node.getType(), 0, 0)));
+            return value;
+        }
+
+        @Override
+        public Range visitUnary(Unary node, Void context)
+        {
+            Range value = analyze(node.getValue());
+            Type type = node.getType();
+            switch (node.getOp()) {
+                case Clz:
+                case Ctz:
+                case Popcnt: {
+                    return new Range(type, 0, type == Type.I32 ? 32 : 64);
+                }
+                case EqZ: {
+                    return new Range(Type.I32, 0, 1);
+                }
+                case ExtendSInt32: {
+                    return value != null ? new Range(Type.I64, value.min, value.max) : Range.full(Type.I64);
+                }
+                case ExtendUInt32: {
+                    return value != null && value.isNonNegative() ? new Range(Type.I64, value.min, value.max) : new Range(Type.I64, 0, 0xFFFFFFFFL);
+                }
+                case WrapInt64: {
+                    return value != null ? Range.of(Type.I32, value.min, value.max) : Range.full(Type.I32);
+                }
+                default: {
+                    return isInteger(type) ? Range.full(type) : null;
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@ package com.wrmsr.wava.compile;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.wrmsr.wava.core.type.Index;
 import com.wrmsr.wava.core.type.Name;
 import com.wrmsr.wava.core.type.Type;
@@ -24,11 +25,13 @@ import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
 import com.wrmsr.wava.java.lang.JTypeSpecifier;
 import com.wrmsr.wava.java.lang.op.JBinaryOp;
+import com.wrmsr.wava.java.lang.op.JUnaryOp;
 import com.wrmsr.wava.java.lang.tree.expression.JBinary;
 import com.wrmsr.wava.java.lang.tree.expression.JConditional;
 import com.wrmsr.wava.java.lang.tree.expression.JExpression;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
+import com.wrmsr.wava.java.lang.tree.expression.JUnary;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
 import com.wrmsr.wava.java.lang.tree.statement.JStatement;
 import com.wrmsr.wava.java.lang.tree.statement.JVariable;
@@ -36,6 +39,7 @@ import com.wrmsr.wava.java.lang.tree.statement.JVariable;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import static com.wrmsr.wava.java.lang.tree.JTrees.JONE;
 import static com.wrmsr.wava.java.lang.tree.JTrees.JZERO;
@@ -91,8 +95,25 @@ public final class Compilation
                 ImmutableList.of(value));
     }
 
+    public static JExpression newFlipInt(JExpression value)
+    {
+        if (value instanceof JLiteral && ((JLiteral) value).getValue() instanceof Integer) {
+            return new JLiteral(
+                    (Integer) ((JLiteral) value).getValue() ^ Integer.MIN_VALUE);
+        }
+        return new JBinary(
+                JBinaryOp.BitwiseXor,
+                value,
+                new JLiteral(
+                        Integer.MIN_VALUE));
+    }
+
     public static JExpression newFlipLong(JExpression value)
     {
+        if (value instanceof JLiteral && ((JLiteral) value).getValue() instanceof Long) {
+            return new JLiteral(
+                    (Long) ((JLiteral) value).getValue() ^ Long.MIN_VALUE);
+        }
         return new JBinary(
                 JBinaryOp.BitwiseXor,
                 value,
@@ -137,6 +158,11 @@ public final class Compilation
             if (jconditional.getIfTrue().equals(JZERO) && jconditional.getIfFalse().equals(JONE)) {
                 return jconditional.getCondition();
             }
+            if (jconditional.getIfTrue().equals(JONE) && jconditional.getIfFalse().equals(JZERO)) {
+                return new JUnary(
+                        JUnaryOp.LogicalComplement,
+                        jconditional.getCondition());
+            }
         }
         return new JBinary(
                 JBinaryOp.Equals,
@@ -154,14 +180,24 @@ public final class Compilation
     }
 
     public static JStatement compileLocalDecls(Function function)
+    {
+        return compileLocalDecls(function, ImmutableSet.of());
+    }
+
+    public static JStatement compileLocalDecls(Function function, Set<Index> booleanLocals)
     {
         return new JBlock(
                 function.getNonArgLocals().stream()
-                        .map(l -> new JVariable(
-                                PRIMITIVE_TYPE_MAP.get(l.getType()),
-                                getLocalName(function, l.getIndex()),
-                                Optional.of(new JLiteral(
-                                        l.getType().zero()))))
+                        .map(l -> booleanLocals.contains(l.getIndex()) ?
+                                new JVariable(
+                                        JTypeSpecifier.of("boolean"),
+                                        getLocalName(function, l.getIndex()),
+                                        Optional.of(new JLiteral(false))) :
+                                new JVariable(
+                                        PRIMITIVE_TYPE_MAP.get(l.getType()),
+                                        getLocalName(function, l.getIndex()),
+                                        Optional.of(new JLiteral(
+                                                l.getType().zero()))))
                         .collect(toImmutableList()));
     }
 
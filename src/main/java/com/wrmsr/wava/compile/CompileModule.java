@@ -20,6 +20,7 @@ import com.wrmsr.wava.compile.const_.ConstModule;
 import com.wrmsr.wava.compile.function.FunctionModule;
 import com.wrmsr.wava.compile.memory.MemoryModule;
 import com.wrmsr.wava.compile.module.ModuleModule;
+import com.wrmsr.wava.compile.trap.TrapModule;
 import com.wrmsr.wava.compile.unary.UnaryModule;
 
 public final class CompileModule
@@ -34,6 +35,7 @@ public final class CompileModule
         install(new FunctionModule());
         install(new MemoryModule());
         install(new ModuleModule());
+        install(new TrapModule());
         install(new UnaryModule());
     }
 }
@@ -16,24 +16,43 @@ package com.wrmsr.wava.compile.binary;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.trap.Trap;
+import com.wrmsr.wava.compile.trap.TrapCompilerImpl;
 import com.wrmsr.wava.core.node.Binary;
 import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.java.lang.JAccess;
+import com.wrmsr.wava.java.lang.JArg;
+import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
 import com.wrmsr.wava.java.lang.JTypeSpecifier;
 import com.wrmsr.wava.java.lang.op.JBinaryOp;
+import com.wrmsr.wava.java.lang.tree.declaration.JDeclaration;
+import com.wrmsr.wava.java.lang.tree.declaration.JMethod;
 import com.wrmsr.wava.java.lang.tree.expression.JBinary;
 import com.wrmsr.wava.java.lang.tree.expression.JCast;
 import com.wrmsr.wava.java.lang.tree.expression.JExpression;
+import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
+import com.wrmsr.wava.java.lang.tree.statement.JBlock;
+import com.wrmsr.wava.java.lang.tree.statement.JIf;
+import com.wrmsr.wava.java.lang.tree.statement.JReturn;
+import com.wrmsr.wava.java.lang.tree.statement.JStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JThrow;
 
 import javax.inject.Inject;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.LongPredicate;
 
+import static com.google.common.collect.Sets.immutableEnumSet;
 import static com.wrmsr.wava.compile.Compilation.newBooleanToInt;
-import static com.wrmsr.wava.compile.Compilation.newCastUnsignedIntToLong;
 import static com.wrmsr.wava.compile.Compilation.newDoubleToLong;
+import static com.wrmsr.wava.compile.Compilation.newFlipInt;
 import static com.wrmsr.wava.compile.Compilation.newFlipLong;
 import static com.wrmsr.wava.compile.Compilation.newFloatToInt;
 import static com.wrmsr.wava.compile.Compilation.newIntToFloat;
@@ -43,25 +62,43 @@ import static java.util.Objects.requireNonNull;
 public final class BinaryCompilerImpl
         implements BinaryCompiler, ModuleCompilationParticipant
 {
+    private static final JExpression LEFT = new JIdent(JQualifiedName.of("left"));
+    private static final JExpression RIGHT = new JIdent(JQualifiedName.of("right"));
+
+    // Wasm integer division traps where Java's throws ArithmeticException or, for MIN / -1, silently wraps.
+    private static final List<JDeclaration> DIVISION_DECLARATIONS = ImmutableList.of(
+            newDivisionDeclaration("_divideSigned", "int", Optional.of("Integer"), new JBinary(JBinaryOp.Divide, LEFT, RIGHT)),
+            newDivisionDeclaration("_divideSigned", "long", Optional.of("Long"), new JBinary(JBinaryOp.Divide, LEFT, RIGHT)),
+            newDivisionDeclaration("_remainderSigned", "int", Optional.empty(), new JBinary(JBinaryOp.Remainder, LEFT, RIGHT)),
+            newDivisionDeclaration("_remainderSigned", "long", Optional.empty(), new JBinary(JBinaryOp.Remainder, LEFT, RIGHT)),
+            newDivisionDeclaration("_divideUnsigned", "int", Optional.empty(), newBoxInvocation("Integer", "divideUnsigned")),
+            newDivisionDeclaration("_divideUnsigned", "long", Optional.empty(), newBoxInvocation("Long", "divideUnsigned")),
+            newDivisionDeclaration("_remainderUnsigned", "int", Optional.empty(), newBoxInvocation("Integer", "remainderUnsigned")),
+            newDivisionDeclaration("_remainderUnsigned", "long", Optional.empty(), newBoxInvocation("Long", "remainderUnsigned")));
+
     @Inject
     public BinaryCompilerImpl()
     {
     }
 
+    @Override
+    public List<JDeclaration> createPostCtorDeclarations()
+    {
+        return DIVISION_DECLARATIONS;
+    }
+
     private static final Map<BinaryOp, JBinaryOp> BINARY_OP_MAP = ImmutableMap.<BinaryOp, JBinaryOp>builder()
             .put(BinaryOp.Add, JBinaryOp.Add)
             .put(BinaryOp.Sub, JBinaryOp.Subtract)
             .put(BinaryOp.Mul, JBinaryOp.Multiply)
 
             .put(BinaryOp.DivS, JBinaryOp.Divide)
-            .put(BinaryOp.DivU, JBinaryOp.Divide) // FIXME
             .put(BinaryOp.RemS, JBinaryOp.Remainder)
-            .put(BinaryOp.RemU, JBinaryOp.Remainder) // FIXME
             .put(BinaryOp.And, JBinaryOp.BitwiseAnd)
             .put(BinaryOp.Or, JBinaryOp.BitwiseOr)
             .put(BinaryOp.Xor, JBinaryOp.BitwiseXor)
             .put(BinaryOp.Shl, JBinaryOp.LeftShift)
-            .put(BinaryOp.ShrU, JBinaryOp.RightShiftUnsigned) // FIXME min(c & 0x1F) ?
+            .put(BinaryOp.ShrU, JBinaryOp.RightShiftUnsigned)
             .put(BinaryOp.ShrS, JBinaryOp.RightShiftSigned)
             .put(BinaryOp.Div, JBinaryOp.Divide)
 
@@ -204,8 +241,8 @@ public final class BinaryCompilerImpl
                         return newBooleanToInt(
                                 new JBinary(
                                         JBinaryOp.LessThan,
-                                        newCastUnsignedIntToLong(left),
-                                        newCastUnsignedIntToLong(right)));
+                                        newFlipInt(left),
+                                        newFlipInt(right)));
                     }
                     case I64: {
                         return newBooleanToInt(
@@ -222,8 +259,8 @@ public final class BinaryCompilerImpl
                         return newBooleanToInt(
                                 new JBinary(
                                         JBinaryOp.LessThanOrEqual,
-                                        newCastUnsignedIntToLong(left),
-                                        newCastUnsignedIntToLong(right)));
+                                        newFlipInt(left),
+                                        newFlipInt(right)));
                     }
                     case I64: {
                         return newBooleanToInt(
@@ -240,8 +277,8 @@ public final class BinaryCompilerImpl
                         return newBooleanToInt(
                                 new JBinary(
                                         JBinaryOp.GreaterThan,
-                                        newCastUnsignedIntToLong(left),
-                                        newCastUnsignedIntToLong(right)));
+                                        newFlipInt(left),
+                                        newFlipInt(right)));
                     }
                     case I64: {
                         return newBooleanToInt(
@@ -258,8 +295,8 @@ public final class BinaryCompilerImpl
                         return newBooleanToInt(
                                 new JBinary(
                                         JBinaryOp.GreaterThanOrEqual,
-                                        newCastUnsignedIntToLong(left),
-                                        newCastUnsignedIntToLong(right)));
+                                        newFlipInt(left),
+                                        newFlipInt(right)));
                     }
                     case I64: {
                         return newBooleanToInt(
@@ -269,6 +306,62 @@ public final class BinaryCompilerImpl
                                         newFlipLong(right)));
                     }
                 }
+                break;
+            }
+            case DivU: {
+                // x / 2^k == x >>> k for unsigned x
+                OptionalInt shift = getPowerOfTwoShift(right);
+                if (shift.isPresent()) {
+                    return new JBinary(
+                            JBinaryOp.RightShiftUnsigned,
+                            left,
+                            new JLiteral(
+                                    shift.getAsInt()));
+                }
+                if (isLiteral(right, v -> v != 0)) {
+                    return JMethodInvocation.of(
+                            JQualifiedName.of("java", "lang", node.getType() == Type.I32 ? "Integer" : "Long", "divideUnsigned"),
+                            ImmutableList.of(left, right));
+                }
+                return JMethodInvocation.of(
+                        JQualifiedName.of("_divideUnsigned"),
+                        ImmutableList.of(left, right));
+            }
+            case RemU: {
+                // x % 2^k == x & (2^k - 1) for unsigned x
+                OptionalInt shift = getPowerOfTwoShift(right);
+                if (shift.isPresent()) {
+                    return new JBinary(
+                            JBinaryOp.BitwiseAnd,
+                            left,
+                            new JLiteral(
+                                    node.getType() == Type.I32 ? (Object) ((1 << shift.getAsInt()) - 1) : (Object) ((1L << shift.getAsInt()) - 1)));
+                }
+                if (isLiteral(right, v -> v != 0)) {
+                    return JMethodInvocation.of(
+                            JQualifiedName.of("java", "lang", node.getType() == Type.I32 ? "Integer" : "Long", "remainderUnsigned"),
+                            ImmutableList.of(left, right));
+                }
+                return JMethodInvocation.of(
+                        JQualifiedName.of("_remainderUnsigned"),
+                        ImmutableList.of(left, right));
+            }
+            case DivS: {
+                // MIN / -1 overflows, which Java silently wraps
+                if (isLiteral(right, v -> v != 0 && v != -1)) {
+                    break;
+                }
+                return JMethodInvocation.of(
+                        JQualifiedName.of("_divideSigned"),
+                        ImmutableList.of(left, right));
+            }
+            case RemS: {
+                if (isLiteral(right, v -> v != 0)) {
+                    break;
+                }
+                return JMethodInvocation.of(
+                        JQualifiedName.of("_remainderSigned"),
+                        ImmutableList.of(left, right));
             }
         }
 
@@ -282,4 +375,73 @@ public final class BinaryCompilerImpl
         }
         return jexpression;
     }
+
+    private static JExpression newBoxInvocation(String box, String method)
+    {
+        return JMethodInvocation.of(
+                JQualifiedName.of("java", "lang", box, method),
+                ImmutableList.of(LEFT, RIGHT));
+    }
+
+    private static JStatement newTrapIf(JExpression condition, Trap trap)
+    {
+        return new JIf(
+                condition,
+                new JBlock(ImmutableList.of(new JThrow(TrapCompilerImpl.compileTrap(trap)))),
+                Optional.empty());
+    }
+
+    // The box, when present, names the class whose MIN_VALUE overflows when divided by -1.
+    private static JDeclaration newDivisionDeclaration(String name, String type, Optional<String> box, JExpression result)
+    {
+        ImmutableList.Builder<JStatement> body = ImmutableList.builder();
+        body.add(newTrapIf(new JBinary(JBinaryOp.Equals, RIGHT, new JLiteral(0)), Trap.INTEGER_DIVIDE_BY_ZERO));
+        box.ifPresent(b -> body.add(
+                newTrapIf(
+                        new JBinary(
+                                JBinaryOp.ConditionalAnd,
+                                new JBinary(JBinaryOp.Equals, LEFT, new JIdent(JQualifiedName.of("java", "lang", b, "MIN_VALUE"))),
+                                new JBinary(JBinaryOp.Equals, RIGHT, new JLiteral(-1))),
+                        Trap.INTEGER_OVERFLOW)));
+        body.add(new JReturn(Optional.of(result)));
+        return new JMethod(
+                immutableEnumSet(JAccess.PROTECTED, JAccess.STATIC),
+                JTypeSpecifier.of(type),
+                JName.of(name),
+                ImmutableList.of(
+                        new JArg(JTypeSpecifier.of(type), JName.of("left")),
+                        new JArg(JTypeSpecifier.of(type), JName.of("right"))),
+                Optional.of(new JBlock(body.build())));
+    }
+
+    private static boolean isLiteral(JExpression expression, LongPredicate predicate)
+    {
+        if (!(expression instanceof JLiteral)) {
+            return false;
+        }
+        Object value = ((JLiteral) expression).getValue();
+        return (value instanceof Integer || value instanceof Long) && predicate.test(((Number) value).longValue());
+    }
+
+    private static OptionalInt getPowerOfTwoShift(JExpression divisor)
+    {
+        if (!(divisor instanceof JLiteral)) {
+            return OptionalInt.empty();
+        }
+        Object value = ((JLiteral) divisor).getValue();
+        long bits;
+        if (value instanceof Integer) {
+            bits = ((Integer) value) & 0xFFFFFFFFL;
+        }
+        else if (value instanceof Long) {
+            bits = (Long) value;
+        }
+        else {
+            return OptionalInt.empty();
+        }
+        if (bits == 0 || Long.bitCount(bits) != 1) {
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(Long.numberOfTrailingZeros(bits));
+    }
 }
@@ -0,0 +1,1327 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.bytecode;
+
+import com.google.common.collect.ImmutableMap;
+import com.wrmsr.wava.compile.call.CallCompilerImpl;
+import com.wrmsr.wava.compile.memory.LoadStoreCompilerImpl;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.compile.trap.Trap;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.BreakTable;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.Select;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.op.HostOp;
+import com.wrmsr.wava.core.op.UnaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Memory;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.D2F;
+import static org.objectweb.asm.Opcodes.D2L;
+import static org.objectweb.asm.Opcodes.DCMPG;
+import static org.objectweb.asm.Opcodes.DCMPL;
+import static org.objectweb.asm.Opcodes.DCONST_0;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.F2D;
+import static org.objectweb.asm.Opcodes.F2I;
+import static org.objectweb.asm.Opcodes.FCMPG;
+import static org.objectweb.asm.Opcodes.FCMPL;
+import static org.objectweb.asm.Opcodes.FCONST_0;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.I2D;
+import static org.objectweb.asm.Opcodes.I2F;
+import static org.objectweb.asm.Opcodes.I2L;
+import static org.objectweb.asm.Opcodes.IADD;
+import static org.objectweb.asm.Opcodes.IALOAD;
+import static org.objectweb.asm.Opcodes.IAND;
+import static org.objectweb.asm.Opcodes.IASTORE;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.IDIV;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFGE;
+import static org.objectweb.asm.Opcodes.IFGT;
+import static org.objectweb.asm.Opcodes.IFLE;
+import static org.objectweb.asm.Opcodes.IFLT;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IF_ICMPEQ;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.IMUL;
+import static org.objectweb.asm.Opcodes.INEG;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IOR;
+import static org.objectweb.asm.Opcodes.IREM;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISHL;
+import static org.objectweb.asm.Opcodes.ISHR;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.ISUB;
+import static org.objectweb.asm.Opcodes.IUSHR;
+import static org.objectweb.asm.Opcodes.IXOR;
+import static org.objectweb.asm.Opcodes.L2D;
+import static org.objectweb.asm.Opcodes.L2F;
+import static org.objectweb.asm.Opcodes.L2I;
+import static org.objectweb.asm.Opcodes.LAND;
+import static org.objectweb.asm.Opcodes.LCMP;
+import static org.objectweb.asm.Opcodes.LCONST_0;
+import static org.objectweb.asm.Opcodes.LXOR;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.POP2;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+
+/*
+Compiles processed functions straight to JVM bytecode, mirroring the semantics of FunctionCompilerImpl and the
+expression compilers it delegates to. Member references all resolve against the module's generated base class, which
+still carries the scaffolding (imports, tables, memory helpers) as source.
+*/
+public final class BytecodeFunctionCompiler
+{
+    private final String owner;
+    private final Map<Name, String> staticClasses;
+    private final Optional<String> stubClass;
+    private final boolean methodHandleTables;
+
+    public BytecodeFunctionCompiler(String owner)
+    {
+        this(owner, ImmutableMap.of(), new ModuleCompilerConfig());
+    }
+
+    // Functions mapped here become static methods of the given class, taking the module instance in place of this.
+    public BytecodeFunctionCompiler(String owner, Map<Name, String> staticClasses, ModuleCompilerConfig moduleCompilerConfig)
+    {
+        this.owner = requireNonNull(owner);
+        this.staticClasses = ImmutableMap.copyOf(staticClasses);
+        this.stubClass = Optional.ofNullable(moduleCompilerConfig.getImportStubClass()).map(n -> n.replace('.', '/'));
+        this.methodHandleTables = moduleCompilerConfig.isMethodHandleTables();
+    }
+
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    public static String getDescriptor(Type type)
+    {
+        switch (type) {
+            case NONE:
+                return "V";
+            case I32:
+                return "I";
+            case I64:
+                return "J";
+            case F32:
+                return "F";
+            case F64:
+                return "D";
+        }
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    public static String getMethodDescriptor(Signature signature)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        signature.getArguments().forEach(a -> sb.append(getDescriptor(a)));
+        return sb.append(')').append(getDescriptor(signature.getResult())).toString();
+    }
+
+    public String getStaticMethodDescriptor(Signature signature)
+    {
+        return "(L" + owner + ";" + getMethodDescriptor(signature).substring(1);
+    }
+
+    public void compileFunction(ClassVisitor classVisitor, Function function)
+    {
+        new Instance(classVisitor, function).compile();
+    }
+
+    private static org.objectweb.asm.Type getAsmType(Type type)
+    {
+        return org.objectweb.asm.Type.getType(getDescriptor(type));
+    }
+
+    private static int getSlotSize(Type type)
+    {
+        return type == Type.I64 || type == Type.F64 ? 2 : 1;
+    }
+
+    private static int negateJump(int opcode)
+    {
+        switch (opcode) {
+            case IFEQ:
+                return IFNE;
+            case IFNE:
+                return IFEQ;
+            case IFLT:
+                return IFGE;
+            case IFGE:
+                return IFLT;
+            case IFGT:
+                return IFLE;
+            case IFLE:
+                return IFGT;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    private static int getRelationJump(BinaryOp op)
+    {
+        switch (op) {
+            case Eq:
+                return IFEQ;
+            case Ne:
+                return IFNE;
+            case LtS:
+            case LtU:
+            case Lt:
+                return IFLT;
+            case LeS:
+            case LeU:
+            case Le:
+                return IFLE;
+            case GtS:
+            case GtU:
+            case Gt:
+                return IFGT;
+            case GeS:
+            case GeU:
+            case Ge:
+                return IFGE;
+        }
+        throw new IllegalArgumentException(op.toString());
+    }
+
+    private static boolean isUnsignedRelation(BinaryOp op)
+    {
+        return op == BinaryOp.LtU || op == BinaryOp.LeU || op == BinaryOp.GtU || op == BinaryOp.GeU;
+    }
+
+    private static boolean isCondition(Node node)
+    {
+        if (node instanceof Binary) {
+            BinaryOp op = ((Binary) node).getOp();
+            return op.isBoolean() || op == BinaryOp.CondAnd || op == BinaryOp.CondOr;
+        }
+        return node instanceof Unary && ((Unary) node).getOp() == UnaryOp.EqZ;
+    }
+
+    private static boolean isConst(Node node, LongPredicate predicate)
+    {
+        if (!(node instanceof Const)) {
+            return false;
+        }
+        Literal<?, ?> literal = ((Const) node).getLiteral();
+        if (literal.getType() == Type.I32) {
+            return predicate.test(literal.getI32());
+        }
+        return literal.getType() == Type.I64 && predicate.test(literal.getI64());
+    }
+
+    private static OptionalInt getPowerOfTwoShift(Node divisor)
+    {
+        if (!(divisor instanceof Const)) {
+            return OptionalInt.empty();
+        }
+        Literal<?, ?> literal = ((Const) divisor).getLiteral();
+        long bits;
+        if (literal.getType() == Type.I32) {
+            bits = literal.getI32() & 0xFFFFFFFFL;
+        }
+        else if (literal.getType() == Type.I64) {
+            bits = literal.getI64();
+        }
+        else {
+            return OptionalInt.empty();
+        }
+        if (bits == 0 || Long.bitCount(bits) != 1) {
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(Long.numberOfTrailingZeros(bits));
+    }
+
+    private final class Instance
+    {
+        private final ClassVisitor classVisitor;
+        private final Function function;
+        private final Map<Index, Integer> slots = new HashMap<>();
+        private final Map<Name, Label> breakTargets = new HashMap<>();
+        private MethodVisitor mv;
+
+        private Instance(ClassVisitor classVisitor, Function function)
+        {
+            this.classVisitor = requireNonNull(classVisitor);
+            this.function = requireNonNull(function);
+        }
+
+        private void compile()
+        {
+            boolean isStatic = staticClasses.containsKey(function.getName());
+            mv = classVisitor.visitMethod(
+                    isStatic ? ACC_PUBLIC | ACC_STATIC : ACC_PUBLIC | ACC_FINAL,
+                    function.getName().get(),
+                    isStatic ? getStaticMethodDescriptor(function.getSignature()) : getMethodDescriptor(function.getSignature()),
+                    null,
+                    null);
+            mv.visitCode();
+
+            int slot = 1;
+            for (Local local : function.getArgLocals()) {
+                slots.put(local.getIndex(), slot);
+                slot += getSlotSize(local.getType());
+            }
+            for (Local local : function.getNonArgLocals()) {
+                slots.put(local.getIndex(), slot);
+                slot += getSlotSize(local.getType());
+                pushZero(local.getType());
+                mv.visitVarInsn(getAsmType(local.getType()).getOpcode(ISTORE), slots.get(local.getIndex()));
+            }
+
+            compileStatement(function.getBody());
+            if (function.getResult() == Type.NONE) {
+                mv.visitInsn(RETURN);
+            }
+            else {
+                throwTrap(Trap.UNREACHABLE);
+            }
+
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private Type getLocalType(Index index)
+        {
+            return function.getLocals().getLocal(index).getType();
+        }
+
+        private int getSlot(Index index)
+        {
+            return requireNonNull(slots.get(index));
+        }
+
+        private Type typeOf(Node node)
+        {
+            return node.accept(new Visitor<Void, Type>()
+            {
+                @Override
+                protected Type visitNode(Node node, Void context)
+                {
+                    return Type.NONE;
+                }
+
+                @Override
+                public Type visitBinary(Binary node, Void context)
+                {
+                    return node.getOp().isBoolean() ? Type.I32 : node.getType();
+                }
+
+                @Override
+                public Type visitCall(Call node, Void context)
+                {
+                    return node.getSignature().getResult();
+                }
+
+                @Override
+                public Type visitCallIndirect(CallIndirect node, Void context)
+                {
+                    return node.getSignature().getResult();
+                }
+
+                @Override
+                public Type visitConst(Const node, Void context)
+                {
+                    return node.getLiteral().getType();
+                }
+
+                @Override
+                public Type visitGetLocal(GetLocal node, Void context)
+                {
+                    return getLocalType(node.getIndex());
+                }
+
+                @Override
+                public Type visitIf(If node, Void context)
+                {
+                    return typeOf(node.getIfTrue());
+                }
+
+                @Override
+                public Type visitLoad(Load node, Void context)
+                {
+                    return node.getType();
+                }
+
+                @Override
+                public Type visitSelect(Select node, Void context)
+                {
+                    return typeOf(node.getIfTrue());
+                }
+
+                @Override
+                public Type visitSetLocal(SetLocal node, Void context)
+                {
+                    return getLocalType(node.getIndex());
+                }
+
+                @Override
+                public Type visitStore(Store node, Void context)
+                {
+                    return node.getType();
+                }
+
+                @Override
+                public Type visitUnary(Unary node, Void context)
+                {
+                    return node.getOp() == UnaryOp.EqZ ? Type.I32 : node.getType();
+                }
+            }, null);
+        }
+
+        private void pushInt(int value)
+        {
+            if (value >= -1 && value <= 5) {
+                mv.visitInsn(ICONST_0 + value);
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, value);
+            }
+            else {
+                mv.visitLdcInsn(value);
+            }
+        }
+
+        private void pushLong(long value)
+        {
+            if (value == 0L || value == 1L) {
+                mv.visitInsn(LCONST_0 + (int) value);
+            }
+            else {
+                mv.visitLdcInsn(value);
+            }
+        }
+
+        private void pushFloat(float value)
+        {
+            int bits = Float.floatToRawIntBits(value);
+            if (bits == 0 || value == 1.0f || value == 2.0f) {
+                mv.visitInsn(FCONST_0 + (int) value);
+            }
+            else {
+                mv.visitLdcInsn(value);
+            }
+        }
+
+        private void pushDouble(double value)
+        {
+            long bits = Double.doubleToRawLongBits(value);
+            if (bits == 0L || value == 1.0d) {
+                mv.visitInsn(DCONST_0 + (int) value);
+            }
+            else {
+                mv.visitLdcInsn(value);
+            }
+        }
+
+        private void pushLiteral(Literal<?, ?> literal)
+        {
+            switch (literal.getType()) {
+                case I32:
+                    pushInt(literal.getI32());
+                    return;
+                case I64:
+                    pushLong(literal.getI64());
+                    return;
+                case F32:
+                    pushFloat(literal.getF32());
+                    return;
+                case F64:
+                    pushDouble(literal.getF64());
+                    return;
+            }
+            throw new IllegalStateException();
+        }
+
+        private void pushZero(Type type)
+        {
+            switch (type) {
+                case I32:
+                    mv.visitInsn(ICONST_0);
+                    return;
+                case I64:
+                    mv.visitInsn(LCONST_0);
+                    return;
+                case F32:
+                    mv.visitInsn(FCONST_0);
+                    return;
+                case F64:
+                    mv.visitInsn(DCONST_0);
+                    return;
+            }
+            throw new IllegalStateException();
+        }
+
+        private void pop(Type type)
+        {
+            if (type == Type.I64 || type == Type.F64) {
+                mv.visitInsn(POP2);
+            }
+            else if (type != Type.NONE && type != Type.UNREACHABLE) {
+                mv.visitInsn(POP);
+            }
+        }
+
+        private void invokeStatic(String owner, String name, String descriptor)
+        {
+            mv.visitMethodInsn(INVOKESTATIC, owner, name, descriptor, false);
+        }
+
+        private void throwTrap(Trap trap)
+        {
+            String exception = owner + "$" + trap.getClassName();
+            mv.visitMethodInsn(INVOKESTATIC, exception, "get", "()L" + exception + ";", false);
+            mv.visitInsn(ATHROW);
+        }
+
+        private void compileShiftCount(Node node, Type type)
+        {
+            compileExpression(node);
+            if (type == Type.I64) {
+                mv.visitInsn(L2I);
+            }
+        }
+
+        private void compileFlipped(Node node, Type type)
+        {
+            if (node instanceof Const) {
+                Literal<?, ?> literal = ((Const) node).getLiteral();
+                if (type == Type.I32) {
+                    pushInt(literal.getI32() ^ Integer.MIN_VALUE);
+                }
+                else {
+                    pushLong(literal.getI64() ^ Long.MIN_VALUE);
+                }
+            }
+            else if (type == Type.I32) {
+                compileExpression(node);
+                pushInt(Integer.MIN_VALUE);
+                mv.visitInsn(IXOR);
+            }
+            else {
+                compileExpression(node);
+                pushLong(Long.MIN_VALUE);
+                mv.visitInsn(LXOR);
+            }
+        }
+
+        private void compilePointer(Node ptr, int offset)
+        {
+            if (ptr instanceof Const) {
+                pushInt(((Const) ptr).getLiteral().getI32() + offset);
+                return;
+            }
+            compileExpression(ptr);
+            if (offset != 0) {
+                pushInt(offset);
+                mv.visitInsn(IADD);
+            }
+        }
+
+        private void compileConditionValue(Node node)
+        {
+            Label isFalse = new Label();
+            Label end = new Label();
+            compileJump(node, false, isFalse);
+            mv.visitInsn(ICONST_1);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(isFalse);
+            mv.visitInsn(ICONST_0);
+            mv.visitLabel(end);
+        }
+
+        private void compileJump(Node node, boolean when, Label target)
+        {
+            if (node instanceof Binary) {
+                Binary binary = (Binary) node;
+                switch (binary.getOp()) {
+                    case CondAnd: {
+                        if (when) {
+                            Label skip = new Label();
+                            compileJump(binary.getLeft(), false, skip);
+                            compileJump(binary.getRight(), true, target);
+                            mv.visitLabel(skip);
+                        }
+                        else {
+                            compileJump(binary.getLeft(), false, target);
+                            compileJump(binary.getRight(), false, target);
+                        }
+                        return;
+                    }
+                    case CondOr: {
+                        if (when) {
+                            compileJump(binary.getLeft(), true, target);
+                            compileJump(binary.getRight(), true, target);
+                        }
+                        else {
+                            Label skip = new Label();
+                            compileJump(binary.getLeft(), true, skip);
+                            compileJump(binary.getRight(), false, target);
+                            mv.visitLabel(skip);
+                        }
+                        return;
+                    }
+                }
+                if (binary.getOp().isBoolean()) {
+                    compileRelationJump(binary, when, target);
+                    return;
+                }
+            }
+            else if (node instanceof Unary && ((Unary) node).getOp() == UnaryOp.EqZ) {
+                Node value = ((Unary) node).getValue();
+                if (typeOf(value) == Type.I64) {
+                    compileExpression(value);
+                    mv.visitInsn(LCONST_0);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(when ? IFEQ : IFNE, target);
+                }
+                else {
+                    compileJump(value, !when, target);
+                }
+                return;
+            }
+            compileExpression(node);
+            mv.visitJumpInsn(when ? IFNE : IFEQ, target);
+        }
+
+        private void compileRelationJump(Binary node, boolean when, Label target)
+        {
+            int jump = getRelationJump(node.getOp());
+            int opcode = when ? jump : negateJump(jump);
+            // A relation's own type is its I32 result, so the operands have to be typed separately.
+            Type type = typeOf(node.getLeft());
+            if (type == Type.UNREACHABLE) {
+                type = typeOf(node.getRight());
+            }
+            switch (type) {
+                case I32:
+                case I64: {
+                    boolean unsigned = isUnsignedRelation(node.getOp());
+                    if (unsigned) {
+                        compileFlipped(node.getLeft(), type);
+                        compileFlipped(node.getRight(), type);
+                    }
+                    else {
+                        compileExpression(node.getLeft());
+                        Node right = node.getRight();
+                        if (type == Type.I32 && right instanceof Const && ((Const) right).getLiteral().getI32() == 0) {
+                            mv.visitJumpInsn(opcode, target);
+                            return;
+                        }
+                        compileExpression(right);
+                    }
+                    if (type == Type.I32) {
+                        mv.visitJumpInsn(opcode + (IF_ICMPEQ - IFEQ), target);
+                    }
+                    else {
+                        mv.visitInsn(LCMP);
+                        mv.visitJumpInsn(opcode, target);
+                    }
+                    return;
+                }
+                case F32:
+                case F64: {
+                    // NaN must fail the relation being tested, so bias the compare away from its passing side.
+                    boolean biasGreater = jump == IFLT || jump == IFLE;
+                    compileExpression(node.getLeft());
+                    compileExpression(node.getRight());
+                    if (type == Type.F32) {
+                        mv.visitInsn(biasGreater ? FCMPG : FCMPL);
+                    }
+                    else {
+                        mv.visitInsn(biasGreater ? DCMPG : DCMPL);
+                    }
+                    mv.visitJumpInsn(opcode, target);
+                    return;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private void compileConditional(Node condition, Node ifTrue, Node ifFalse)
+        {
+            Label isFalse = new Label();
+            Label end = new Label();
+            compileJump(condition, false, isFalse);
+            compileExpression(ifTrue);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(isFalse);
+            compileExpression(ifFalse);
+            mv.visitLabel(end);
+        }
+
+        private void compileStatement(Node node)
+        {
+            node.accept(new Visitor<Void, Void>()
+            {
+                @Override
+                protected Void visitNode(Node node, Void context)
+                {
+                    compileExpression(node);
+                    pop(typeOf(node));
+                    return null;
+                }
+
+                @Override
+                public Void visitBlock(Block node, Void context)
+                {
+                    node.getChildren().forEach(BytecodeFunctionCompiler.Instance.this::compileStatement);
+                    return null;
+                }
+
+                @Override
+                public Void visitBreak(Break node, Void context)
+                {
+                    Label target = breakTargets.get(node.getTarget());
+                    checkState(target != null, "Unknown break target: %s", node.getTarget());
+                    mv.visitJumpInsn(GOTO, target);
+                    return null;
+                }
+
+                @Override
+                public Void visitBreakTable(BreakTable node, Void context)
+                {
+                    Label defaultTarget = requireNonNull(breakTargets.get(node.getDefaultTarget()));
+                    compileExpression(node.getCondition());
+                    List<Name> targets = node.getTargets();
+                    if (targets.isEmpty()) {
+                        mv.visitInsn(POP);
+                        mv.visitJumpInsn(GOTO, defaultTarget);
+                        return null;
+                    }
+                    Label[] labels = new Label[targets.size()];
+                    for (int i = 0; i < labels.length; ++i) {
+                        labels[i] = requireNonNull(breakTargets.get(targets.get(i)));
+                    }
+                    mv.visitTableSwitchInsn(0, labels.length - 1, defaultTarget, labels);
+                    return null;
+                }
+
+                @Override
+                public Void visitIf(If node, Void context)
+                {
+                    Label isFalse = new Label();
+                    compileJump(node.getCondition(), false, isFalse);
+                    compileStatement(node.getIfTrue());
+                    if (node.getIfFalse() instanceof Nop) {
+                        mv.visitLabel(isFalse);
+                    }
+                    else {
+                        Label end = new Label();
+                        mv.visitJumpInsn(GOTO, end);
+                        mv.visitLabel(isFalse);
+                        compileStatement(node.getIfFalse());
+                        mv.visitLabel(end);
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visitLabel(com.wrmsr.wava.core.node.Label node, Void context)
+                {
+                    Label end = new Label();
+                    checkState(breakTargets.put(node.getName(), end) == null);
+                    compileStatement(node.getBody());
+                    breakTargets.remove(node.getName());
+                    mv.visitLabel(end);
+                    return null;
+                }
+
+                @Override
+                public Void visitLoop(Loop node, Void context)
+                {
+                    Label head = new Label();
+                    mv.visitLabel(head);
+                    checkState(breakTargets.put(node.getName(), head) == null);
+                    compileStatement(node.getBody());
+                    breakTargets.remove(node.getName());
+                    mv.visitJumpInsn(GOTO, head);
+                    return null;
+                }
+
+                @Override
+                public Void visitNop(Nop node, Void context)
+                {
+                    return null;
+                }
+
+                @Override
+                public Void visitReturn(Return node, Void context)
+                {
+                    if (node.getValue() instanceof Nop) {
+                        mv.visitInsn(RETURN);
+                    }
+                    else {
+                        compileExpression(node.getValue());
+                        mv.visitInsn(getAsmType(typeOf(node.getValue())).getOpcode(IRETURN));
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visitSetLocal(SetLocal node, Void context)
+                {
+                    compileExpression(node.getValue());
+                    mv.visitVarInsn(getAsmType(getLocalType(node.getIndex())).getOpcode(ISTORE), getSlot(node.getIndex()));
+                    return null;
+                }
+
+                @Override
+                public Void visitSwitch(Switch node, Void context)
+                {
+                    Label end = new Label();
+                    Label defaultLabel = end;
+                    TreeMap<Integer, Label> cases = new TreeMap<>();
+                    Label[] entryLabels = new Label[node.getEntries().size()];
+                    for (int i = 0; i < entryLabels.length; ++i) {
+                        entryLabels[i] = new Label();
+                        for (Switch.Value value : node.getEntries().get(i).getValues()) {
+                            if (value instanceof Switch.IntValue) {
+                                checkState(cases.put(((Switch.IntValue) value).getValue(), entryLabels[i]) == null);
+                            }
+                            else {
+                                defaultLabel = entryLabels[i];
+                            }
+                        }
+                    }
+
+                    compileExpression(node.getCondition());
+                    if (cases.isEmpty()) {
+                        mv.visitInsn(POP);
+                        mv.visitJumpInsn(GOTO, defaultLabel);
+                    }
+                    else {
+                        int lo = cases.firstKey();
+                        int hi = cases.lastKey();
+                        long tableCost = 4L + ((long) hi - lo + 1) + 3L * 3;
+                        long lookupCost = 3L + 2L * cases.size() + 3L * cases.size();
+                        if (tableCost <= lookupCost) {
+                            Label[] labels = new Label[hi - lo + 1];
+                            for (int i = 0; i < labels.length; ++i) {
+                                labels[i] = cases.getOrDefault(lo + i, defaultLabel);
+                            }
+                            mv.visitTableSwitchInsn(lo, hi, defaultLabel, labels);
+                        }
+                        else {
+                            mv.visitLookupSwitchInsn(
+                                    defaultLabel,
+                                    cases.keySet().stream().mapToInt(Integer::intValue).toArray(),
+                                    cases.values().toArray(new Label[cases.size()]));
+                        }
+                    }
+
+                    for (int i = 0; i < entryLabels.length; ++i) {
+                        mv.visitLabel(entryLabels[i]);
+                        compileStatement(node.getEntries().get(i).getBody());
+                    }
+                    mv.visitLabel(end);
+                    return null;
+                }
+
+                @Override
+                public Void visitUnreachable(Unreachable node, Void context)
+                {
+                    throwTrap(Trap.UNREACHABLE);
+                    return null;
+                }
+            }, null);
+        }
+
+        private void compileExpression(Node node)
+        {
+            node.accept(new Visitor<Void, Void>()
+            {
+                @Override
+                protected Void visitNode(Node node, Void context)
+                {
+                    throw new IllegalStateException(node.toString());
+                }
+
+                @Override
+                public Void visitBinary(Binary node, Void context)
+                {
+                    if (isCondition(node)) {
+                        compileConditionValue(node);
+                        return null;
+                    }
+                    Type type = node.getType();
+                    org.objectweb.asm.Type asmType = getAsmType(type);
+                    String box = type == Type.I32 ? "java/lang/Integer" : "java/lang/Long";
+                    String primitive = getDescriptor(type);
+                    switch (node.getOp()) {
+                        case DivU:
+                        case RemU: {
+                            OptionalInt shift = getPowerOfTwoShift(node.getRight());
+                            compileExpression(node.getLeft());
+                            if (shift.isPresent() && node.getOp() == BinaryOp.DivU) {
+                                pushInt(shift.getAsInt());
+                                mv.visitInsn(asmType.getOpcode(IUSHR));
+                            }
+                            else if (shift.isPresent()) {
+                                if (type == Type.I32) {
+                                    pushInt((1 << shift.getAsInt()) - 1);
+                                }
+                                else {
+                                    pushLong((1L << shift.getAsInt()) - 1);
+                                }
+                                mv.visitInsn(asmType.getOpcode(IAND));
+                            }
+                            else if (isConst(node.getRight(), v -> v != 0)) {
+                                compileExpression(node.getRight());
+                                invokeStatic(
+                                        box,
+                                        node.getOp() == BinaryOp.DivU ? "divideUnsigned" : "remainderUnsigned",
+                                        "(" + primitive + primitive + ")" + primitive);
+                            }
+                            else {
+                                compileExpression(node.getRight());
+                                invokeStatic(
+                                        owner,
+                                        node.getOp() == BinaryOp.DivU ? "_divideUnsigned" : "_remainderUnsigned",
+                                        "(" + primitive + primitive + ")" + primitive);
+                            }
+                            return null;
+                        }
+                        case DivS:
+                        case RemS: {
+                            if (isConst(node.getRight(), v -> v != 0 && (v != -1 || node.getOp() == BinaryOp.RemS))) {
+                                break;
+                            }
+                            compileExpression(node.getLeft());
+                            compileExpression(node.getRight());
+                            invokeStatic(
+                                    owner,
+                                    node.getOp() == BinaryOp.DivS ? "_divideSigned" : "_remainderSigned",
+                                    "(" + primitive + primitive + ")" + primitive);
+                            return null;
+                        }
+                        case RotL:
+                        case RotR: {
+                            compileExpression(node.getLeft());
+                            compileShiftCount(node.getRight(), type);
+                            invokeStatic(box, node.getOp() == BinaryOp.RotL ? "rotateLeft" : "rotateRight", "(" + primitive + "I)" + primitive);
+                            return null;
+                        }
+                        case Shl:
+                        case ShrS:
+                        case ShrU: {
+                            compileExpression(node.getLeft());
+                            compileShiftCount(node.getRight(), type);
+                            mv.visitInsn(asmType.getOpcode(node.getOp() == BinaryOp.Shl ? ISHL : node.getOp() == BinaryOp.ShrS ? ISHR : IUSHR));
+                            return null;
+                        }
+                        case CopySign:
+                        case Min:
+                        case Max: {
+                            compileExpression(node.getLeft());
+                            compileExpression(node.getRight());
+                            invokeStatic(
+                                    "java/lang/Math",
+                                    node.getOp() == BinaryOp.CopySign ? "copySign" : node.getOp() == BinaryOp.Min ? "min" : "max",
+                                    "(" + primitive + primitive + ")" + primitive);
+                            return null;
+                        }
+                    }
+                    int opcode;
+                    switch (node.getOp()) {
+                        case Add:
+                            opcode = IADD;
+                            break;
+                        case Sub:
+                            opcode = ISUB;
+                            break;
+                        case Mul:
+                            opcode = IMUL;
+                            break;
+                        case DivS:
+                        case Div:
+                            opcode = IDIV;
+                            break;
+                        case RemS:
+                            opcode = IREM;
+                            break;
+                        case And:
+                            opcode = IAND;
+                            break;
+                        case Or:
+                            opcode = IOR;
+                            break;
+                        case Xor:
+                            opcode = IXOR;
+                            break;
+                        default:
+                            throw new IllegalStateException(node.getOp().toString());
+                    }
+                    compileExpression(node.getLeft());
+                    compileExpression(node.getRight());
+                    mv.visitInsn(asmType.getOpcode(opcode));
+                    return null;
+                }
+
+                @Override
+                public Void visitCall(Call node, Void context)
+                {
+                    Call.Target target = node.getTarget();
+                    if (target instanceof Call.HostTarget) {
+                        HostOp op = ((Call.HostTarget) target).getOp();
+                        switch (op) {
+                            case PageSize:
+                                mv.visitLdcInsn(Memory.PAGE_SIZE);
+                                return null;
+                            case CurrentMemory:
+                                mv.visitVarInsn(ALOAD, 0);
+                                mv.visitMethodInsn(INVOKEVIRTUAL, owner, "_currentMemory", "()I", false);
+                                return null;
+                            case GrowMemory:
+                                mv.visitVarInsn(ALOAD, 0);
+                                compileExpression(node.getOperands().get(0));
+                                mv.visitMethodInsn(INVOKEVIRTUAL, owner, "_growMemory", "(I)I", false);
+                                return null;
+                            case CheckAddress:
+                                mv.visitVarInsn(ALOAD, 0);
+                                compileExpression(node.getOperands().get(0));
+                                compileExpression(node.getOperands().get(1));
+                                mv.visitMethodInsn(INVOKEVIRTUAL, owner, "_checkAddress", "(II)I", false);
+                                return null;
+                        }
+                        Type spillType = op == HostOp.SpillPut ? node.getSignature().getArguments().get(1) : node.getSignature().getResult();
+                        mv.visitVarInsn(ALOAD, 0);
+                        mv.visitFieldInsn(GETFIELD, owner, CallCompilerImpl.getSpillFieldName(spillType), "[" + getDescriptor(spillType));
+                        switch (op) {
+                            case SpillPut:
+                                checkArgument(node.getOperands().size() == 2);
+                                compileExpression(node.getOperands().get(0));
+                                compileExpression(node.getOperands().get(1));
+                                mv.visitInsn(getAsmType(spillType).getOpcode(IASTORE));
+                                return null;
+                            case SpillGet:
+                                checkArgument(node.getOperands().size() == 1);
+                                compileExpression(node.getOperands().get(0));
+                                mv.visitInsn(getAsmType(spillType).getOpcode(IALOAD));
+                                return null;
+                            default:
+                                throw new IllegalArgumentException();
+                        }
+                    }
+
+                    String descriptor = getMethodDescriptor(node.getSignature());
+                    mv.visitVarInsn(ALOAD, 0);
+                    if (target instanceof Call.DirectTarget) {
+                        node.getOperands().forEach(BytecodeFunctionCompiler.Instance.this::compileExpression);
+                        Name name = ((Call.DirectTarget) target).getName();
+                        if (staticClasses.containsKey(name)) {
+                            mv.visitMethodInsn(INVOKESTATIC, staticClasses.get(name), name.get(), getStaticMethodDescriptor(node.getSignature()), false);
+                        }
+                        else {
+                            mv.visitMethodInsn(INVOKEVIRTUAL, owner, name.get(), descriptor, false);
+                        }
+                    }
+                    else if (target instanceof Call.ImportTarget && stubClass.isPresent()) {
+                        mv.visitFieldInsn(GETFIELD, owner, "_stub", "L" + stubClass.get() + ";");
+                        node.getOperands().forEach(BytecodeFunctionCompiler.Instance.this::compileExpression);
+                        mv.visitMethodInsn(INVOKEVIRTUAL, stubClass.get(), ((Call.ImportTarget) target).getName().get(), descriptor, false);
+                    }
+                    else if (target instanceof Call.ImportTarget) {
+                        String iface = owner + "$" + node.getSignature().getChars().toUpperCase();
+                        mv.visitFieldInsn(GETFIELD, owner, ((Call.ImportTarget) target).getName().get(), "L" + iface + ";");
+                        node.getOperands().forEach(BytecodeFunctionCompiler.Instance.this::compileExpression);
+                        mv.visitMethodInsn(INVOKEINTERFACE, iface, "invoke", descriptor, true);
+                    }
+                    else {
+                        throw new IllegalStateException();
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visitCallIndirect(CallIndirect node, Void context)
+                {
+                    String chars = node.getSignature().getChars();
+                    String iface = methodHandleTables ? "java/lang/invoke/MethodHandle" : owner + "$" + chars.toUpperCase();
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, owner, "_" + chars + "Table", "[L" + iface + ";");
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, owner, "_tableIndices", "[I");
+                    compileExpression(node.getTarget());
+                    mv.visitInsn(IALOAD);
+                    mv.visitInsn(AALOAD);
+                    node.getOperands().forEach(BytecodeFunctionCompiler.Instance.this::compileExpression);
+                    if (methodHandleTables) {
+                        mv.visitMethodInsn(INVOKEVIRTUAL, iface, "invokeExact", getMethodDescriptor(node.getSignature()), false);
+                    }
+                    else {
+                        mv.visitMethodInsn(INVOKEINTERFACE, iface, "invoke", getMethodDescriptor(node.getSignature()), true);
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visitConst(Const node, Void context)
+                {
+                    pushLiteral(node.getLiteral());
+                    return null;
+                }
+
+                @Override
+                public Void visitGetLocal(GetLocal node, Void context)
+                {
+                    mv.visitVarInsn(getAsmType(getLocalType(node.getIndex())).getOpcode(ILOAD), getSlot(node.getIndex()));
+                    return null;
+                }
+
+                @Override
+                public Void visitIf(If node, Void context)
+                {
+                    compileConditional(node.getCondition(), node.getIfTrue(), node.getIfFalse());
+                    return null;
+                }
+
+                @Override
+                public Void visitLoad(Load node, Void context)
+                {
+                    mv.visitVarInsn(ALOAD, 0);
+                    compilePointer(node.getPtr(), node.getOffset());
+                    mv.visitMethodInsn(
+                            INVOKEVIRTUAL,
+                            owner,
+                            LoadStoreCompilerImpl.getLoadMethodName(node),
+                            "(I)" + getDescriptor(node.getType()),
+                            false);
+                    return null;
+                }
+
+                @Override
+                public Void visitSelect(Select node, Void context)
+                {
+                    compileConditional(node.getCondition(), node.getIfTrue(), node.getIfFalse());
+                    return null;
+                }
+
+                @Override
+                public Void visitSetLocal(SetLocal node, Void context)
+                {
+                    Type type = getLocalType(node.getIndex());
+                    compileExpression(node.getValue());
+                    mv.visitInsn(getSlotSize(type) == 2 ? DUP2 : DUP);
+                    mv.visitVarInsn(getAsmType(type).getOpcode(ISTORE), getSlot(node.getIndex()));
+                    return null;
+                }
+
+                @Override
+                public Void visitStore(Store node, Void context)
+                {
+                    String descriptor = getDescriptor(node.getType());
+                    mv.visitVarInsn(ALOAD, 0);
+                    compilePointer(node.getPtr(), node.getOffset());
+                    compileExpression(node.getValue());
+                    mv.visitMethodInsn(
+                            INVOKEVIRTUAL,
+                            owner,
+                            LoadStoreCompilerImpl.getStoreMethodName(node),
+                            "(I" + descriptor + ")" + descriptor,
+                            false);
+                    return null;
+                }
+
+                @Override
+                public Void visitUnary(Unary node, Void context)
+                {
+                    if (isCondition(node)) {
+                        compileConditionValue(node);
+                        return null;
+                    }
+                    compileExpression(node.getValue());
+                    compileUnaryOp(node);
+                    return null;
+                }
+            }, null);
+        }
+
+        private void compileUnaryOp(Unary node)
+        {
+            Type type = node.getType();
+            String primitive = getDescriptor(type);
+            String box = type == Type.I32 ? "java/lang/Integer" : "java/lang/Long";
+            switch (node.getOp()) {
+                case Clz:
+                case Ctz:
+                case Popcnt: {
+                    String name = node.getOp() == UnaryOp.Clz ? "numberOfLeadingZeros" : node.getOp() == UnaryOp.Ctz ? "numberOfTrailingZeros" : "bitCount";
+                    invokeStatic(box, name, "(" + primitive + ")I");
+                    if (type == Type.I64) {
+                        mv.visitInsn(I2L);
+                    }
+                    return;
+                }
+                case Neg:
+                    mv.visitInsn(getAsmType(type).getOpcode(INEG));
+                    return;
+                case Abs:
+                    invokeStatic("java/lang/Math", "abs", "(" + primitive + ")" + primitive);
+                    return;
+                case Ceil:
+                case Floor:
+                case Sqrt: {
+                    String name = node.getOp() == UnaryOp.Ceil ? "ceil" : node.getOp() == UnaryOp.Floor ? "floor" : "sqrt";
+                    if (type == Type.F32) {
+                        mv.visitInsn(F2D);
+                        invokeStatic("java/lang/Math", name, "(D)D");
+                        mv.visitInsn(D2F);
+                    }
+                    else {
+                        invokeStatic("java/lang/Math", name, "(D)D");
+                    }
+                    return;
+                }
+                case Nearest:
+                    if (type == Type.F32) {
+                        invokeStatic("java/lang/Math", "round", "(F)I");
+                        mv.visitInsn(I2F);
+                    }
+                    else {
+                        invokeStatic("java/lang/Math", "round", "(D)J");
+                        mv.visitInsn(L2D);
+                    }
+                    return;
+                case Trunc:
+                    if (type == Type.F32) {
+                        mv.visitInsn(F2I);
+                        mv.visitInsn(I2F);
+                    }
+                    else {
+                        mv.visitInsn(D2L);
+                        mv.visitInsn(L2D);
+                    }
+                    return;
+                case ExtendSInt32:
+                    mv.visitInsn(I2L);
+                    return;
+                case ExtendUInt32:
+                    mv.visitInsn(I2L);
+                    pushLong(0xFFFFFFFFL);
+                    mv.visitInsn(LAND);
+                    return;
+                case WrapInt64:
+                    mv.visitInsn(L2I);
+                    return;
+                case TruncSFloat32:
+                case TruncUFloat32:
+                case TruncSFloat64:
+                case TruncUFloat64: {
+                    boolean fromFloat = node.getOp() == UnaryOp.TruncSFloat32 || node.getOp() == UnaryOp.TruncUFloat32;
+                    boolean signed = node.getOp() == UnaryOp.TruncSFloat32 || node.getOp() == UnaryOp.TruncSFloat64;
+                    invokeStatic(
+                            owner,
+                            "_truncate" + (fromFloat ? "Float" : "Double") + "To" + (signed ? "Signed" : "Unsigned") + (type == Type.I32 ? "Integer" : "Long"),
+                            "(" + (fromFloat ? "F" : "D") + ")" + primitive);
+                    return;
+                }
+                case ReinterpretFloat:
+                    if (type == Type.I32) {
+                        invokeStatic("java/lang/Float", "floatToRawIntBits", "(F)I");
+                    }
+                    else {
+                        invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+                    }
+                    return;
+                case ConvertSInt32:
+                    mv.visitInsn(type == Type.F32 ? I2F : I2D);
+                    return;
+                case ConvertUInt32:
+                    mv.visitInsn(I2L);
+                    pushLong(0xFFFFFFFFL);
+                    mv.visitInsn(LAND);
+                    mv.visitInsn(type == Type.F32 ? L2F : L2D);
+                    return;
+                case ConvertSInt64:
+                    mv.visitInsn(type == Type.F32 ? L2F : L2D);
+                    return;
+                case PromoteFloat32:
+                    mv.visitInsn(F2D);
+                    return;
+                case DemoteFloat64:
+                    mv.visitInsn(D2F);
+                    return;
+                case ReinterpretInt:
+                    if (type == Type.F32) {
+                        invokeStatic("java/lang/Float", "intBitsToFloat", "(I)F");
+                    }
+                    else {
+                        invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D");
+                    }
+                    return;
+            }
+            throw new IllegalStateException(node.getOp().toString());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.bytecode;
+
+import com.google.common.collect.ImmutableMap;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.compile.module.MultiModuleCompilerConfig;
+import com.wrmsr.wava.compile.module.MultiModuleCompilerImpl;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.java.lang.JArg;
+import com.wrmsr.wava.java.lang.JQualifiedName;
+import com.wrmsr.wava.java.lang.JTypeSpecifier;
+import com.wrmsr.wava.java.lang.compilationUnit.JCompilationUnit;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+/*
+Emits the function chunk classes and the final module class as class files. The base class is still produced as a
+compilation unit so its imports, tables and memory helpers share one implementation with the source backend.
+*/
+public final class BytecodeModuleCompiler
+{
+    public static final class CompiledModule
+    {
+        private final JCompilationUnit baseClass;
+        private final Map<String, byte[]> classFiles;
+
+        public CompiledModule(JCompilationUnit baseClass, Map<String, byte[]> classFiles)
+        {
+            this.baseClass = requireNonNull(baseClass);
+            this.classFiles = ImmutableMap.copyOf(classFiles);
+        }
+
+        public JCompilationUnit getBaseClass()
+        {
+            return baseClass;
+        }
+
+        public Map<String, byte[]> getClassFiles()
+        {
+            return classFiles;
+        }
+    }
+
+    private final MultiModuleCompilerImpl sourceModuleCompiler;
+    private final ModuleCompilerConfig moduleCompilerConfig;
+    private final MultiModuleCompilerConfig multiModuleCompilerConfig;
+
+    public BytecodeModuleCompiler(
+            MultiModuleCompilerImpl sourceModuleCompiler,
+            ModuleCompilerConfig moduleCompilerConfig,
+            MultiModuleCompilerConfig multiModuleCompilerConfig)
+    {
+        this.sourceModuleCompiler = requireNonNull(sourceModuleCompiler);
+        this.moduleCompilerConfig = requireNonNull(moduleCompilerConfig);
+        this.multiModuleCompilerConfig = requireNonNull(multiModuleCompilerConfig);
+    }
+
+    public CompiledModule compileModule(Module module)
+    {
+        String prefix = sourceModuleCompiler.getPackageName().map(n -> n.join().replace('.', '/') + "/").orElse("");
+        String moduleName = prefix + module.getName().get();
+        String baseName = moduleName + "$0";
+        String ctorDescriptor = getCtorDescriptor(sourceModuleCompiler.compileCtorArgs(), baseName);
+        List<List<Function>> chunks = sourceModuleCompiler.partitionFunctions(module);
+
+        ImmutableMap.Builder<String, byte[]> classFiles = ImmutableMap.builder();
+        if (multiModuleCompilerConfig.isStaticFunctionClasses()) {
+            compileStaticFunctionClasses(module, moduleName, baseName, ctorDescriptor, chunks, classFiles);
+        }
+        else {
+            compileFunctionClassChain(moduleName, baseName, ctorDescriptor, chunks, classFiles);
+        }
+        return new CompiledModule(sourceModuleCompiler.compileBaseClass(module), classFiles.build());
+    }
+
+    private void compileFunctionClassChain(
+            String moduleName,
+            String baseName,
+            String ctorDescriptor,
+            List<List<Function>> chunks,
+            ImmutableMap.Builder<String, byte[]> classFiles)
+    {
+        BytecodeFunctionCompiler functionCompiler = new BytecodeFunctionCompiler(baseName, ImmutableMap.of(), moduleCompilerConfig);
+        int depth = 0;
+        for (List<Function> chunk : chunks) {
+            String chunkName = moduleName + "$" + (depth + 1);
+            ClassWriter cw = newClassWriter();
+            cw.visit(V1_8, ACC_ABSTRACT | ACC_SUPER, chunkName, null, moduleName + "$" + depth, null);
+            compileCtor(cw, ACC_PROTECTED, moduleName + "$" + depth, ctorDescriptor);
+            for (Function function : chunk) {
+                functionCompiler.compileFunction(cw, function);
+            }
+            cw.visitEnd();
+            classFiles.put(chunkName, cw.toByteArray());
+            ++depth;
+        }
+
+        ClassWriter cw = newClassWriter();
+        cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, moduleName, null, moduleName + "$" + depth, null);
+        compileCtor(cw, ACC_PUBLIC, moduleName + "$" + depth, ctorDescriptor);
+        cw.visitEnd();
+        classFiles.put(moduleName, cw.toByteArray());
+    }
+
+    /*
+    Function chunks become unrelated holder classes of static methods, so the final class extends the base class
+    directly. It implements the base class's abstract function methods as bridges into the holders, which is all
+    tables and exports see.
+    */
+    private void compileStaticFunctionClasses(
+            Module module,
+            String moduleName,
+            String baseName,
+            String ctorDescriptor,
+            List<List<Function>> chunks,
+            ImmutableMap.Builder<String, byte[]> classFiles)
+    {
+        Map<Name, String> staticClasses = new LinkedHashMap<>();
+        int index = 0;
+        for (List<Function> chunk : chunks) {
+            String chunkName = moduleName + "$" + (++index);
+            chunk.forEach(f -> staticClasses.put(f.getName(), chunkName));
+        }
+        BytecodeFunctionCompiler functionCompiler = new BytecodeFunctionCompiler(baseName, staticClasses, moduleCompilerConfig);
+
+        index = 0;
+        for (List<Function> chunk : chunks) {
+            String chunkName = moduleName + "$" + (++index);
+            ClassWriter cw = newClassWriter();
+            cw.visit(V1_8, ACC_FINAL | ACC_SUPER, chunkName, null, "java/lang/Object", null);
+            for (Function function : chunk) {
+                functionCompiler.compileFunction(cw, function);
+            }
+            cw.visitEnd();
+            classFiles.put(chunkName, cw.toByteArray());
+        }
+
+        ClassWriter cw = newClassWriter();
+        cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, moduleName, null, baseName, null);
+        compileCtor(cw, ACC_PUBLIC, baseName, ctorDescriptor);
+        for (Function function : module.getFunctions().values()) {
+            compileBridge(cw, functionCompiler, staticClasses.get(function.getName()), function);
+        }
+        cw.visitEnd();
+        classFiles.put(moduleName, cw.toByteArray());
+    }
+
+    private static void compileBridge(ClassWriter cw, BytecodeFunctionCompiler functionCompiler, String staticClass, Function function)
+    {
+        Signature signature = function.getSignature();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, function.getName().get(), BytecodeFunctionCompiler.getMethodDescriptor(signature), null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        int slot = 1;
+        for (Type arg : signature.getArguments()) {
+            org.objectweb.asm.Type asmType = org.objectweb.asm.Type.getType(BytecodeFunctionCompiler.getDescriptor(arg));
+            mv.visitVarInsn(asmType.getOpcode(ILOAD), slot);
+            slot += asmType.getSize();
+        }
+        mv.visitMethodInsn(INVOKESTATIC, staticClass, function.getName().get(), functionCompiler.getStaticMethodDescriptor(signature), false);
+        mv.visitInsn(org.objectweb.asm.Type.getType(BytecodeFunctionCompiler.getDescriptor(signature.getResult())).getOpcode(IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static ClassWriter newClassWriter()
+    {
+        return new ClassWriter(ClassWriter.COMPUTE_FRAMES)
+        {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2)
+            {
+                // Only references to freshly constructed exceptions and helper fields are ever on the stack, and none
+                // of them survive a merge, so there is no need to load the generated classes to compute frames.
+                return "java/lang/Object";
+            }
+        };
+    }
+
+    private static void compileCtor(ClassWriter cw, int access, String superName, String descriptor)
+    {
+        MethodVisitor mv = cw.visitMethod(access, "<init>", descriptor, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        int slot = 1;
+        for (org.objectweb.asm.Type arg : org.objectweb.asm.Type.getArgumentTypes(descriptor)) {
+            mv.visitVarInsn(arg.getOpcode(ILOAD), slot);
+            slot += arg.getSize();
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", descriptor, false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static String getCtorDescriptor(List<JArg> args, String baseName)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (JArg arg : args) {
+            JTypeSpecifier type = arg.getType();
+            type.getArrays().forEach(a -> sb.append('['));
+            JQualifiedName name = type.getName();
+            if (name.size() == 1) {
+                String simple = name.get(0).get();
+                switch (simple) {
+                    case "int":
+                        sb.append('I');
+                        continue;
+                    case "long":
+                        sb.append('J');
+                        continue;
+                    case "float":
+                        sb.append('F');
+                        continue;
+                    case "double":
+                        sb.append('D');
+                        continue;
+                    case "boolean":
+                        sb.append('Z');
+                        continue;
+                }
+                // Unqualified names are the member types participants declare on the base class.
+                sb.append('L').append(baseName).append('$').append(simple).append(';');
+            }
+            else {
+                sb.append('L').append(name.join().replace('.', '/')).append(';');
+            }
+        }
+        return sb.append(")V").toString();
+    }
+}
@@ -15,8 +15,12 @@ package com.wrmsr.wava.compile.call;
 
 import com.google.common.collect.ImmutableList;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
 import com.wrmsr.wava.core.node.Call;
 import com.wrmsr.wava.core.op.HostOp;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Memory;
+import com.wrmsr.wava.core.unit.Module;
 import com.wrmsr.wava.java.lang.JAccess;
 import com.wrmsr.wava.java.lang.JArray;
 import com.wrmsr.wava.java.lang.JName;
@@ -31,6 +35,7 @@ import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
 import com.wrmsr.wava.java.lang.tree.expression.JNewArray;
+import com.wrmsr.wava.transform.Outlining;
 
 import javax.inject.Inject;
 
@@ -39,13 +44,25 @@ import java.util.Optional;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Sets.immutableEnumSet;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static java.util.Objects.requireNonNull;
 
 public final class CallCompilerImpl
         implements CallCompiler, ModuleCompilationParticipant
 {
+    private final Module module;
+    private final ModuleCompilerConfig moduleCompilerConfig;
+
     @Inject
-    public CallCompilerImpl()
+    public CallCompilerImpl(Module module, ModuleCompilerConfig moduleCompilerConfig)
+    {
+        this.module = requireNonNull(module);
+        this.moduleCompilerConfig = requireNonNull(moduleCompilerConfig);
+    }
+
+    public static String getSpillFieldName(Type type)
     {
+        return "_" + type.getChar() + "Spill";
     }
 
     @Override
@@ -56,7 +73,12 @@ public final class CallCompilerImpl
             name = JQualifiedName.of(((Call.DirectTarget) node.getTarget()).getName().get());
         }
         else if (node.getTarget() instanceof Call.ImportTarget) {
-            name = JQualifiedName.of("this", ((Call.ImportTarget) node.getTarget()).getName().get(), "invoke");
+            if (moduleCompilerConfig.getImportStubClass() != null) {
+                name = JQualifiedName.of("this", "_stub", ((Call.ImportTarget) node.getTarget()).getName().get());
+            }
+            else {
+                name = JQualifiedName.of("this", ((Call.ImportTarget) node.getTarget()).getName().get(), "invoke");
+            }
         }
         else if (node.getTarget() instanceof Call.HostTarget) {
             HostOp op = ((Call.HostTarget) node.getTarget()).getOp();
@@ -66,15 +88,26 @@ public final class CallCompilerImpl
                     return new JAssignment(
                             new JArrayAccess(
                                     new JIdent(
-                                            JQualifiedName.of("this", "_spill")),
+                                            JQualifiedName.of("this", getSpillFieldName(node.getSignature().getArguments().get(1)))),
                                     operands.get(0)),
                             operands.get(1));
                 case SpillGet:
                     checkArgument(operands.size() == 1);
                     return new JArrayAccess(
                             new JIdent(
-                                    JQualifiedName.of("this", "_spill")),
+                                    JQualifiedName.of("this", getSpillFieldName(node.getSignature().getResult()))),
                             operands.get(0));
+                case PageSize:
+                    return new JLiteral(Memory.PAGE_SIZE);
+                case CurrentMemory:
+                    name = JQualifiedName.of("this", "_currentMemory");
+                    break;
+                case GrowMemory:
+                    name = JQualifiedName.of("this", "_growMemory");
+                    break;
+                case CheckAddress:
+                    name = JQualifiedName.of("this", "_checkAddress");
+                    break;
                 default:
                     throw new IllegalArgumentException();
             }
@@ -87,23 +120,28 @@ public final class CallCompilerImpl
                 operands);
     }
 
+    // The spill arrays belong to the module instance rather than to a call. An outlined function writes its spill-outs
+    // in its epilog just before returning and its callsite reads them back straight after, so a recursive call can
+    // never see another's values. That holds only while nothing can run between the two, and only while the instance is
+    // used from one thread at a time.
     @Override
     public List<JDeclaration> createPreCtorDeclarations()
     {
-        return ImmutableList.of(
-                new JField(
+        return Outlining.getSpillSlotCounts(module).entrySet().stream()
+                .map(e -> new JField(
                         immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
                         new JTypeSpecifier(
-                                JQualifiedName.of("long"),
+                                JQualifiedName.of(e.getKey().getPrimitive().getName()),
                                 ImmutableList.of(JArray.EMPTY)),
-                        JName.of("_spill"),
+                        JName.of(getSpillFieldName(e.getKey())),
                         Optional.of(
                                 new JNewArray(
                                         new JTypeSpecifier(
-                                                JQualifiedName.of("long"),
+                                                JQualifiedName.of(e.getKey().getPrimitive().getName()),
                                                 ImmutableList.of(
                                                         new JArray(
-                                                                new JLiteral(64)))),
-                                        Optional.empty()))));
+                                                                new JLiteral(e.getValue())))),
+                                        Optional.empty()))))
+                .collect(toImmutableList());
     }
 }
@@ -14,6 +14,7 @@
 package com.wrmsr.wava.compile.call;
 
 import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
 import com.wrmsr.wava.core.node.CallIndirect;
 import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
@@ -27,26 +28,40 @@ import javax.inject.Inject;
 
 import java.util.List;
 
+import static java.util.Objects.requireNonNull;
+
 public final class CallIndirectCompilerImpl
         implements CallIndirectCompiler
 {
+    private final ModuleCompilerConfig moduleCompilerConfig;
+
     @Inject
-    public CallIndirectCompilerImpl()
+    public CallIndirectCompilerImpl(ModuleCompilerConfig moduleCompilerConfig)
     {
+        this.moduleCompilerConfig = requireNonNull(moduleCompilerConfig);
     }
 
     @Override
     public JExpression compileCallIndirect(CallIndirect node, JExpression target, List<JExpression> operands)
     {
+        JExpression entry = new JArrayAccess(
+                new JIdent(
+                        JQualifiedName.of("this", "_" + node.getSignature().getChars() + "Table")),
+                new JArrayAccess(
+                        new JIdent(
+                                JQualifiedName.of("this", "_tableIndices")),
+                        target));
+        if (moduleCompilerConfig.isMethodHandleTables()) {
+            return JMethodInvocation.of(
+                    JQualifiedName.of("_" + node.getSignature().getChars() + "Invoke"),
+                    ImmutableList.<JExpression>builder()
+                            .add(entry)
+                            .addAll(operands)
+                            .build());
+        }
         return new JMethodInvocation(
                 new JMemberAccess(
-                        new JArrayAccess(
-                                new JIdent(
-                                        JQualifiedName.of("this", "_" + node.getSignature().getChars() + "Table")),
-                                new JArrayAccess(
-                                        new JIdent(
-                                                JQualifiedName.of("this", "_tableIndices")),
-                                        target)),
+                        entry,
                         JName.of("invoke")),
                 ImmutableList.<JExpression>builder()
                         .addAll(operands)
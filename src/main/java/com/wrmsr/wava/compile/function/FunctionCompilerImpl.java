@@ -14,6 +14,7 @@
 package com.wrmsr.wava.compile.function;
 
 import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.BooleanAnalysis;
 import com.wrmsr.wava.compile.Compilation;
 import com.wrmsr.wava.compile.binary.BinaryCompiler;
 import com.wrmsr.wava.compile.call.CallCompiler;
@@ -21,6 +22,8 @@ import com.wrmsr.wava.compile.call.CallIndirectCompiler;
 import com.wrmsr.wava.compile.const_.ConstCompiler;
 import com.wrmsr.wava.compile.memory.LoadStoreCompiler;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.trap.Trap;
+import com.wrmsr.wava.compile.trap.TrapCompilerImpl;
 import com.wrmsr.wava.compile.unary.UnaryCompiler;
 import com.wrmsr.wava.core.node.Binary;
 import com.wrmsr.wava.core.node.Block;
@@ -44,27 +47,25 @@ import com.wrmsr.wava.core.node.Switch;
 import com.wrmsr.wava.core.node.Unary;
 import com.wrmsr.wava.core.node.Unreachable;
 import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.UnaryOp;
 import com.wrmsr.wava.core.type.Name;
 import com.wrmsr.wava.core.unit.Function;
-import com.wrmsr.wava.java.lang.JAccess;
 import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
-import com.wrmsr.wava.java.lang.JTypeSpecifier;
-import com.wrmsr.wava.java.lang.tree.JInheritance;
-import com.wrmsr.wava.java.lang.tree.declaration.JDeclaration;
+import com.wrmsr.wava.java.lang.op.JBinaryOp;
+import com.wrmsr.wava.java.lang.op.JUnaryOp;
 import com.wrmsr.wava.java.lang.tree.declaration.JMethod;
-import com.wrmsr.wava.java.lang.tree.declaration.JType;
 import com.wrmsr.wava.java.lang.tree.expression.JAssignment;
+import com.wrmsr.wava.java.lang.tree.expression.JBinary;
 import com.wrmsr.wava.java.lang.tree.expression.JConditional;
 import com.wrmsr.wava.java.lang.tree.expression.JExpression;
 import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
-import com.wrmsr.wava.java.lang.tree.expression.JNew;
+import com.wrmsr.wava.java.lang.tree.expression.JUnary;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
 import com.wrmsr.wava.java.lang.tree.statement.JBreak;
 import com.wrmsr.wava.java.lang.tree.statement.JCase;
 import com.wrmsr.wava.java.lang.tree.statement.JContinue;
-import com.wrmsr.wava.java.lang.tree.statement.JDoWhileLoop;
 import com.wrmsr.wava.java.lang.tree.statement.JEmpty;
 import com.wrmsr.wava.java.lang.tree.statement.JExpressionStatement;
 import com.wrmsr.wava.java.lang.tree.statement.JIf;
@@ -78,6 +79,7 @@ import com.wrmsr.wava.java.lang.tree.statement.JWhileLoop;
 import javax.inject.Inject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -86,10 +88,11 @@ import java.util.Optional;
 import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkState;
-import static com.google.common.collect.Sets.immutableEnumSet;
 import static com.wrmsr.wava.compile.Compilation.PRIMITIVE_TYPE_MAP;
 import static com.wrmsr.wava.compile.Compilation.compileArgs;
 import static com.wrmsr.wava.compile.Compilation.compileLocalDecls;
+import static com.wrmsr.wava.compile.Compilation.newBooleanToInt;
+import static com.wrmsr.wava.compile.Compilation.translateAnticondition;
 import static com.wrmsr.wava.compile.Compilation.translateCondition;
 import static com.wrmsr.wava.core.node.Nodes.noptional;
 import static com.wrmsr.wava.java.lang.tree.JTrees.jblockify;
@@ -126,21 +129,6 @@ public final class FunctionCompilerImpl
         this.unaryCompiler = requireNonNull(unaryCompiler);
     }
 
-    @Override
-    public List<JDeclaration> createPreCtorDeclarations()
-    {
-        return ImmutableList.of(
-                new JType(
-                        immutableEnumSet(JAccess.PUBLIC, JAccess.STATIC, JAccess.FINAL),
-                        JType.Kind.CLASS,
-                        JName.of("UnreachableException"),
-                        ImmutableList.of(
-                                new JInheritance(
-                                        JInheritance.Kind.EXTENDS,
-                                        JQualifiedName.of("java", "lang", "RuntimeException"))),
-                        ImmutableList.of()));
-    }
-
     @Override
     public List<JMethod> compileFunction(Function function)
     {
@@ -150,11 +138,14 @@ public final class FunctionCompilerImpl
     private final class Instance
     {
         private final Function function;
+        private final BooleanAnalysis booleanAnalysis;
         private final Set<Name> continueLabels = new HashSet<>();
+        private final Map<Name, Name> labelAliases = new HashMap<>();
 
         private Instance(Function function)
         {
             this.function = requireNonNull(function);
+            booleanAnalysis = BooleanAnalysis.analyze(function);
         }
 
         private JMethod compile()
@@ -167,15 +158,117 @@ public final class FunctionCompilerImpl
                     Optional.of(
                             jblockify(
                                     ImmutableList.of(
-                                            compileLocalDecls(function),
+                                            compileLocalDecls(function, booleanAnalysis.getBooleanLocals()),
                                             compileStatement(function.getBody())))));
         }
 
         private JExpression compileCondition(Node condition)
         {
+            if (booleanAnalysis.isBoolean(condition)) {
+                return compileBoolean(condition);
+            }
             return translateCondition(compileExpression(condition));
         }
 
+        private JExpression compileBoolean(Node curr)
+        {
+            checkState(booleanAnalysis.isBoolean(curr));
+            return curr.accept(new Visitor<Void, JExpression>()
+            {
+                @Override
+                protected JExpression visitNode(Node node, Void context)
+                {
+                    return translateCondition(compileExpression(node));
+                }
+
+                @Override
+                public JExpression visitBinary(Binary node, Void context)
+                {
+                    if (!BooleanAnalysis.BOOLEAN_PRESERVING_OPS.contains(node.getOp())) {
+                        return visitNode(node, context);
+                    }
+                    JBinaryOp jop;
+                    switch (node.getOp()) {
+                        case And:
+                            jop = JBinaryOp.BitwiseAnd;
+                            break;
+                        case Or:
+                            jop = JBinaryOp.BitwiseOr;
+                            break;
+                        case Xor:
+                            jop = JBinaryOp.BitwiseXor;
+                            break;
+                        default:
+                            throw new IllegalStateException();
+                    }
+                    return new JBinary(
+                            jop,
+                            compileBoolean(node.getLeft()),
+                            compileBoolean(node.getRight()));
+                }
+
+                @Override
+                public JExpression visitConst(Const node, Void context)
+                {
+                    return new JLiteral(node.getLiteral().getI32() != 0);
+                }
+
+                @Override
+                public JExpression visitGetLocal(GetLocal node, Void context)
+                {
+                    return JIdent.of(Compilation.getLocalName(function, node.getIndex()));
+                }
+
+                @Override
+                public JExpression visitIf(If node, Void context)
+                {
+                    return new JConditional(
+                            compileCondition(node.getCondition()),
+                            compileBoolean(node.getIfTrue()),
+                            compileBoolean(node.getIfFalse()));
+                }
+
+                @Override
+                public JExpression visitSelect(Select node, Void context)
+                {
+                    return new JConditional(
+                            compileCondition(node.getCondition()),
+                            compileBoolean(node.getIfTrue()),
+                            compileBoolean(node.getIfFalse()));
+                }
+
+                @Override
+                public JExpression visitSetLocal(SetLocal node, Void context)
+                {
+                    return JAssignment.of(
+                            JQualifiedName.of(Compilation.getLocalName(function, node.getIndex())),
+                            compileBoolean(node.getValue()));
+                }
+
+                @Override
+                public JExpression visitUnary(Unary node, Void context)
+                {
+                    checkState(node.getOp() == UnaryOp.EqZ);
+                    if (booleanAnalysis.isBoolean(node.getValue())) {
+                        return new JUnary(
+                                JUnaryOp.LogicalComplement,
+                                compileBoolean(node.getValue()));
+                    }
+                    return translateAnticondition(compileExpression(node.getValue()));
+                }
+            }, null);
+        }
+
+        private JExpression compileLocalAssignment(SetLocal node)
+        {
+            if (booleanAnalysis.isBooleanLocal(node.getIndex())) {
+                return compileBoolean(node);
+            }
+            return JAssignment.of(
+                    JQualifiedName.of(Compilation.getLocalName(function, node.getIndex())),
+                    compileExpression(node.getValue()));
+        }
+
         private JStatement compileStatement(Node curr)
         {
             return curr.accept(new Visitor<Object, JStatement>()
@@ -197,13 +290,14 @@ public final class FunctionCompilerImpl
                 @Override
                 public JStatement visitBreak(Break node, Object context)
                 {
+                    Name target = labelAliases.getOrDefault(node.getTarget(), node.getTarget());
                     if (continueLabels.contains(node.getTarget())) {
                         return new JContinue(
-                                Optional.of(JName.of(node.getTarget().get())));
+                                Optional.of(JName.of(target.get())));
                     }
                     else {
                         return new JBreak(
-                                Optional.of(JName.of(node.getTarget().get())));
+                                Optional.of(JName.of(target.get())));
                     }
                 }
 
@@ -255,11 +349,15 @@ public final class FunctionCompilerImpl
                 @Override
                 public JStatement visitLabel(Label node, Object context)
                 {
+                    if (node.getBody() instanceof Loop) {
+                        // Breaking the loop itself leaves the label too, so the label needs no statement of its own.
+                        checkState(!labelAliases.containsKey(node.getName()));
+                        labelAliases.put(node.getName(), ((Loop) node.getBody()).getName());
+                        return compileStatement(node.getBody());
+                    }
                     return new JLabeledStatement(
                             JName.of(node.getName().get()),
-                            new JDoWhileLoop(
-                                    jblockify(compileStatement(node.getBody())),
-                                    new JLiteral(false)));
+                            jblockify(compileStatement(node.getBody())));
                 }
 
                 @Override
@@ -287,6 +385,13 @@ public final class FunctionCompilerImpl
                             noptional(node.getValue()).map(FunctionCompilerImpl.Instance.this::compileExpression));
                 }
 
+                @Override
+                public JStatement visitSetLocal(SetLocal node, Object context)
+                {
+                    return new JExpressionStatement(
+                            compileLocalAssignment(node));
+                }
+
                 @Override
                 public JStatement visitSwitch(Switch node, Object context)
                 {
@@ -307,10 +412,7 @@ public final class FunctionCompilerImpl
                 @Override
                 public JStatement visitUnreachable(Unreachable node, Object context)
                 {
-                    return new JThrow(
-                            new JNew(
-                                    JTypeSpecifier.of("UnreachableException"),
-                                    ImmutableList.of()));
+                    return new JThrow(TrapCompilerImpl.compileTrap(Trap.UNREACHABLE));
                 }
             }, null);
         }
@@ -328,6 +430,9 @@ public final class FunctionCompilerImpl
                 @Override
                 public JExpression visitBinary(Binary expression, Void context)
                 {
+                    if (booleanAnalysis.isBoolean(expression) && BooleanAnalysis.BOOLEAN_PRESERVING_OPS.contains(expression.getOp())) {
+                        return newBooleanToInt(compileBoolean(expression));
+                    }
                     return binaryCompiler.compileBinary(
                             expression,
                             compileExpression(expression.getLeft()),
@@ -363,7 +468,11 @@ public final class FunctionCompilerImpl
                 @Override
                 public JExpression visitGetLocal(GetLocal expression, Void context)
                 {
-                    return JIdent.of(Compilation.getLocalName(function, expression.getIndex()));
+                    JExpression jexpression = JIdent.of(Compilation.getLocalName(function, expression.getIndex()));
+                    if (booleanAnalysis.isBooleanLocal(expression.getIndex())) {
+                        return newBooleanToInt(jexpression);
+                    }
+                    return jexpression;
                 }
 
                 @Override
@@ -395,9 +504,11 @@ public final class FunctionCompilerImpl
                 @Override
                 public JExpression visitSetLocal(SetLocal node, Void context)
                 {
-                    return JAssignment.of(
-                            JQualifiedName.of(Compilation.getLocalName(function, node.getIndex())),
-                            compileExpression(node.getValue()));
+                    JExpression jexpression = compileLocalAssignment(node);
+                    if (booleanAnalysis.isBooleanLocal(node.getIndex())) {
+                        return newBooleanToInt(jexpression);
+                    }
+                    return jexpression;
                 }
 
                 @Override
@@ -15,6 +15,9 @@ package com.wrmsr.wava.compile.memory;
 
 import com.google.common.collect.ImmutableList;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.compile.trap.Trap;
+import com.wrmsr.wava.compile.trap.TrapCompilerImpl;
 import com.wrmsr.wava.core.node.Load;
 import com.wrmsr.wava.core.node.Store;
 import com.wrmsr.wava.java.lang.JAccess;
@@ -33,7 +36,9 @@ import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
 import com.wrmsr.wava.java.lang.tree.statement.JExpressionStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JIf;
 import com.wrmsr.wava.java.lang.tree.statement.JReturn;
+import com.wrmsr.wava.java.lang.tree.statement.JThrow;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.inject.Inject;
@@ -46,75 +51,61 @@ import static com.google.common.collect.Sets.immutableEnumSet;
 public final class LoadStoreCompilerImpl
         implements LoadStoreCompiler, ModuleCompilationParticipant
 {
+    private final MemoryBackend memoryBackend;
+    private final boolean boundsChecks;
+
     @Inject
-    public LoadStoreCompilerImpl()
+    public LoadStoreCompilerImpl(ModuleCompilerConfig moduleCompilerConfig)
     {
+        this.memoryBackend = moduleCompilerConfig.getMemoryBackend();
+        this.boundsChecks = moduleCompilerConfig.isBoundsChecks();
     }
 
     @Override
     public JExpression compileLoad(Load node, JExpression ptr)
+    {
+        return JMethodInvocation.of(
+                JQualifiedName.of("this", getLoadMethodName(node)),
+                ImmutableList.of(
+                        maybeAdd(ptr, node.getOffset())));
+    }
+
+    @Override
+    public JExpression compileStore(Store node, JExpression ptr, JExpression value)
+    {
+        return JMethodInvocation.of(
+                JQualifiedName.of("this", getStoreMethodName(node)),
+                ImmutableList.of(
+                        maybeAdd(ptr, node.getOffset()),
+                        value));
+    }
+
+    public static String getLoadMethodName(Load node)
     {
         switch (node.getType()) {
-            case I32: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_loadInt" + (node.getBytes() != 4 ? (node.getBytes() * 8) + (node.isSigned() ? "s" : "u") : "")),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset())));
-            }
-            case I64: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_loadLong" + (node.getBytes() != 8 ? (node.getBytes() * 8) + (node.isSigned() ? "s" : "u") : "")),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset())));
-            }
-            case F32: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_loadFloat"),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset())));
-            }
-            case F64: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_loadDouble"),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset())));
-            }
+            case I32:
+                return "_loadInt" + (node.getBytes() != 4 ? (node.getBytes() * 8) + (node.isSigned() ? "s" : "u") : "");
+            case I64:
+                return "_loadLong" + (node.getBytes() != 8 ? (node.getBytes() * 8) + (node.isSigned() ? "s" : "u") : "");
+            case F32:
+                return "_loadFloat";
+            case F64:
+                return "_loadDouble";
         }
         throw new IllegalStateException();
     }
 
-    @Override
-    public JExpression compileStore(Store node, JExpression ptr, JExpression value)
+    public static String getStoreMethodName(Store node)
     {
         switch (node.getType()) {
-            case I32: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_storeInt" + (node.getBytes() != 4 ? node.getBytes() * 8 : "")),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset()),
-                                value));
-            }
-            case I64: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_storeLong" + (node.getBytes() != 8 ? node.getBytes() * 8 : "")),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset()),
-                                value));
-            }
-            case F32: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_storeFloat"),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset()),
-                                value));
-            }
-            case F64: {
-                return JMethodInvocation.of(
-                        JQualifiedName.of("this", "_storeDouble"),
-                        ImmutableList.of(
-                                maybeAdd(ptr, node.getOffset()),
-                                value));
-            }
+            case I32:
+                return "_storeInt" + (node.getBytes() != 4 ? node.getBytes() * 8 : "");
+            case I64:
+                return "_storeLong" + (node.getBytes() != 8 ? node.getBytes() * 8 : "");
+            case F32:
+                return "_storeFloat";
+            case F64:
+                return "_storeDouble";
         }
         throw new IllegalStateException();
     }
@@ -124,6 +115,10 @@ public final class LoadStoreCompilerImpl
         if (offset == 0) {
             return value;
         }
+        else if (value instanceof JLiteral && ((JLiteral) value).getValue() instanceof Integer) {
+            return new JLiteral(
+                    (Integer) ((JLiteral) value).getValue() + offset);
+        }
         else if (offset < 0) {
             return new JBinary(
                     JBinaryOp.Subtract,
@@ -140,11 +135,125 @@ public final class LoadStoreCompilerImpl
         }
     }
 
+    private JExpression compileAddress()
+    {
+        // Pointers are unsigned, so one past 2GB must not wrap to a negative offset.
+        JExpression ptr = new JBinary(
+                JBinaryOp.BitwiseAnd,
+                new JIdent(
+                        JQualifiedName.of("ptr")),
+                new JLiteral(
+                        0xFFFFFFFFL));
+        switch (memoryBackend) {
+            case UNSAFE_ARRAY:
+                return new JBinary(
+                        JBinaryOp.Add,
+                        new JIdent(
+                                JQualifiedName.parse("sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET")),
+                        ptr);
+            case UNSAFE_ADDRESS:
+                return new JBinary(
+                        JBinaryOp.Add,
+                        new JIdent(
+                                JQualifiedName.of("this", "_memoryAddress")),
+                        ptr);
+        }
+        throw new IllegalStateException();
+    }
+
+    private List<JExpression> compileUnsafeArgs(JExpression... rest)
+    {
+        ImmutableList.Builder<JExpression> args = ImmutableList.builder();
+        if (memoryBackend == MemoryBackend.UNSAFE_ARRAY) {
+            args.add(
+                    new JIdent(
+                            JQualifiedName.of("this", "_memoryArray")));
+        }
+        return args.add(compileAddress()).add(rest).build();
+    }
+
+    private JExpression compileGet(Class<?> t)
+    {
+        if (memoryBackend.isUnsafe()) {
+            return JMethodInvocation.of(
+                    JQualifiedName.of("_unsafe", "get" + StringUtils.capitalize(t.getName())),
+                    compileUnsafeArgs());
+        }
+        return JMethodInvocation.of(
+                JQualifiedName.of("this", "_memory", "get" + (t == byte.class ? "" : StringUtils.capitalize(t.getName()))),
+                ImmutableList.of(
+                        new JIdent(
+                                JQualifiedName.of("ptr"))));
+    }
+
+    private JExpression compilePut(Class<?> t, JExpression value)
+    {
+        if (memoryBackend.isUnsafe()) {
+            return JMethodInvocation.of(
+                    JQualifiedName.of("_unsafe", "put" + StringUtils.capitalize(t.getName())),
+                    compileUnsafeArgs(value));
+        }
+        return JMethodInvocation.of(
+                JQualifiedName.of("this", "_memory", "put" + (t == byte.class ? "" : StringUtils.capitalize(t.getName()))),
+                ImmutableList.of(
+                        new JIdent(
+                                JQualifiedName.of("ptr")),
+                        value));
+    }
+
+    // Memory only grows, so any address range that has passed this check stays valid.
+    private static JDeclaration compileCheckAddressDeclaration()
+    {
+        return new JMethod(
+                immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
+                JTypeSpecifier.of("int"),
+                JName.of("_checkAddress"),
+                ImmutableList.of(
+                        new JArg(
+                                JTypeSpecifier.of("int"),
+                                JName.of("ptr")),
+                        new JArg(
+                                JTypeSpecifier.of("int"),
+                                JName.of("end"))),
+                Optional.of(
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JIf(
+                                                new JBinary(
+                                                        JBinaryOp.GreaterThan,
+                                                        new JBinary(
+                                                                JBinaryOp.Add,
+                                                                new JBinary(
+                                                                        JBinaryOp.BitwiseAnd,
+                                                                        new JIdent(
+                                                                                JQualifiedName.of("ptr")),
+                                                                        new JLiteral(
+                                                                                0xFFFFFFFFL)),
+                                                                new JIdent(
+                                                                        JQualifiedName.of("end"))),
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("this", "_memory", "capacity"),
+                                                                ImmutableList.of())),
+                                                new JBlock(
+                                                        ImmutableList.of(
+                                                                new JThrow(
+                                                                        TrapCompilerImpl.compileTrap(Trap.MEMORY_ACCESS)))),
+                                                Optional.empty()),
+                                        new JReturn(
+                                                Optional.of(
+                                                        new JIdent(
+                                                                JQualifiedName.of("ptr"))))))));
+    }
+
     @Override
     public List<JDeclaration> createPostCtorDeclarations()
     {
         ImmutableList.Builder<JDeclaration> declarations = ImmutableList.builder();
 
+        if (boundsChecks) {
+            declarations.add(compileCheckAddressDeclaration());
+        }
+
         for (Class p : new Class[] {int.class, long.class, float.class, double.class}) {
             declarations.add(
                     new JMethod(
@@ -160,11 +269,7 @@ public final class LoadStoreCompilerImpl
                                             ImmutableList.of(
                                                     new JReturn(
                                                             Optional.of(
-                                                                    JMethodInvocation.of(
-                                                                            JQualifiedName.of("this", "_memory", "get" + (p == byte.class ? "" : StringUtils.capitalize(p.getName()))),
-                                                                            ImmutableList.of(
-                                                                                    new JIdent(
-                                                                                            JQualifiedName.of("ptr")))))))))));
+                                                                    compileGet(p))))))));
 
             declarations.add(
                     new JMethod(
@@ -182,13 +287,10 @@ public final class LoadStoreCompilerImpl
                                     new JBlock(
                                             ImmutableList.of(
                                                     new JExpressionStatement(
-                                                            JMethodInvocation.of(
-                                                                    JQualifiedName.of("this", "_memory", "put" + (p == byte.class ? "" : StringUtils.capitalize(p.getName()))),
-                                                                    ImmutableList.of(
-                                                                            new JIdent(
-                                                                                    JQualifiedName.of("ptr")),
-                                                                            new JIdent(
-                                                                                    JQualifiedName.of("value"))))),
+                                                            compilePut(
+                                                                    p,
+                                                                    new JIdent(
+                                                                            JQualifiedName.of("value")))),
                                                     new JReturn(
                                                             Optional.of(
                                                                     new JIdent(
@@ -233,11 +335,7 @@ public final class LoadStoreCompilerImpl
                                                 Optional.of(
                                                         new JCast(
                                                                 JTypeSpecifier.of(p.getName()),
-                                                                JMethodInvocation.of(
-                                                                        JQualifiedName.of("this", "_memory", "get" + (t == byte.class ? "" : StringUtils.capitalize(t.getName()))),
-                                                                        ImmutableList.of(
-                                                                                new JIdent(
-                                                                                        JQualifiedName.of("ptr")))))))))));
+                                                                compileGet(t))))))));
     }
 
     private JMethod createLengthUnsignedLoad(Class<?> p, Class<?> t, int len, Object mask)
@@ -257,11 +355,7 @@ public final class LoadStoreCompilerImpl
                                                 Optional.of(
                                                         new JBinary(
                                                                 JBinaryOp.BitwiseAnd,
-                                                                JMethodInvocation.of(
-                                                                        JQualifiedName.of("this", "_memory", "get" + (t == byte.class ? "" : StringUtils.capitalize(t.getName()))),
-                                                                        ImmutableList.of(
-                                                                                new JIdent(
-                                                                                        JQualifiedName.of("ptr")))),
+                                                                compileGet(t),
                                                                 new JLiteral(
                                                                         mask))))))));
     }
@@ -283,15 +377,12 @@ public final class LoadStoreCompilerImpl
                         new JBlock(
                                 ImmutableList.of(
                                         new JExpressionStatement(
-                                                JMethodInvocation.of(
-                                                        JQualifiedName.of("this", "_memory", "put" + (t == byte.class ? "" : StringUtils.capitalize(t.getSimpleName()))),
-                                                        ImmutableList.of(
+                                                compilePut(
+                                                        t,
+                                                        new JCast(
+                                                                JTypeSpecifier.of(t.getName()),
                                                                 new JIdent(
-                                                                        JQualifiedName.of("ptr")),
-                                                                new JCast(
-                                                                        JTypeSpecifier.of(t.getName()),
-                                                                        new JIdent(
-                                                                                JQualifiedName.of("value")))))),
+                                                                        JQualifiedName.of("value"))))),
                                         new JReturn(
                                                 Optional.of(
                                                         new JIdent(
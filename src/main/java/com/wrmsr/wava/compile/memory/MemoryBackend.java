@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.memory;
+
+/*
+Storage behind the generated module's linear memory. Every backend keeps _memory as a little-endian ByteBuffer view so
+host code can keep using it, and only the generated load and store helpers differ. The Unsafe backends skip the
+buffer's bounds checks and so trade trapping on out-of-bounds access for speed.
+*/
+public enum MemoryBackend
+{
+    DIRECT_BYTE_BUFFER(true, false),
+    HEAP_BYTE_BUFFER(false, false),
+    UNSAFE_ARRAY(false, true),
+    UNSAFE_ADDRESS(true, true);
+
+    private final boolean direct;
+    private final boolean unsafe;
+
+    MemoryBackend(boolean direct, boolean unsafe)
+    {
+        this.direct = direct;
+        this.unsafe = unsafe;
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    public boolean isUnsafe()
+    {
+        return unsafe;
+    }
+}
@@ -15,16 +15,23 @@ package com.wrmsr.wava.compile.memory;
 
 import com.google.common.collect.ImmutableList;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.core.unit.Memory;
 import com.wrmsr.wava.core.unit.Module;
 import com.wrmsr.wava.core.unit.Segment;
 import com.wrmsr.wava.java.lang.JAccess;
+import com.wrmsr.wava.java.lang.JArg;
 import com.wrmsr.wava.java.lang.JArray;
 import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
 import com.wrmsr.wava.java.lang.JTypeSpecifier;
+import com.wrmsr.wava.java.lang.op.JBinaryOp;
 import com.wrmsr.wava.java.lang.tree.declaration.JDeclaration;
 import com.wrmsr.wava.java.lang.tree.declaration.JField;
+import com.wrmsr.wava.java.lang.tree.declaration.JMethod;
 import com.wrmsr.wava.java.lang.tree.expression.JAssignment;
+import com.wrmsr.wava.java.lang.tree.expression.JBinary;
+import com.wrmsr.wava.java.lang.tree.expression.JCast;
 import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JLongArrayLiteral;
@@ -34,9 +41,14 @@ import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
 import com.wrmsr.wava.java.lang.tree.expression.JNew;
 import com.wrmsr.wava.java.lang.tree.expression.JNewArray;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
+import com.wrmsr.wava.java.lang.tree.statement.JCatch;
 import com.wrmsr.wava.java.lang.tree.statement.JExpressionStatement;
 import com.wrmsr.wava.java.lang.tree.statement.JForEach;
+import com.wrmsr.wava.java.lang.tree.statement.JIf;
+import com.wrmsr.wava.java.lang.tree.statement.JReturn;
 import com.wrmsr.wava.java.lang.tree.statement.JStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JThrow;
+import com.wrmsr.wava.java.lang.tree.statement.JTry;
 import com.wrmsr.wava.java.lang.tree.statement.JVariable;
 import com.wrmsr.wava.java.lang.tree.statement.JWhileLoop;
 
@@ -47,6 +59,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Sets.immutableEnumSet;
 import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
 import static com.wrmsr.wava.util.function.Functions.memoize;
@@ -56,22 +69,45 @@ public final class MemoryCompilerImpl
         implements ModuleCompilationParticipant
 {
     private final Module module;
+    private final MemoryBackend memoryBackend;
+    private final int initialPages;
+    private final int maxPages;
+
+    private final boolean memoryImageResource;
 
     private final Runnable initializer = memoize(this::initialize);
     private String encoded;
     private List<String> initialMemoryChunks;
+    private int memoryImageOffset;
+    private byte[] memoryImage;
 
     private static final int CHUNK_SIZE = 16 * 1024;
 
+    // Buffers are int-indexed, which caps linear memory just short of 2GB rather than the 4GB wasm allows.
+    public static final int MAX_BUFFER_PAGES = Integer.MAX_VALUE / Memory.PAGE_SIZE;
+
     @Inject
-    public MemoryCompilerImpl(Module module)
+    public MemoryCompilerImpl(Module module, ModuleCompilerConfig moduleCompilerConfig)
     {
         this.module = requireNonNull(module);
+        this.memoryBackend = moduleCompilerConfig.getMemoryBackend();
+        this.memoryImageResource = moduleCompilerConfig.isMemoryImageResource();
+
+        // The shadow stack sits above the data segments, so memory always extends at least to its top.
+        Memory memory = module.getMemory();
+        initialPages = (int) Math.max(memory.getInitialPages(), ((long) StackCompilerImpl.getStackTop(module, moduleCompilerConfig) + Memory.PAGE_SIZE - 1) / Memory.PAGE_SIZE);
+        maxPages = Math.max(initialPages, Math.min(memory.getMaxPages().orElse(MAX_BUFFER_PAGES), MAX_BUFFER_PAGES));
+        checkArgument(initialPages <= MAX_BUFFER_PAGES, "Initial memory too large: %s pages", initialPages);
     }
 
     private void initialize()
     {
         List<Segment> segments = module.getMemory().getSegments();
+        if (memoryImageResource) {
+            initializeMemoryImage(segments);
+            return;
+        }
+
         ByteBuffer buf = ByteBuffer.allocate((segments.size() * 8) + segments.stream().mapToInt(Segment::getLength).sum());
         for (Segment segment : module.getMemory().getSegments()) {
             buf.putInt(segment.getOffset());
@@ -86,28 +122,313 @@ public final class MemoryCompilerImpl
         }
     }
 
+    // The image spans the lowest to the highest segment byte so the constructor can read it straight into memory.
+    private void initializeMemoryImage(List<Segment> segments)
+    {
+        if (segments.isEmpty()) {
+            return;
+        }
+        int start = segments.stream().mapToInt(Segment::getOffset).min().getAsInt();
+        int end = segments.stream().mapToInt(s -> s.getOffset() + s.getLength()).max().getAsInt();
+        checkArgument(end <= initialPages * Memory.PAGE_SIZE, "Memory segments exceed initial memory");
+        memoryImageOffset = start;
+        memoryImage = new byte[end - start];
+        for (Segment segment : segments) {
+            System.arraycopy(segment.getData(), 0, memoryImage, segment.getOffset() - start, segment.getLength());
+        }
+    }
+
+    public String getMemoryImageName()
+    {
+        return module.getName().get() + ".memory";
+    }
+
+    public Optional<byte[]> getMemoryImage()
+    {
+        initializer.run();
+        return Optional.ofNullable(memoryImage);
+    }
+
     @Override
     public List<JDeclaration> createPreCtorDeclarations()
     {
         initializer.run();
 
-        return ImmutableList.of(
+        ImmutableList.Builder<JDeclaration> declarations = ImmutableList.builder();
+
+        declarations.add(
                 new JField(
-                        immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
+                        immutableEnumSet(JAccess.PROTECTED),
                         JTypeSpecifier.of("java", "nio", "ByteBuffer"),
                         JName.of("_memory"),
-                        Optional.empty()),
+                        Optional.empty()));
 
+        declarations.add(
                 new JField(
-                        immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
-                        new JTypeSpecifier(
-                                JQualifiedName.of("java", "lang", "String"),
-                                ImmutableList.of(
-                                        JArray.EMPTY)),
-                        JName.of("_memorySegments"),
+                        immutableEnumSet(JAccess.PUBLIC),
+                        JTypeSpecifier.of("java", "util", "function", "IntConsumer"),
+                        JName.of("_memoryGrowthListener"),
+                        Optional.empty()));
+
+        if (!memoryImageResource) {
+            declarations.add(
+                    new JField(
+                            immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
+                            new JTypeSpecifier(
+                                    JQualifiedName.of("java", "lang", "String"),
+                                    ImmutableList.of(
+                                            JArray.EMPTY)),
+                            JName.of("_memorySegments"),
+                            Optional.of(
+                                    new JLongArrayLiteral(
+                                            initialMemoryChunks.stream().map(JLongStringLiteral::new).collect(toImmutableList())))));
+        }
+
+        switch (memoryBackend) {
+            case UNSAFE_ARRAY:
+                declarations.add(
+                        new JField(
+                                immutableEnumSet(JAccess.PROTECTED),
+                                new JTypeSpecifier(
+                                        JQualifiedName.of("byte"),
+                                        ImmutableList.of(
+                                                JArray.EMPTY)),
+                                JName.of("_memoryArray"),
+                                Optional.empty()));
+                break;
+            case UNSAFE_ADDRESS:
+                declarations.add(
+                        new JField(
+                                immutableEnumSet(JAccess.PROTECTED),
+                                JTypeSpecifier.of("long"),
+                                JName.of("_memoryAddress"),
+                                Optional.empty()));
+                break;
+        }
+
+        if (memoryBackend.isUnsafe()) {
+            declarations.addAll(compileUnsafeDeclarations());
+        }
+        if (memoryBackend == MemoryBackend.UNSAFE_ADDRESS) {
+            declarations.add(compileAddressDeclaration());
+        }
+
+        return declarations.build();
+    }
+
+    // Unsafe access assumes native order matches the little-endian order of linear memory.
+    private static List<JDeclaration> compileUnsafeDeclarations()
+    {
+        JTypeSpecifier unsafe = JTypeSpecifier.of("sun", "misc", "Unsafe");
+        return ImmutableList.of(
+                new JField(
+                        immutableEnumSet(JAccess.PROTECTED, JAccess.STATIC, JAccess.FINAL),
+                        unsafe,
+                        JName.of("_unsafe"),
+                        Optional.of(
+                                JMethodInvocation.of(
+                                        JQualifiedName.of("_getUnsafe"),
+                                        ImmutableList.of()))),
+                new JMethod(
+                        immutableEnumSet(JAccess.PRIVATE, JAccess.STATIC),
+                        unsafe,
+                        JName.of("_getUnsafe"),
+                        ImmutableList.of(),
                         Optional.of(
-                                new JLongArrayLiteral(
-                                        initialMemoryChunks.stream().map(JLongStringLiteral::new).collect(toImmutableList())))));
+                                new JBlock(
+                                        ImmutableList.of(
+                                                new JIf(
+                                                        new JBinary(
+                                                                JBinaryOp.NotEquals,
+                                                                JMethodInvocation.of(
+                                                                        JQualifiedName.of("java", "nio", "ByteOrder", "nativeOrder"),
+                                                                        ImmutableList.of()),
+                                                                new JIdent(
+                                                                        JQualifiedName.of("java", "nio", "ByteOrder", "LITTLE_ENDIAN"))),
+                                                        new JBlock(
+                                                                ImmutableList.of(
+                                                                        new JThrow(
+                                                                                new JNew(
+                                                                                        JTypeSpecifier.of("java", "lang", "IllegalStateException"),
+                                                                                        ImmutableList.of(
+                                                                                                new JLiteral(
+                                                                                                        "Unsafe memory access requires a little-endian platform")))))),
+                                                        Optional.empty()),
+                                                new JTry(
+                                                        new JBlock(
+                                                                ImmutableList.of(
+                                                                        new JVariable(
+                                                                                JTypeSpecifier.of("java", "lang", "reflect", "Field"),
+                                                                                JName.of("field"),
+                                                                                Optional.of(
+                                                                                        JMethodInvocation.of(
+                                                                                                JQualifiedName.of("sun", "misc", "Unsafe", "class", "getDeclaredField"),
+                                                                                                ImmutableList.of(
+                                                                                                        new JLiteral(
+                                                                                                                "theUnsafe"))))),
+                                                                        new JExpressionStatement(
+                                                                                JMethodInvocation.of(
+                                                                                        JQualifiedName.of("field", "setAccessible"),
+                                                                                        ImmutableList.of(
+                                                                                                new JLiteral(
+                                                                                                        true)))),
+                                                                        new JReturn(
+                                                                                Optional.of(
+                                                                                        new JCast(
+                                                                                                unsafe,
+                                                                                                JMethodInvocation.of(
+                                                                                                        JQualifiedName.of("field", "get"),
+                                                                                                        ImmutableList.of(
+                                                                                                                new JLiteral(
+                                                                                                                        null)))))))),
+                                                        ImmutableList.of(
+                                                                new JCatch(
+                                                                        ImmutableList.of(
+                                                                                JQualifiedName.of("java", "lang", "ReflectiveOperationException")),
+                                                                        JName.of("e"),
+                                                                        new JBlock(
+                                                                                ImmutableList.of(
+                                                                                        new JThrow(
+                                                                                                new JNew(
+                                                                                                        JTypeSpecifier.of("java", "lang", "IllegalStateException"),
+                                                                                                        ImmutableList.of(
+                                                                                                                JIdent.of(JName.of("e")))))))))))))));
+    }
+
+    private static JDeclaration compileAddressDeclaration()
+    {
+        return new JMethod(
+                immutableEnumSet(JAccess.PRIVATE, JAccess.STATIC),
+                JTypeSpecifier.of("long"),
+                JName.of("_getMemoryAddress"),
+                ImmutableList.of(
+                        new JArg(
+                                JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                                JName.of("memory"))),
+                Optional.of(
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JVariable(
+                                                JTypeSpecifier.of("sun", "nio", "ch", "DirectBuffer"),
+                                                JName.of("buffer"),
+                                                Optional.of(
+                                                        new JCast(
+                                                                JTypeSpecifier.of("sun", "nio", "ch", "DirectBuffer"),
+                                                                JIdent.of(JName.of("memory"))))),
+                                        new JReturn(
+                                                Optional.of(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("buffer", "address"),
+                                                                ImmutableList.of())))))));
+    }
+
+    // Reads through a duplicate so the positions hosts see on _memory are left alone.
+    private JDeclaration compileMemoryImageDeclaration()
+    {
+        String name = getMemoryImageName();
+        return new JMethod(
+                immutableEnumSet(JAccess.PRIVATE),
+                JTypeSpecifier.of("void"),
+                JName.of("_loadMemoryImage"),
+                ImmutableList.of(),
+                Optional.of(
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JVariable(
+                                                JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                                                JName.of("memory"),
+                                                Optional.of(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("this", "_memory", "duplicate"),
+                                                                ImmutableList.of()))),
+                                        new JExpressionStatement(
+                                                JMethodInvocation.of(
+                                                        JQualifiedName.of("memory", "position"),
+                                                        ImmutableList.of(
+                                                                new JLiteral(
+                                                                        memoryImageOffset)))),
+                                        new JExpressionStatement(
+                                                JMethodInvocation.of(
+                                                        JQualifiedName.of("memory", "limit"),
+                                                        ImmutableList.of(
+                                                                new JLiteral(
+                                                                        memoryImageOffset + memoryImage.length)))),
+                                        new JTry(
+                                                ImmutableList.of(
+                                                        new JVariable(
+                                                                JTypeSpecifier.of("java", "io", "InputStream"),
+                                                                JName.of("in"),
+                                                                Optional.of(
+                                                                        new JMethodInvocation(
+                                                                                new JMemberAccess(
+                                                                                        JMethodInvocation.of(
+                                                                                                JQualifiedName.of("getClass"),
+                                                                                                ImmutableList.of()),
+                                                                                        JName.of("getResourceAsStream")),
+                                                                                ImmutableList.of(
+                                                                                        new JLiteral(
+                                                                                                name)))))),
+                                                new JBlock(
+                                                        ImmutableList.of(
+                                                                new JIf(
+                                                                        new JBinary(
+                                                                                JBinaryOp.Equals,
+                                                                                JIdent.of(JName.of("in")),
+                                                                                new JLiteral(
+                                                                                        null)),
+                                                                        new JBlock(
+                                                                                ImmutableList.of(
+                                                                                        new JThrow(
+                                                                                                new JNew(
+                                                                                                        JTypeSpecifier.of("java", "io", "FileNotFoundException"),
+                                                                                                        ImmutableList.of(
+                                                                                                                new JLiteral(
+                                                                                                                        name)))))),
+                                                                        Optional.empty()),
+                                                                new JVariable(
+                                                                        JTypeSpecifier.of("java", "nio", "channels", "ReadableByteChannel"),
+                                                                        JName.of("channel"),
+                                                                        Optional.of(
+                                                                                JMethodInvocation.of(
+                                                                                        JQualifiedName.of("java", "nio", "channels", "Channels", "newChannel"),
+                                                                                        ImmutableList.of(
+                                                                                                JIdent.of(JName.of("in")))))),
+                                                                new JWhileLoop(
+                                                                        JMethodInvocation.of(
+                                                                                JQualifiedName.of("memory", "hasRemaining"),
+                                                                                ImmutableList.of()),
+                                                                        new JBlock(
+                                                                                ImmutableList.of(
+                                                                                        new JIf(
+                                                                                                new JBinary(
+                                                                                                        JBinaryOp.LessThan,
+                                                                                                        JMethodInvocation.of(
+                                                                                                                JQualifiedName.of("channel", "read"),
+                                                                                                                ImmutableList.of(
+                                                                                                                        JIdent.of(JName.of("memory")))),
+                                                                                                        new JLiteral(
+                                                                                                                0)),
+                                                                                                new JBlock(
+                                                                                                        ImmutableList.of(
+                                                                                                                new JThrow(
+                                                                                                                        new JNew(
+                                                                                                                                JTypeSpecifier.of("java", "io", "EOFException"),
+                                                                                                                                ImmutableList.of(
+                                                                                                                                        new JLiteral(
+                                                                                                                                                name)))))),
+                                                                                                Optional.empty())))))),
+                                                ImmutableList.of(
+                                                        new JCatch(
+                                                                ImmutableList.of(
+                                                                        JQualifiedName.of("java", "io", "IOException")),
+                                                                JName.of("e"),
+                                                                new JBlock(
+                                                                        ImmutableList.of(
+                                                                                new JThrow(
+                                                                                        new JNew(
+                                                                                                JTypeSpecifier.of("java", "io", "UncheckedIOException"),
+                                                                                                ImmutableList.of(
+                                                                                                        JIdent.of(JName.of("e"))))))))))))));
     }
 
     @Override
@@ -119,13 +440,25 @@ public final class MemoryCompilerImpl
 
         ctor.add(
                 new JExpressionStatement(
-                        JAssignment.of(
-                                JQualifiedName.of("this", "_memory"),
+                        JMethodInvocation.of(
+                                JQualifiedName.of("this", "_setMemory"),
+                                ImmutableList.of(
+                                        JMethodInvocation.of(
+                                                JQualifiedName.of("_allocateMemory"),
+                                                ImmutableList.of(
+                                                        new JLiteral(
+                                                                initialPages)))))));
+
+        if (memoryImageResource) {
+            if (memoryImage != null) {
+                ctor.add(
+                        new JExpressionStatement(
                                 JMethodInvocation.of(
-                                        JQualifiedName.of("java", "nio", "ByteBuffer", "allocateDirect"),
-                                        ImmutableList.of(
-                                                new JLiteral(
-                                                        65536 * 128)))))); // FIXME
+                                        JQualifiedName.of("this", "_loadMemoryImage"),
+                                        ImmutableList.of())));
+            }
+            return ctor.build();
+        }
 
         ctor.add(
                 new JVariable(
@@ -229,14 +562,222 @@ public final class MemoryCompilerImpl
                                 JQualifiedName.of("_memory", "clear"),
                                 ImmutableList.of())));
 
-        ctor.add(
+        return ctor.build();
+    }
+
+    @Override
+    public List<JDeclaration> createPostCtorDeclarations()
+    {
+        ImmutableList.Builder<JStatement> setMemory = ImmutableList.builder();
+        setMemory.add(
                 new JExpressionStatement(
-                        JMethodInvocation.of(
-                                JQualifiedName.parse("_memory.order"),
-                                ImmutableList.of(
-                                        new JIdent(
-                                                JQualifiedName.parse("java.nio.ByteOrder.LITTLE_ENDIAN"))))));
+                        JAssignment.of(
+                                JQualifiedName.of("this", "_memory"),
+                                JIdent.of(JName.of("memory")))));
+        switch (memoryBackend) {
+            case UNSAFE_ARRAY:
+                setMemory.add(
+                        new JExpressionStatement(
+                                JAssignment.of(
+                                        JQualifiedName.of("this", "_memoryArray"),
+                                        JMethodInvocation.of(
+                                                JQualifiedName.of("memory", "array"),
+                                                ImmutableList.of()))));
+                break;
+            case UNSAFE_ADDRESS:
+                setMemory.add(
+                        new JExpressionStatement(
+                                JAssignment.of(
+                                        JQualifiedName.of("this", "_memoryAddress"),
+                                        JMethodInvocation.of(
+                                                JQualifiedName.of("_getMemoryAddress"),
+                                                ImmutableList.of(
+                                                        JIdent.of(JName.of("memory")))))));
+                break;
+        }
 
-        return ctor.build();
+        initializer.run();
+
+        ImmutableList.Builder<JDeclaration> declarations = ImmutableList.builder();
+
+        if (memoryImage != null) {
+            declarations.add(compileMemoryImageDeclaration());
+        }
+
+        return declarations.add(
+                new JMethod(
+                        immutableEnumSet(JAccess.PRIVATE, JAccess.STATIC),
+                        JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                        JName.of("_allocateMemory"),
+                        ImmutableList.of(
+                                new JArg(
+                                        JTypeSpecifier.of("int"),
+                                        JName.of("pages"))),
+                        Optional.of(
+                                new JBlock(
+                                        ImmutableList.of(
+                                                new JVariable(
+                                                        JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                                                        JName.of("memory"),
+                                                        Optional.of(
+                                                                JMethodInvocation.of(
+                                                                        JQualifiedName.of("java", "nio", "ByteBuffer", memoryBackend.isDirect() ? "allocateDirect" : "allocate"),
+                                                                        ImmutableList.of(
+                                                                                new JBinary(
+                                                                                        JBinaryOp.Multiply,
+                                                                                        JIdent.of(JName.of("pages")),
+                                                                                        new JLiteral(
+                                                                                                Memory.PAGE_SIZE)))))),
+                                                new JExpressionStatement(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("memory", "order"),
+                                                                ImmutableList.of(
+                                                                        new JIdent(
+                                                                                JQualifiedName.parse("java.nio.ByteOrder.LITTLE_ENDIAN"))))),
+                                                new JReturn(
+                                                        Optional.of(
+                                                                JIdent.of(JName.of("memory")))))))),
+
+                new JMethod(
+                        immutableEnumSet(JAccess.PRIVATE),
+                        JTypeSpecifier.of("void"),
+                        JName.of("_setMemory"),
+                        ImmutableList.of(
+                                new JArg(
+                                        JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                                        JName.of("memory"))),
+                        Optional.of(
+                                new JBlock(
+                                        setMemory.build()))),
+
+                new JMethod(
+                        immutableEnumSet(JAccess.PUBLIC, JAccess.FINAL),
+                        JTypeSpecifier.of("int"),
+                        JName.of("_currentMemory"),
+                        ImmutableList.of(),
+                        Optional.of(
+                                new JBlock(
+                                        ImmutableList.of(
+                                                new JReturn(
+                                                        Optional.of(
+                                                                new JBinary(
+                                                                        JBinaryOp.Divide,
+                                                                        JMethodInvocation.of(
+                                                                                JQualifiedName.of("this", "_memory", "capacity"),
+                                                                                ImmutableList.of()),
+                                                                        new JLiteral(
+                                                                                Memory.PAGE_SIZE)))))))),
+
+                // Growth copies into a fresh buffer, so hosts holding on to _memory should refresh it from the listener.
+                new JMethod(
+                        immutableEnumSet(JAccess.PUBLIC, JAccess.FINAL),
+                        JTypeSpecifier.of("int"),
+                        JName.of("_growMemory"),
+                        ImmutableList.of(
+                                new JArg(
+                                        JTypeSpecifier.of("int"),
+                                        JName.of("delta"))),
+                        Optional.of(
+                                new JBlock(
+                                        ImmutableList.of(
+                                                new JVariable(
+                                                        JTypeSpecifier.of("int"),
+                                                        JName.of("pages"),
+                                                        Optional.of(
+                                                                JMethodInvocation.of(
+                                                                        JQualifiedName.of("this", "_currentMemory"),
+                                                                        ImmutableList.of()))),
+                                                new JIf(
+                                                        new JBinary(
+                                                                JBinaryOp.ConditionalOr,
+                                                                new JBinary(
+                                                                        JBinaryOp.LessThan,
+                                                                        JIdent.of(JName.of("delta")),
+                                                                        new JLiteral(
+                                                                                0)),
+                                                                new JBinary(
+                                                                        JBinaryOp.GreaterThan,
+                                                                        JIdent.of(JName.of("delta")),
+                                                                        new JBinary(
+                                                                                JBinaryOp.Subtract,
+                                                                                new JLiteral(
+                                                                                        maxPages),
+                                                                                JIdent.of(JName.of("pages"))))),
+                                                        new JBlock(
+                                                                ImmutableList.of(
+                                                                        new JReturn(
+                                                                                Optional.of(
+                                                                                        new JLiteral(
+                                                                                                -1))))),
+                                                        Optional.empty()),
+                                                new JIf(
+                                                        new JBinary(
+                                                                JBinaryOp.Equals,
+                                                                JIdent.of(JName.of("delta")),
+                                                                new JLiteral(
+                                                                        0)),
+                                                        new JBlock(
+                                                                ImmutableList.of(
+                                                                        new JReturn(
+                                                                                Optional.of(
+                                                                                        JIdent.of(JName.of("pages")))))),
+                                                        Optional.empty()),
+                                                new JVariable(
+                                                        JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                                                        JName.of("memory"),
+                                                        Optional.of(
+                                                                JMethodInvocation.of(
+                                                                        JQualifiedName.of("_allocateMemory"),
+                                                                        ImmutableList.of(
+                                                                                new JBinary(
+                                                                                        JBinaryOp.Add,
+                                                                                        JIdent.of(JName.of("pages")),
+                                                                                        JIdent.of(JName.of("delta"))))))),
+                                                new JVariable(
+                                                        JTypeSpecifier.of("java", "nio", "ByteBuffer"),
+                                                        JName.of("old"),
+                                                        Optional.of(
+                                                                JMethodInvocation.of(
+                                                                        JQualifiedName.of("this", "_memory", "duplicate"),
+                                                                        ImmutableList.of()))),
+                                                new JExpressionStatement(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("old", "clear"),
+                                                                ImmutableList.of())),
+                                                new JExpressionStatement(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("memory", "put"),
+                                                                ImmutableList.of(
+                                                                        JIdent.of(JName.of("old"))))),
+                                                new JExpressionStatement(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("memory", "clear"),
+                                                                ImmutableList.of())),
+                                                new JExpressionStatement(
+                                                        JMethodInvocation.of(
+                                                                JQualifiedName.of("this", "_setMemory"),
+                                                                ImmutableList.of(
+                                                                        JIdent.of(JName.of("memory"))))),
+                                                new JIf(
+                                                        new JBinary(
+                                                                JBinaryOp.NotEquals,
+                                                                new JIdent(
+                                                                        JQualifiedName.of("this", "_memoryGrowthListener")),
+                                                                new JLiteral(
+                                                                        null)),
+                                                        new JBlock(
+                                                                ImmutableList.of(
+                                                                        new JExpressionStatement(
+                                                                                JMethodInvocation.of(
+                                                                                        JQualifiedName.of("this", "_memoryGrowthListener", "accept"),
+                                                                                        ImmutableList.of(
+                                                                                                JMethodInvocation.of(
+                                                                                                        JQualifiedName.of("this", "_currentMemory"),
+                                                                                                        ImmutableList.of())))))),
+                                                        Optional.empty()),
+                                                new JReturn(
+                                                        Optional.of(
+                                                                JIdent.of(JName.of("pages")))))))))
+                .build();
     }
 }
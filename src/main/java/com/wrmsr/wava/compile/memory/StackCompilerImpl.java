@@ -15,6 +15,8 @@ package com.wrmsr.wava.compile.memory;
 
 import com.google.common.collect.ImmutableList;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.core.unit.Module;
 import com.wrmsr.wava.java.lang.JQualifiedName;
 import com.wrmsr.wava.java.lang.op.JBinaryOp;
 import com.wrmsr.wava.java.lang.tree.expression.JBinary;
@@ -27,12 +29,51 @@ import javax.inject.Inject;
 
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+/*
+The shadow stack grows down from its top towards the end of the module's data segments. The top stays at 1MB unless the
+data leaves less than the configured stack size below it. The bottom red zone is left to leaf functions, so checked
+stack pointer stores trap at the stack limit rather than at the bottom itself.
+*/
 public final class StackCompilerImpl
         implements ModuleCompilationParticipant
 {
+    public static final int STACK_POINTER_ADDRESS = 4;
+    public static final int MIN_STACK_TOP = 1024 * 1024;
+    public static final int STACK_ALIGNMENT = 16;
+    public static final int STACK_RED_ZONE = 256;
+
+    private final int stackTop;
+
     @Inject
-    public StackCompilerImpl()
+    public StackCompilerImpl(Module module, ModuleCompilerConfig moduleCompilerConfig)
+    {
+        this.stackTop = getStackTop(module, moduleCompilerConfig);
+    }
+
+    public static int getStackBottom(Module module)
+    {
+        long end = module.getMemory().getSegments().stream()
+                .mapToLong(s -> (long) s.getOffset() + s.getLength())
+                .max()
+                .orElse(0L);
+        end = Math.max(end, STACK_POINTER_ADDRESS + 4);
+        return (int) ((end + STACK_ALIGNMENT - 1) & -STACK_ALIGNMENT);
+    }
+
+    public static int getStackTop(Module module, ModuleCompilerConfig moduleCompilerConfig)
+    {
+        int stackSize = moduleCompilerConfig.getStackSize();
+        checkArgument(stackSize > STACK_RED_ZONE && stackSize % STACK_ALIGNMENT == 0, "Invalid stack size: %s", stackSize);
+        long top = Math.max(MIN_STACK_TOP, (long) getStackBottom(module) + stackSize);
+        checkArgument(top <= Integer.MAX_VALUE, "Stack exceeds addressable memory: %s", top);
+        return (int) top;
+    }
+
+    public static int getStackLimit(Module module)
     {
+        return getStackBottom(module) + STACK_RED_ZONE;
     }
 
     @Override
@@ -44,10 +85,10 @@ public final class StackCompilerImpl
                         JMethodInvocation.of(
                                 JQualifiedName.of("this", "_storeInt"),
                                 ImmutableList.of(
-                                        new JLiteral(4),
+                                        new JLiteral(STACK_POINTER_ADDRESS),
                                         new JBinary(
                                                 JBinaryOp.Subtract,
-                                                new JLiteral(1024 * 1024), // FIXME
+                                                new JLiteral(stackTop),
                                                 new JLiteral(4))))));
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.module;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.wrmsr.wava.analyze.CallGraph;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Iterables.partition;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static java.util.Objects.requireNonNull;
+
+/*
+Groups functions into generated classes. Functions are laid out depth first in call order from the module roots with
+each strongly connected component of the direct call graph kept contiguous, so a component only spans classes when it
+is larger than one. Given a profile of invocation counts, functions that never ran are laid out after and in separate
+classes from those that did. Only with static function classes does this keep their classes from being loaded on the
+profiled path, as otherwise each class extends the one before it and constructing the module loads every class.
+*/
+public final class FunctionPartitioning
+{
+    private FunctionPartitioning()
+    {
+    }
+
+    public static List<List<Function>> partitionInDeclarationOrder(Module module, int maxFunctionsPerClass)
+    {
+        checkArgument(maxFunctionsPerClass > 0);
+        return ImmutableList.copyOf(partition(module.getFunctions().values(), maxFunctionsPerClass));
+    }
+
+    public static List<List<Function>> partitionByCallGraph(Module module, int maxFunctionsPerClass, Map<Name, Long> profile)
+    {
+        checkArgument(maxFunctionsPerClass > 0);
+        Map<Name, List<Name>> callees = getDirectCallees(module);
+        List<List<Name>> components = getStronglyConnectedComponents(ImmutableList.copyOf(module.getFunctions().keySet()), callees);
+        Map<Name, Integer> componentIndices = new HashMap<>();
+        for (int i = 0; i < components.size(); ++i) {
+            for (Name name : components.get(i)) {
+                componentIndices.put(name, i);
+            }
+        }
+
+        Set<Integer> placed = new HashSet<>();
+        List<List<Name>> hot = new ArrayList<>();
+        if (!profile.isEmpty()) {
+            List<Name> hotRoots = module.getFunctions().keySet().stream()
+                    .filter(n -> profile.getOrDefault(n, 0L) > 0)
+                    .sorted(Comparator.comparing((Name n) -> profile.get(n)).reversed())
+                    .collect(toImmutableList());
+            layOut(hotRoots, components, componentIndices, callees, c -> c.stream().anyMatch(n -> profile.getOrDefault(n, 0L) > 0), placed, hot);
+        }
+
+        List<Name> roots = ImmutableList.<Name>builder()
+                .addAll(CallGraph.getRoots(module).stream().filter(module.getFunctions()::containsKey).iterator())
+                .addAll(module.getFunctions().keySet())
+                .build();
+        List<List<Name>> cold = new ArrayList<>();
+        layOut(roots, components, componentIndices, callees, c -> true, placed, cold);
+
+        return ImmutableList.<List<Function>>builder()
+                .addAll(pack(module, hot, maxFunctionsPerClass))
+                .addAll(pack(module, cold, maxFunctionsPerClass))
+                .build();
+    }
+
+    // Each line holds a function name and its invocation count separated by whitespace. Blank lines and lines starting
+    // with '#' are skipped.
+    public static Map<Name, Long> parseProfile(List<String> lines)
+    {
+        Map<Name, Long> profile = new HashMap<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            List<String> parts = Splitter.onPattern("\\s+").splitToList(trimmed);
+            checkArgument(parts.size() == 2, "Invalid profile line: %s", line);
+            profile.merge(Name.of(parts.get(0)), Long.parseLong(parts.get(1)), Long::sum);
+        }
+        return ImmutableMap.copyOf(profile);
+    }
+
+    public static Map<Name, Long> readProfile(Path path)
+    {
+        try {
+            return parseProfile(Files.readAllLines(path, StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // CallGraph's callee sets are unordered, so they are put in declaration order to keep the layout deterministic.
+    private static Map<Name, List<Name>> getDirectCallees(Module module)
+    {
+        Map<Name, Integer> order = new HashMap<>();
+        module.getFunctions().keySet().forEach(n -> order.put(n, order.size()));
+        CallGraph callGraph = CallGraph.analyze(module);
+        Map<Name, List<Name>> callees = new HashMap<>();
+        for (Name name : module.getFunctions().keySet()) {
+            callees.put(name, callGraph.get(name).getDirectCallees().stream()
+                    .filter(order::containsKey)
+                    .sorted(Comparator.comparing(order::get))
+                    .collect(toImmutableList()));
+        }
+        return callees;
+    }
+
+    private static final class Frame
+    {
+        private final Name name;
+        private final Iterator<Name> callees;
+
+        private Frame(Name name, Iterator<Name> callees)
+        {
+            this.name = requireNonNull(name);
+            this.callees = requireNonNull(callees);
+        }
+    }
+
+    // Tarjan's algorithm, iterative as call chains in large modules run deeper than the Java stack.
+    private static List<List<Name>> getStronglyConnectedComponents(List<Name> names, Map<Name, List<Name>> callees)
+    {
+        Map<Name, Integer> order = new HashMap<>();
+        names.forEach(n -> order.put(n, order.size()));
+        Map<Name, Integer> indices = new HashMap<>();
+        Map<Name, Integer> lowLinks = new HashMap<>();
+        Deque<Name> stack = new ArrayDeque<>();
+        Set<Name> onStack = new HashSet<>();
+        List<List<Name>> components = new ArrayList<>();
+
+        for (Name root : names) {
+            if (indices.containsKey(root)) {
+                continue;
+            }
+            Deque<Frame> frames = new ArrayDeque<>();
+            indices.put(root, indices.size());
+            lowLinks.put(root, indices.get(root));
+            stack.push(root);
+            onStack.add(root);
+            frames.push(new Frame(root, callees.get(root).iterator()));
+
+            while (!frames.isEmpty()) {
+                Frame frame = frames.peek();
+                if (frame.callees.hasNext()) {
+                    Name callee = frame.callees.next();
+                    if (!indices.containsKey(callee)) {
+                        indices.put(callee, indices.size());
+                        lowLinks.put(callee, indices.get(callee));
+                        stack.push(callee);
+                        onStack.add(callee);
+                        frames.push(new Frame(callee, callees.get(callee).iterator()));
+                    }
+                    else if (onStack.contains(callee)) {
+                        lowLinks.put(frame.name, Math.min(lowLinks.get(frame.name), indices.get(callee)));
+                    }
+                    continue;
+                }
+
+                frames.pop();
+                if (!frames.isEmpty()) {
+                    Name caller = frames.peek().name;
+                    lowLinks.put(caller, Math.min(lowLinks.get(caller), lowLinks.get(frame.name)));
+                }
+                if (lowLinks.get(frame.name).equals(indices.get(frame.name))) {
+                    List<Name> component = new ArrayList<>();
+                    Name member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        component.add(member);
+                    }
+                    while (!member.equals(frame.name));
+                    component.sort(Comparator.comparing(order::get));
+                    components.add(ImmutableList.copyOf(component));
+                }
+            }
+        }
+        return components;
+    }
+
+    private static void layOut(
+            List<Name> roots,
+            List<List<Name>> components,
+            Map<Name, Integer> componentIndices,
+            Map<Name, List<Name>> callees,
+            Predicate<List<Name>> filter,
+            Set<Integer> placed,
+            List<List<Name>> layout)
+    {
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (Name root : roots) {
+            queue.push(componentIndices.get(root));
+            while (!queue.isEmpty()) {
+                int index = queue.pop();
+                List<Name> component = components.get(index);
+                if (placed.contains(index) || !filter.test(component)) {
+                    continue;
+                }
+                placed.add(index);
+                layout.add(component);
+
+                Set<Integer> successors = new LinkedHashSet<>();
+                component.forEach(n -> callees.get(n).forEach(c -> successors.add(componentIndices.get(c))));
+                List<Integer> pending = new ArrayList<>(successors);
+                for (int i = pending.size() - 1; i >= 0; --i) {
+                    if (!placed.contains(pending.get(i))) {
+                        queue.push(pending.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<List<Function>> pack(Module module, List<List<Name>> components, int maxFunctionsPerClass)
+    {
+        ImmutableList.Builder<List<Function>> chunks = ImmutableList.builder();
+        List<Function> chunk = new ArrayList<>();
+        for (List<Name> component : components) {
+            if (!chunk.isEmpty() && chunk.size() + component.size() > maxFunctionsPerClass && component.size() <= maxFunctionsPerClass) {
+                chunks.add(ImmutableList.copyOf(chunk));
+                chunk.clear();
+            }
+            for (Name name : component) {
+                if (chunk.size() == maxFunctionsPerClass) {
+                    chunks.add(ImmutableList.copyOf(chunk));
+                    chunk.clear();
+                }
+                chunk.add(module.getFunctions().get(name));
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(ImmutableList.copyOf(chunk));
+        }
+        return chunks.build();
+    }
+}
@@ -28,6 +28,7 @@ import com.wrmsr.wava.java.lang.tree.declaration.JField;
 import com.wrmsr.wava.java.lang.tree.declaration.JMethod;
 import com.wrmsr.wava.java.lang.tree.declaration.JType;
 import com.wrmsr.wava.java.lang.tree.expression.JAssignment;
+import com.wrmsr.wava.java.lang.tree.expression.JCast;
 import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodReference;
@@ -49,11 +50,18 @@ public final class ImportsCompilerImpl
         implements ModuleCompilationParticipant
 {
     private final Module module;
+    private final Optional<String> stubClass;
 
     @Inject
-    public ImportsCompilerImpl(Module module)
+    public ImportsCompilerImpl(Module module, ModuleCompilerConfig moduleCompilerConfig)
     {
         this.module = module;
+        this.stubClass = Optional.ofNullable(moduleCompilerConfig.getImportStubClass());
+    }
+
+    private JTypeSpecifier getStubClassType()
+    {
+        return JTypeSpecifier.of(JQualifiedName.parse(stubClass.get().replace('$', '.')));
     }
 
     @Override
@@ -83,6 +91,13 @@ public final class ImportsCompilerImpl
                         ImmutableList.of(),
                         ImmutableList.of(
                                 stubType,
+                                new JDeclarationBlock(
+                                        stubClass.isPresent() ? ImmutableList.of(
+                                                new JField(
+                                                        immutableEnumSet(JAccess.PUBLIC),
+                                                        JTypeSpecifier.of("Stub"),
+                                                        JName.of("stub"),
+                                                        Optional.empty())) : ImmutableList.of()),
                                 new JDeclarationBlock(
                                         module.getImports().values().stream().map(i ->
                                                 new JField(
@@ -107,38 +122,55 @@ public final class ImportsCompilerImpl
                                                         JTypeSpecifier.of("Stub"),
                                                         JName.of("stub"))),
                                         new JBlock(
-                                                module.getImports().values().stream().map(i -> new JExpressionStatement(
-                                                        JAssignment.of(
-                                                                JQualifiedName.of("this", NameMangler.DEFAULT.mangleName(i.getName().get())),
-                                                                new JMethodReference(
-                                                                        JQualifiedName.of("stub"),
-                                                                        JName.of(NameMangler.DEFAULT.mangleName(i.getName().get())))))
-                                                ).collect(toImmutableList()))),
+                                                ImmutableList.<JStatement>builder()
+                                                        .addAll(stubClass.isPresent() ? ImmutableList.of(
+                                                                new JExpressionStatement(
+                                                                        JAssignment.of(
+                                                                                JQualifiedName.of("this", "stub"),
+                                                                                new JIdent(
+                                                                                        JQualifiedName.of("stub"))))) : ImmutableList.of())
+                                                        .addAll(module.getImports().values().stream().map(i -> new JExpressionStatement(
+                                                                JAssignment.of(
+                                                                        JQualifiedName.of("this", NameMangler.DEFAULT.mangleName(i.getName().get())),
+                                                                        new JMethodReference(
+                                                                                JQualifiedName.of("stub"),
+                                                                                JName.of(NameMangler.DEFAULT.mangleName(i.getName().get())))))
+                                                        ).iterator())
+                                                        .build())),
 
-                                new JConstructor(
-                                        immutableEnumSet(JAccess.PUBLIC),
-                                        JName.of("Imports"),
-                                        module.getImports().values().stream().map(i -> new JArg(JTypeSpecifier.of(
-                                                i.getSignature().getChars().toUpperCase()),
-                                                JName.of(NameMangler.DEFAULT.mangleName(i.getName().get())))
-                                        ).collect(toImmutableList()),
-                                        new JBlock(
-                                                module.getImports().values().stream().map(i -> new JExpressionStatement(
-                                                        JAssignment.of(
-                                                                JQualifiedName.of("this", NameMangler.DEFAULT.mangleName(i.getName().get())),
-                                                                new JIdent(
-                                                                        JQualifiedName.of(NameMangler.DEFAULT.mangleName(i.getName().get())))
-                                                        )))
-                                                        .collect(toImmutableList()))))),
+                                // Without imports this would clash with the no-arg constructor.
+                                new JDeclarationBlock(
+                                        module.getImports().isEmpty() ? ImmutableList.of() : ImmutableList.of(
+                                                new JConstructor(
+                                                        immutableEnumSet(JAccess.PUBLIC),
+                                                        JName.of("Imports"),
+                                                        module.getImports().values().stream().map(i -> new JArg(JTypeSpecifier.of(
+                                                                i.getSignature().getChars().toUpperCase()),
+                                                                JName.of(NameMangler.DEFAULT.mangleName(i.getName().get())))
+                                                        ).collect(toImmutableList()),
+                                                        new JBlock(
+                                                                module.getImports().values().stream().map(i -> new JExpressionStatement(
+                                                                        JAssignment.of(
+                                                                                JQualifiedName.of("this", NameMangler.DEFAULT.mangleName(i.getName().get())),
+                                                                                new JIdent(
+                                                                                        JQualifiedName.of(NameMangler.DEFAULT.mangleName(i.getName().get())))
+                                                                        )))
+                                                                                .collect(toImmutableList()))))))),
 
                 new JDeclarationBlock(
-                        module.getImports().values().stream().map(i ->
+                        stubClass.isPresent() ? ImmutableList.of(
                                 new JField(
                                         immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
-                                        JTypeSpecifier.of(JQualifiedName.of(i.getSignature().getChars().toUpperCase())),
-                                        JName.of(NameMangler.DEFAULT.mangleName(i.getName().get())),
-                                        Optional.empty()
-                                )).collect(toImmutableList())));
+                                        getStubClassType(),
+                                        JName.of("_stub"),
+                                        Optional.empty())) :
+                                module.getImports().values().stream().map(i ->
+                                        new JField(
+                                                immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
+                                                JTypeSpecifier.of(JQualifiedName.of(i.getSignature().getChars().toUpperCase())),
+                                                JName.of(NameMangler.DEFAULT.mangleName(i.getName().get())),
+                                                Optional.empty()
+                                        )).collect(toImmutableList())));
     }
 
     @Override
@@ -153,6 +185,19 @@ public final class ImportsCompilerImpl
     @Override
     public List<JStatement> createCtorStatements()
     {
+        if (stubClass.isPresent()) {
+            return ImmutableList.of(
+                    new JExpressionStatement(
+                            JAssignment.of(
+                                    JQualifiedName.of("this", "_stub"),
+                                    new JCast(
+                                            getStubClassType(),
+                                            JMethodInvocation.of(
+                                                    JQualifiedName.parse("java.util.Objects.requireNonNull"),
+                                                    ImmutableList.of(
+                                                            new JIdent(
+                                                                    JQualifiedName.of("imports", "stub"))))))));
+        }
         return module.getImports().values().stream().map(i -> new JExpressionStatement(
                 JAssignment.of(
                         JQualifiedName.of("this", NameMangler.DEFAULT.mangleName(i.getName().get())),
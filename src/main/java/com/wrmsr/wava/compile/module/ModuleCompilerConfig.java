@@ -13,11 +13,22 @@
  */
 package com.wrmsr.wava.compile.module;
 
+import com.wrmsr.wava.compile.memory.MemoryBackend;
 import io.airlift.configuration.Config;
 
+import static java.util.Objects.requireNonNull;
+
 public final class ModuleCompilerConfig
 {
     private String packageName;
+    private MemoryBackend memoryBackend = MemoryBackend.DIRECT_BYTE_BUFFER;
+    private boolean memoryImageResource;
+    private String importStubClass;
+    private boolean methodHandleTables;
+    private int stackSize = 64 * 1024;
+    private boolean stackChecks;
+    private boolean boundsChecks;
+    private boolean diagnosticTraps;
 
     public String getPackageName()
     {
@@ -30,4 +41,105 @@ public final class ModuleCompilerConfig
         this.packageName = packageName;
         return this;
     }
+
+    public MemoryBackend getMemoryBackend()
+    {
+        return memoryBackend;
+    }
+
+    @Config("memory-backend")
+    public ModuleCompilerConfig setMemoryBackend(MemoryBackend memoryBackend)
+    {
+        this.memoryBackend = requireNonNull(memoryBackend);
+        return this;
+    }
+
+    public boolean isMemoryImageResource()
+    {
+        return memoryImageResource;
+    }
+
+    @Config("memory-image-resource")
+    public ModuleCompilerConfig setMemoryImageResource(boolean memoryImageResource)
+    {
+        this.memoryImageResource = memoryImageResource;
+        return this;
+    }
+
+    public String getImportStubClass()
+    {
+        return importStubClass;
+    }
+
+    // Binary name of a class implementing the module's Imports.Stub, such as com.example.Host$Stub. When set the
+    // module calls imports on it directly rather than through per-import functional interfaces.
+    @Config("import-stub-class")
+    public ModuleCompilerConfig setImportStubClass(String importStubClass)
+    {
+        this.importStubClass = importStubClass;
+        return this;
+    }
+
+    public boolean isMethodHandleTables()
+    {
+        return methodHandleTables;
+    }
+
+    @Config("method-handle-tables")
+    public ModuleCompilerConfig setMethodHandleTables(boolean methodHandleTables)
+    {
+        this.methodHandleTables = methodHandleTables;
+        return this;
+    }
+
+    public int getStackSize()
+    {
+        return stackSize;
+    }
+
+    // Minimum bytes reserved for the shadow stack between the end of the module's data segments and the stack top.
+    @Config("stack-size")
+    public ModuleCompilerConfig setStackSize(int stackSize)
+    {
+        this.stackSize = stackSize;
+        return this;
+    }
+
+    public boolean isStackChecks()
+    {
+        return stackChecks;
+    }
+
+    @Config("stack-checks")
+    public ModuleCompilerConfig setStackChecks(boolean stackChecks)
+    {
+        this.stackChecks = stackChecks;
+        return this;
+    }
+
+    public boolean isBoundsChecks()
+    {
+        return boundsChecks;
+    }
+
+    // Traps on out of bounds memory accesses, whatever the memory backend.
+    @Config("bounds-checks")
+    public ModuleCompilerConfig setBoundsChecks(boolean boundsChecks)
+    {
+        this.boundsChecks = boundsChecks;
+        return this;
+    }
+
+    public boolean isDiagnosticTraps()
+    {
+        return diagnosticTraps;
+    }
+
+    // Gives every trap its own stack trace, at the cost of allocating and filling one on each throw.
+    @Config("diagnostic-traps")
+    public ModuleCompilerConfig setDiagnosticTraps(boolean diagnosticTraps)
+    {
+        this.diagnosticTraps = diagnosticTraps;
+        return this;
+    }
 }
@@ -18,6 +18,9 @@ import io.airlift.configuration.Config;
 public final class MultiModuleCompilerConfig
 {
     private int numFunctionsPerClass = 100;
+    private boolean staticFunctionClasses;
+    private boolean callGraphPartitioning;
+    private String functionProfile;
 
     public int getNumFunctionsPerClass()
     {
@@ -30,4 +33,40 @@ public final class MultiModuleCompilerConfig
         this.numFunctionsPerClass = numFunctionsPerClass;
         return this;
     }
+
+    public boolean isStaticFunctionClasses()
+    {
+        return staticFunctionClasses;
+    }
+
+    @Config("static-function-classes")
+    public MultiModuleCompilerConfig setStaticFunctionClasses(boolean staticFunctionClasses)
+    {
+        this.staticFunctionClasses = staticFunctionClasses;
+        return this;
+    }
+
+    public boolean isCallGraphPartitioning()
+    {
+        return callGraphPartitioning;
+    }
+
+    @Config("call-graph-partitioning")
+    public MultiModuleCompilerConfig setCallGraphPartitioning(boolean callGraphPartitioning)
+    {
+        this.callGraphPartitioning = callGraphPartitioning;
+        return this;
+    }
+
+    public String getFunctionProfile()
+    {
+        return functionProfile;
+    }
+
+    @Config("function-profile")
+    public MultiModuleCompilerConfig setFunctionProfile(String functionProfile)
+    {
+        this.functionProfile = functionProfile;
+        return this;
+    }
 }
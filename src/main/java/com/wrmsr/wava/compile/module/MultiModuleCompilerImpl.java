@@ -14,8 +14,10 @@
 package com.wrmsr.wava.compile.module;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.wrmsr.wava.compile.function.FunctionCompiler;
+import com.wrmsr.wava.core.type.Name;
 import com.wrmsr.wava.core.unit.Function;
 import com.wrmsr.wava.core.unit.Module;
 import com.wrmsr.wava.java.lang.JAccess;
@@ -40,12 +42,14 @@ import com.wrmsr.wava.util.Itertools;
 
 import javax.inject.Inject;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
-import static com.google.common.collect.Iterables.partition;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Sets.immutableEnumSet;
 import static com.wrmsr.wava.compile.Compilation.PRIMITIVE_TYPE_MAP;
 import static com.wrmsr.wava.compile.Compilation.compileArgs;
@@ -78,18 +82,15 @@ public final class MultiModuleCompilerImpl
     @Override
     public List<JCompilationUnit> compileModule(Module module)
     {
-        Optional<JQualifiedName> packageName = Optional.ofNullable(moduleCompilerConfig.getPackageName()).map(JQualifiedName::parse);
-        int numFunctionsPerFile = multiModuleCompilerConfig.getNumFunctionsPerClass();
+        checkState(!multiModuleCompilerConfig.isStaticFunctionClasses(), "Static function classes are only supported by the bytecode backend");
+        Optional<JQualifiedName> packageName = getPackageName();
 
-        List<JArg> ctorArgs = compilationParticipants.stream()
-                .map(ModuleCompilationParticipant::createCtorArgs)
-                .flatMap(List::stream)
-                .collect(toImmutableList());
+        List<JArg> ctorArgs = compileCtorArgs();
 
         ImmutableList.Builder<JCompilationUnit> compilationUnits = ImmutableList.builder();
 
         int depth = 0;
-        for (Itertools.EnumeratedElement<List<Function>> chunk : enumerate(partition(module.getFunctions().values(), numFunctionsPerFile))) {
+        for (Itertools.EnumeratedElement<List<Function>> chunk : enumerate(partitionFunctions(module))) {
             JName chunkName = JName.of(module.getName().get() + "$" + (chunk.getIndex() + 1));
             ImmutableList.Builder<JDeclaration> functionDeclarations = ImmutableList.builder();
 
@@ -134,6 +135,69 @@ public final class MultiModuleCompilerImpl
             ++depth;
         }
 
+        compilationUnits.add(compileBaseClass(module));
+
+        compilationUnits.add(
+                new JCompilationUnit(
+                        packageName.map(JPackageSpec::new),
+                        ImmutableSet.of(),
+                        new JType(
+                                immutableEnumSet(JAccess.PUBLIC, JAccess.FINAL),
+                                JType.Kind.CLASS,
+                                JName.of(module.getName().get()),
+                                ImmutableList.of(
+                                        new JInheritance(
+                                                JInheritance.Kind.EXTENDS,
+                                                JQualifiedName.of(module.getName().get() + "$" + depth))),
+                                ImmutableList.<JDeclaration>builder()
+                                        .add(
+                                                new JConstructor(
+                                                        immutableEnumSet(JAccess.PUBLIC),
+                                                        JName.of(module.getName().get()),
+                                                        ctorArgs,
+                                                        jblockify(
+                                                                new JExpressionStatement(
+                                                                        JMethodInvocation.of(
+                                                                                JQualifiedName.of("super"),
+                                                                                ctorArgs.stream()
+                                                                                        .map(a -> new JIdent(
+                                                                                                JQualifiedName.of(a.getName())))
+                                                                                        .collect(toImmutableList()))))))
+                                        .build())));
+
+        return compilationUnits.build();
+    }
+
+    public Optional<JQualifiedName> getPackageName()
+    {
+        return Optional.ofNullable(moduleCompilerConfig.getPackageName()).map(JQualifiedName::parse);
+    }
+
+    public List<List<Function>> partitionFunctions(Module module)
+    {
+        int numFunctionsPerClass = multiModuleCompilerConfig.getNumFunctionsPerClass();
+        if (!multiModuleCompilerConfig.isCallGraphPartitioning()) {
+            return FunctionPartitioning.partitionInDeclarationOrder(module, numFunctionsPerClass);
+        }
+        Map<Name, Long> profile = Optional.ofNullable(multiModuleCompilerConfig.getFunctionProfile())
+                .map(p -> FunctionPartitioning.readProfile(Paths.get(p)))
+                .orElse(ImmutableMap.of());
+        return FunctionPartitioning.partitionByCallGraph(module, numFunctionsPerClass, profile);
+    }
+
+    public List<JArg> compileCtorArgs()
+    {
+        return compilationParticipants.stream()
+                .map(ModuleCompilationParticipant::createCtorArgs)
+                .flatMap(List::stream)
+                .collect(toImmutableList());
+    }
+
+    public JCompilationUnit compileBaseClass(Module module)
+    {
+        Optional<JQualifiedName> packageName = getPackageName();
+        List<JArg> ctorArgs = compileCtorArgs();
+
         List<JDeclaration> rootDeclarations = new ArrayList<>();
 
         List<JDeclaration> interfaceDeclarations = compilationParticipants.stream()
@@ -174,45 +238,14 @@ public final class MultiModuleCompilerImpl
                             Optional.empty()));
         }
 
-        compilationUnits.add(
-                new JCompilationUnit(
-                        packageName.map(JPackageSpec::new),
-                        ImmutableSet.of(),
-                        new JType(
-                                immutableEnumSet(JAccess.ABSTRACT),
-                                JType.Kind.CLASS,
-                                JName.of(module.getName().get() + "$0"),
-                                ImmutableList.of(),
-                                rootDeclarations)));
-
-        compilationUnits.add(
-                new JCompilationUnit(
-                        packageName.map(JPackageSpec::new),
-                        ImmutableSet.of(),
-                        new JType(
-                                immutableEnumSet(JAccess.PUBLIC, JAccess.FINAL),
-                                JType.Kind.CLASS,
-                                JName.of(module.getName().get()),
-                                ImmutableList.of(
-                                        new JInheritance(
-                                                JInheritance.Kind.EXTENDS,
-                                                JQualifiedName.of(module.getName().get() + "$" + depth))),
-                                ImmutableList.<JDeclaration>builder()
-                                        .add(
-                                                new JConstructor(
-                                                        immutableEnumSet(JAccess.PUBLIC),
-                                                        JName.of(module.getName().get()),
-                                                        ctorArgs,
-                                                        jblockify(
-                                                                new JExpressionStatement(
-                                                                        JMethodInvocation.of(
-                                                                                JQualifiedName.of("super"),
-                                                                                ctorArgs.stream()
-                                                                                        .map(a -> new JIdent(
-                                                                                                JQualifiedName.of(a.getName())))
-                                                                                        .collect(toImmutableList()))))))
-                                        .build())));
-
-        return compilationUnits.build();
+        return new JCompilationUnit(
+                packageName.map(JPackageSpec::new),
+                ImmutableSet.of(),
+                new JType(
+                        immutableEnumSet(JAccess.ABSTRACT),
+                        JType.Kind.CLASS,
+                        JName.of(module.getName().get() + "$0"),
+                        ImmutableList.of(),
+                        rootDeclarations));
     }
 }
@@ -16,9 +16,11 @@ package com.wrmsr.wava.compile.module;
 import com.google.common.collect.ImmutableList;
 import com.wrmsr.wava.core.type.Name;
 import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.type.Type;
 import com.wrmsr.wava.core.unit.Function;
 import com.wrmsr.wava.core.unit.Module;
 import com.wrmsr.wava.java.lang.JAccess;
+import com.wrmsr.wava.java.lang.JArg;
 import com.wrmsr.wava.java.lang.JArray;
 import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
@@ -30,14 +32,23 @@ import com.wrmsr.wava.java.lang.tree.declaration.JInitializationBlock;
 import com.wrmsr.wava.java.lang.tree.declaration.JMethod;
 import com.wrmsr.wava.java.lang.tree.expression.JArrayAccess;
 import com.wrmsr.wava.java.lang.tree.expression.JAssignment;
+import com.wrmsr.wava.java.lang.tree.expression.JCast;
+import com.wrmsr.wava.java.lang.tree.expression.JExpression;
 import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JLongArrayLiteral;
+import com.wrmsr.wava.java.lang.tree.expression.JMemberAccess;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodReference;
+import com.wrmsr.wava.java.lang.tree.expression.JNew;
 import com.wrmsr.wava.java.lang.tree.expression.JNewArray;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
+import com.wrmsr.wava.java.lang.tree.statement.JCatch;
 import com.wrmsr.wava.java.lang.tree.statement.JExpressionStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JReturn;
+import com.wrmsr.wava.java.lang.tree.statement.JStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JThrow;
+import com.wrmsr.wava.java.lang.tree.statement.JTry;
 import com.wrmsr.wava.util.NameMangler;
 
 import javax.inject.Inject;
@@ -61,12 +72,142 @@ import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
 public final class TableCompilerImpl
         implements ModuleCompilationParticipant
 {
+    private static final JQualifiedName METHOD_HANDLE = JQualifiedName.parse("java.lang.invoke.MethodHandle");
+    private static final JQualifiedName METHOD_TYPE = JQualifiedName.parse("java.lang.invoke.MethodType");
+
     private final Module module;
+    private final boolean methodHandleTables;
 
     @Inject
-    public TableCompilerImpl(Module module)
+    public TableCompilerImpl(Module module, ModuleCompilerConfig moduleCompilerConfig)
     {
         this.module = module;
+        this.methodHandleTables = moduleCompilerConfig.isMethodHandleTables();
+    }
+
+    private JQualifiedName getTableEntryTypeName(Signature signature)
+    {
+        return methodHandleTables ? METHOD_HANDLE : JQualifiedName.of(signature.getChars().toUpperCase());
+    }
+
+    private JExpression compileTableEntry(Signature signature, Function function)
+    {
+        String name = NameMangler.DEFAULT.mangleName(function.getName().get());
+        if (methodHandleTables) {
+            return JMethodInvocation.of(
+                    JQualifiedName.of("this", "_bindTableEntry"),
+                    ImmutableList.of(
+                            new JLiteral(name),
+                            new JIdent(
+                                    JQualifiedName.of("_" + signature.getChars() + "Type"))));
+        }
+        return new JMethodReference(
+                JQualifiedName.of("this"),
+                JName.of(name));
+    }
+
+    private JDeclaration compileBindTableEntryDeclaration()
+    {
+        JExpression lookup = JMethodInvocation.of(
+                JQualifiedName.parse("java.lang.invoke.MethodHandles.lookup"),
+                ImmutableList.of());
+        JExpression handle = new JMethodInvocation(
+                new JMemberAccess(lookup, JName.of("findVirtual")),
+                ImmutableList.of(
+                        new JIdent(JQualifiedName.of(module.getName().get() + "$0", "class")),
+                        new JIdent(JQualifiedName.of("name")),
+                        new JIdent(JQualifiedName.of("type"))));
+        return new JMethod(
+                immutableEnumSet(JAccess.PRIVATE),
+                JTypeSpecifier.of(METHOD_HANDLE),
+                JName.of("_bindTableEntry"),
+                ImmutableList.of(
+                        new JArg(JTypeSpecifier.of("String"), JName.of("name")),
+                        new JArg(JTypeSpecifier.of(METHOD_TYPE), JName.of("type"))),
+                Optional.of(
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JTry(
+                                                new JBlock(
+                                                        ImmutableList.of(
+                                                                new JReturn(
+                                                                        Optional.of(
+                                                                                new JMethodInvocation(
+                                                                                        new JMemberAccess(handle, JName.of("bindTo")),
+                                                                                        ImmutableList.of(new JIdent(JQualifiedName.of("this")))))))),
+                                                ImmutableList.of(
+                                                        new JCatch(
+                                                                ImmutableList.of(JQualifiedName.of("ReflectiveOperationException")),
+                                                                JName.of("e"),
+                                                                new JBlock(
+                                                                        ImmutableList.of(
+                                                                                new JThrow(
+                                                                                        new JNew(
+                                                                                                JTypeSpecifier.of("IllegalStateException"),
+                                                                                                ImmutableList.of(new JIdent(JQualifiedName.of("e"))))))))))))));
+    }
+
+    private static JExpression compileClassLiteral(Type type)
+    {
+        return new JIdent(JQualifiedName.of(type.getPrimitive().getName(), "class"));
+    }
+
+    // invokeExact is declared to throw Throwable, which generated functions cannot, so each signature gets a helper.
+    private static List<JDeclaration> compileInvokeDeclarations(Signature signature)
+    {
+        JTypeSpecifier result = JTypeSpecifier.of(signature.getResult().getPrimitive().getName());
+        List<Type> args = signature.getArguments();
+
+        JDeclaration type = new JField(
+                immutableEnumSet(JAccess.PROTECTED, JAccess.STATIC, JAccess.FINAL),
+                JTypeSpecifier.of(METHOD_TYPE),
+                JName.of("_" + signature.getChars() + "Type"),
+                Optional.of(
+                        JMethodInvocation.of(
+                                JQualifiedName.parse("java.lang.invoke.MethodType.methodType"),
+                                ImmutableList.<JExpression>builder()
+                                        .add(compileClassLiteral(signature.getResult()))
+                                        .addAll(args.stream().map(TableCompilerImpl::compileClassLiteral).collect(toImmutableList()))
+                                        .build())));
+
+        JExpression invocation = JMethodInvocation.of(
+                JQualifiedName.of("handle", "invokeExact"),
+                IntStream.range(0, args.size()).mapToObj(i -> new JIdent(JQualifiedName.of("arg" + i))).collect(toImmutableList()));
+        JStatement body = signature.getResult() == Type.NONE ?
+                new JExpressionStatement(invocation) :
+                new JReturn(Optional.of(new JCast(result, invocation)));
+
+        JDeclaration invoke = new JMethod(
+                immutableEnumSet(JAccess.PROTECTED, JAccess.STATIC),
+                result,
+                JName.of("_" + signature.getChars() + "Invoke"),
+                ImmutableList.<JArg>builder()
+                        .add(new JArg(JTypeSpecifier.of(METHOD_HANDLE), JName.of("handle")))
+                        .addAll(IntStream.range(0, args.size())
+                                .mapToObj(i -> new JArg(JTypeSpecifier.of(args.get(i).getPrimitive().getName()), JName.of("arg" + i)))
+                                .collect(toImmutableList()))
+                        .build(),
+                Optional.of(
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JTry(
+                                                new JBlock(ImmutableList.of(body)),
+                                                ImmutableList.of(
+                                                        new JCatch(
+                                                                ImmutableList.of(JQualifiedName.of("RuntimeException"), JQualifiedName.of("Error")),
+                                                                JName.of("e"),
+                                                                new JBlock(ImmutableList.of(new JThrow(new JIdent(JQualifiedName.of("e")))))),
+                                                        new JCatch(
+                                                                ImmutableList.of(JQualifiedName.of("Throwable")),
+                                                                JName.of("e"),
+                                                                new JBlock(
+                                                                        ImmutableList.of(
+                                                                                new JThrow(
+                                                                                        new JNew(
+                                                                                                JTypeSpecifier.of("java", "lang", "reflect", "UndeclaredThrowableException"),
+                                                                                                ImmutableList.of(new JIdent(JQualifiedName.of("e"))))))))))))));
+
+        return ImmutableList.of(type, invoke);
     }
 
     @Override
@@ -84,20 +225,27 @@ public final class TableCompilerImpl
         List<Integer> tableIndices = module.getTable().getNames().stream().map(indices::get).map(Objects::requireNonNull).collect(toImmutableList());
 
         ImmutableList.Builder<JDeclaration> declarations = ImmutableList.builder();
+        if (methodHandleTables) {
+            declarations.add(compileBindTableEntryDeclaration());
+        }
 
         for (Signature s : tableSigs) {
             List<Function> lst = tables.getOrDefault(s, new ArrayList<>());
 
+            if (methodHandleTables) {
+                declarations.addAll(compileInvokeDeclarations(s));
+            }
+
             JDeclaration fdec = new JField(
                     immutableEnumSet(JAccess.PROTECTED, JAccess.FINAL),
                     new JTypeSpecifier(
-                            JQualifiedName.of(s.getChars().toUpperCase()),
+                            getTableEntryTypeName(s),
                             ImmutableList.of(JArray.EMPTY)),
                     JName.of("_" + s.getChars() + "Table"),
                     Optional.of(
                             new JNewArray(
                                     new JTypeSpecifier(
-                                            JQualifiedName.of(s.getChars().toUpperCase()),
+                                            getTableEntryTypeName(s),
                                             ImmutableList.of(
                                                     new JArray(
                                                             new JLiteral(lst.size())))),
@@ -125,9 +273,7 @@ public final class TableCompilerImpl
                                                                                         new JIdent(
                                                                                                 JQualifiedName.of("this", "_" + s.getChars() + "Table")),
                                                                                         new JLiteral(j)),
-                                                                                new JMethodReference(
-                                                                                        JQualifiedName.of("this"),
-                                                                                        JName.of(NameMangler.DEFAULT.mangleName(lst.get(j).getName().get()))))))
+                                                                                compileTableEntry(s, lst.get(j)))))
                                                         .collect(toImmutableList())))));
                 declarations.add(
                         new JInitializationBlock(
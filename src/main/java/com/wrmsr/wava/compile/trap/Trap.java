@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.trap;
+
+import static java.util.Objects.requireNonNull;
+
+/*
+The ways generated code can trap, each thrown as its own subclass of the module's Trap exception.
+*/
+public enum Trap
+{
+    UNREACHABLE("UnreachableException", "unreachable"),
+    INTEGER_DIVIDE_BY_ZERO("IntegerDivideByZeroException", "integer divide by zero"),
+    INTEGER_OVERFLOW("IntegerOverflowException", "integer overflow"),
+    INVALID_CONVERSION("InvalidConversionException", "invalid conversion to integer"),
+    MEMORY_ACCESS("MemoryAccessException", "out of bounds memory access");
+
+    private final String className;
+    private final String message;
+
+    Trap(String className, String message)
+    {
+        this.className = requireNonNull(className);
+        this.message = requireNonNull(message);
+    }
+
+    public String getClassName()
+    {
+        return className;
+    }
+
+    public String getMessage()
+    {
+        return message;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.trap;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.java.lang.JAccess;
+import com.wrmsr.wava.java.lang.JArg;
+import com.wrmsr.wava.java.lang.JName;
+import com.wrmsr.wava.java.lang.JQualifiedName;
+import com.wrmsr.wava.java.lang.JTypeSpecifier;
+import com.wrmsr.wava.java.lang.op.JBinaryOp;
+import com.wrmsr.wava.java.lang.tree.JInheritance;
+import com.wrmsr.wava.java.lang.tree.declaration.JAnnotatedDeclaration;
+import com.wrmsr.wava.java.lang.tree.declaration.JConstructor;
+import com.wrmsr.wava.java.lang.tree.declaration.JDeclaration;
+import com.wrmsr.wava.java.lang.tree.declaration.JField;
+import com.wrmsr.wava.java.lang.tree.declaration.JMethod;
+import com.wrmsr.wava.java.lang.tree.declaration.JType;
+import com.wrmsr.wava.java.lang.tree.expression.JBinary;
+import com.wrmsr.wava.java.lang.tree.expression.JExpression;
+import com.wrmsr.wava.java.lang.tree.expression.JIdent;
+import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
+import com.wrmsr.wava.java.lang.tree.expression.JMemberAccess;
+import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
+import com.wrmsr.wava.java.lang.tree.expression.JNew;
+import com.wrmsr.wava.java.lang.tree.statement.JBlock;
+import com.wrmsr.wava.java.lang.tree.statement.JCase;
+import com.wrmsr.wava.java.lang.tree.statement.JExpressionStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JForEach;
+import com.wrmsr.wava.java.lang.tree.statement.JIf;
+import com.wrmsr.wava.java.lang.tree.statement.JReturn;
+import com.wrmsr.wava.java.lang.tree.statement.JStatement;
+import com.wrmsr.wava.java.lang.tree.statement.JSwitch;
+import com.wrmsr.wava.java.lang.tree.statement.JVariable;
+import com.wrmsr.wava.util.NameMangler;
+
+import javax.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static com.google.common.collect.Sets.immutableEnumSet;
+import static java.util.Objects.requireNonNull;
+
+/*
+Declares the module's Trap exceptions. By default they carry no stack trace and each kind is a single preallocated
+instance, so code that traps on purpose and recovers pays no more than for the throw. In diagnostic mode every trap is
+freshly allocated with its stack trace, and its message lists the module functions it was thrown through.
+*/
+public final class TrapCompilerImpl
+        implements ModuleCompilationParticipant
+{
+    private static final JQualifiedName STRING = JQualifiedName.parse("java.lang.String");
+    private static final JQualifiedName TRAP = JQualifiedName.of("Trap");
+
+    private final Module module;
+    private final Optional<String> packageName;
+    private final boolean diagnosticTraps;
+
+    @Inject
+    public TrapCompilerImpl(Module module, ModuleCompilerConfig moduleCompilerConfig)
+    {
+        this.module = requireNonNull(module);
+        this.packageName = Optional.ofNullable(moduleCompilerConfig.getPackageName());
+        this.diagnosticTraps = moduleCompilerConfig.isDiagnosticTraps();
+    }
+
+    // Traps are thrown as the result of their class's get method, which hides whether the instance is shared.
+    public static JExpression compileTrap(Trap trap)
+    {
+        return JMethodInvocation.of(
+                JQualifiedName.of(trap.getClassName(), "get"),
+                ImmutableList.of());
+    }
+
+    @Override
+    public List<JDeclaration> createPreCtorDeclarations()
+    {
+        ImmutableList.Builder<JDeclaration> declarations = ImmutableList.builder();
+        declarations.add(diagnosticTraps ? compileDiagnosticTrapDeclaration() : compileTrapDeclaration());
+        for (Trap trap : Trap.values()) {
+            declarations.add(compileTrapKindDeclaration(trap));
+        }
+        return declarations.build();
+    }
+
+    private static JDeclaration compileTrapConstructor(List<JExpression> superOperands)
+    {
+        return new JConstructor(
+                immutableEnumSet(JAccess.PROTECTED),
+                TRAP.getParts().get(0),
+                ImmutableList.of(new JArg(JTypeSpecifier.of(STRING), JName.of("message"))),
+                new JBlock(
+                        ImmutableList.of(
+                                new JExpressionStatement(
+                                        JMethodInvocation.of(
+                                                JQualifiedName.of("super"),
+                                                superOperands)))));
+    }
+
+    private static JDeclaration compileTrapDeclaration()
+    {
+        return new JType(
+                immutableEnumSet(JAccess.PUBLIC, JAccess.ABSTRACT, JAccess.STATIC),
+                JType.Kind.CLASS,
+                TRAP.getParts().get(0),
+                ImmutableList.of(new JInheritance(JInheritance.Kind.EXTENDS, JQualifiedName.parse("java.lang.RuntimeException"))),
+                ImmutableList.of(
+                        compileTrapConstructor(
+                                ImmutableList.of(
+                                        new JIdent(JQualifiedName.of("message")),
+                                        new JLiteral(null),
+                                        new JLiteral(false),
+                                        new JLiteral(false)))));
+    }
+
+    // Function classes are numbered from 1, the base class being 0.
+    private JDeclaration compileDiagnosticTrapDeclaration()
+    {
+        JExpression prefix = new JIdent(JQualifiedName.of("FUNCTION_CLASS_PREFIX"));
+        JExpression className = new JIdent(JQualifiedName.of("className"));
+        JExpression functions = new JIdent(JQualifiedName.of("functions"));
+        JExpression isFunctionClass = new JBinary(
+                JBinaryOp.ConditionalAnd,
+                new JMethodInvocation(new JMemberAccess(className, JName.of("startsWith")), ImmutableList.of(prefix)),
+                new JMethodInvocation(
+                        new JMemberAccess(
+                                new JMethodInvocation(
+                                        new JMemberAccess(className, JName.of("substring")),
+                                        ImmutableList.of(new JMethodInvocation(new JMemberAccess(prefix, JName.of("length")), ImmutableList.of()))),
+                                JName.of("matches")),
+                        ImmutableList.of(new JLiteral("[1-9][0-9]*"))));
+
+        JDeclaration getFunctionTrace = new JMethod(
+                immutableEnumSet(JAccess.PUBLIC),
+                JTypeSpecifier.of(STRING),
+                JName.of("getFunctionTrace"),
+                ImmutableList.of(),
+                Optional.of(
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JVariable(
+                                                JTypeSpecifier.of("java", "lang", "StringBuilder"),
+                                                JName.of("functions"),
+                                                Optional.of(new JNew(JTypeSpecifier.of("java", "lang", "StringBuilder"), ImmutableList.of()))),
+                                        new JForEach(
+                                                JTypeSpecifier.of("java", "lang", "StackTraceElement"),
+                                                JName.of("element"),
+                                                JMethodInvocation.of(JQualifiedName.of("getStackTrace"), ImmutableList.of()),
+                                                new JBlock(
+                                                        ImmutableList.of(
+                                                                new JVariable(
+                                                                        JTypeSpecifier.of(STRING),
+                                                                        JName.of("className"),
+                                                                        Optional.of(JMethodInvocation.of(JQualifiedName.of("element", "getClassName"), ImmutableList.of()))),
+                                                                new JIf(
+                                                                        isFunctionClass,
+                                                                        new JBlock(
+                                                                                ImmutableList.of(
+                                                                                        new JIf(
+                                                                                                new JBinary(
+                                                                                                        JBinaryOp.GreaterThan,
+                                                                                                        new JMethodInvocation(new JMemberAccess(functions, JName.of("length")), ImmutableList.of()),
+                                                                                                        new JLiteral(0)),
+                                                                                                new JBlock(
+                                                                                                        ImmutableList.of(
+                                                                                                                new JExpressionStatement(
+                                                                                                                        new JMethodInvocation(
+                                                                                                                                new JMemberAccess(functions, JName.of("append")),
+                                                                                                                                ImmutableList.of(new JLiteral(" <- ")))))),
+                                                                                                Optional.empty()),
+                                                                                        new JExpressionStatement(
+                                                                                                new JMethodInvocation(
+                                                                                                        new JMemberAccess(functions, JName.of("append")),
+                                                                                                        ImmutableList.of(
+                                                                                                                JMethodInvocation.of(
+                                                                                                                        JQualifiedName.of("getFunctionName"),
+                                                                                                                        ImmutableList.of(
+                                                                                                                                JMethodInvocation.of(
+                                                                                                                                        JQualifiedName.of("element", "getMethodName"),
+                                                                                                                                        ImmutableList.of())))))))),
+                                                                        Optional.empty())))),
+                                        new JReturn(
+                                                Optional.of(
+                                                        new JMethodInvocation(new JMemberAccess(functions, JName.of("toString")), ImmutableList.of())))))));
+
+        JDeclaration getMessage = new JAnnotatedDeclaration(
+                JQualifiedName.parse("java.lang.Override"),
+                Optional.empty(),
+                new JMethod(
+                        immutableEnumSet(JAccess.PUBLIC),
+                        JTypeSpecifier.of(STRING),
+                        JName.of("getMessage"),
+                        ImmutableList.of(),
+                        Optional.of(
+                                new JBlock(
+                                        ImmutableList.of(
+                                                new JReturn(
+                                                        Optional.of(
+                                                                new JBinary(
+                                                                        JBinaryOp.Add,
+                                                                        new JBinary(
+                                                                                JBinaryOp.Add,
+                                                                                JMethodInvocation.of(JQualifiedName.of("super", "getMessage"), ImmutableList.of()),
+                                                                                new JLiteral(" in ")),
+                                                                        JMethodInvocation.of(JQualifiedName.of("getFunctionTrace"), ImmutableList.of())))))))));
+
+        return new JType(
+                immutableEnumSet(JAccess.PUBLIC, JAccess.ABSTRACT, JAccess.STATIC),
+                JType.Kind.CLASS,
+                TRAP.getParts().get(0),
+                ImmutableList.of(new JInheritance(JInheritance.Kind.EXTENDS, JQualifiedName.parse("java.lang.RuntimeException"))),
+                ImmutableList.of(
+                        new JField(
+                                immutableEnumSet(JAccess.PRIVATE, JAccess.STATIC, JAccess.FINAL),
+                                JTypeSpecifier.of(STRING),
+                                JName.of("FUNCTION_CLASS_PREFIX"),
+                                Optional.of(new JLiteral(packageName.map(n -> n + ".").orElse("") + module.getName().get() + "$"))),
+                        compileTrapConstructor(ImmutableList.of(new JIdent(JQualifiedName.of("message")))),
+                        compileFunctionNameDeclaration(),
+                        getFunctionTrace,
+                        getMessage));
+    }
+
+    // Only functions whose names had to be mangled into Java identifiers need mapping back.
+    private JDeclaration compileFunctionNameDeclaration()
+    {
+        JStatement fallback = new JReturn(Optional.of(new JIdent(JQualifiedName.of("methodName"))));
+        List<JCase> cases = new ArrayList<>();
+        for (Name name : module.getFunctions().keySet()) {
+            String original = NameMangler.DEFAULT.demangleName(name.get());
+            if (!original.equals(name.get())) {
+                cases.add(new JCase(ImmutableList.of(name.get()), false, new JBlock(ImmutableList.of(new JReturn(Optional.of(new JLiteral(original)))))));
+            }
+        }
+        JStatement body = fallback;
+        if (!cases.isEmpty()) {
+            cases.add(new JCase(ImmutableList.of(), true, new JBlock(ImmutableList.of(fallback))));
+            body = new JSwitch(new JIdent(JQualifiedName.of("methodName")), cases);
+        }
+        return new JMethod(
+                immutableEnumSet(JAccess.PRIVATE, JAccess.STATIC),
+                JTypeSpecifier.of(STRING),
+                JName.of("getFunctionName"),
+                ImmutableList.of(new JArg(JTypeSpecifier.of(STRING), JName.of("methodName"))),
+                Optional.of(new JBlock(ImmutableList.of(body))));
+    }
+
+    // Outside diagnostic mode each kind is a single preallocated instance.
+    private JDeclaration compileTrapKindDeclaration(Trap trap)
+    {
+        JName name = JName.of(trap.getClassName());
+        JExpression instance = new JNew(JTypeSpecifier.of(JQualifiedName.of(name)), ImmutableList.of());
+
+        ImmutableList.Builder<JDeclaration> body = ImmutableList.builder();
+        if (!diagnosticTraps) {
+            body.add(
+                    new JField(
+                            immutableEnumSet(JAccess.PRIVATE, JAccess.STATIC, JAccess.FINAL),
+                            JTypeSpecifier.of(JQualifiedName.of(name)),
+                            JName.of("INSTANCE"),
+                            Optional.of(instance)));
+            instance = new JIdent(JQualifiedName.of("INSTANCE"));
+        }
+        body.add(
+                new JConstructor(
+                        immutableEnumSet(JAccess.PRIVATE),
+                        name,
+                        ImmutableList.of(),
+                        new JBlock(
+                                ImmutableList.of(
+                                        new JExpressionStatement(
+                                                JMethodInvocation.of(
+                                                        JQualifiedName.of("super"),
+                                                        ImmutableList.of(new JLiteral(trap.getMessage()))))))));
+        body.add(
+                new JMethod(
+                        immutableEnumSet(JAccess.PUBLIC, JAccess.STATIC),
+                        JTypeSpecifier.of(JQualifiedName.of(name)),
+                        JName.of("get"),
+                        ImmutableList.of(),
+                        Optional.of(new JBlock(ImmutableList.of(new JReturn(Optional.of(instance)))))));
+
+        return new JType(
+                immutableEnumSet(JAccess.PUBLIC, JAccess.STATIC, JAccess.FINAL),
+                JType.Kind.CLASS,
+                name,
+                ImmutableList.of(new JInheritance(JInheritance.Kind.EXTENDS, TRAP)),
+                body.build());
+    }
+}
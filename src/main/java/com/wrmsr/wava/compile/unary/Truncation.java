@@ -14,6 +14,8 @@
 package com.wrmsr.wava.compile.unary;
 
 import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.compile.trap.Trap;
+import com.wrmsr.wava.compile.trap.TrapCompilerImpl;
 import com.wrmsr.wava.java.lang.JAccess;
 import com.wrmsr.wava.java.lang.JArg;
 import com.wrmsr.wava.java.lang.JName;
@@ -30,7 +32,6 @@ import com.wrmsr.wava.java.lang.tree.expression.JExpression;
 import com.wrmsr.wava.java.lang.tree.expression.JIdent;
 import com.wrmsr.wava.java.lang.tree.expression.JLiteral;
 import com.wrmsr.wava.java.lang.tree.expression.JMethodInvocation;
-import com.wrmsr.wava.java.lang.tree.expression.JNew;
 import com.wrmsr.wava.java.lang.tree.expression.JUnary;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
 import com.wrmsr.wava.java.lang.tree.statement.JIf;
@@ -68,15 +69,13 @@ public final class Truncation
                 ImmutableList.copyOf(body));
     }
 
-    private static JStatement newIfThrow(JExpression condition)
+    private static JStatement newIfThrow(JExpression condition, Trap trap)
     {
         return new JIf(
                 condition,
                 newBlock(
                         new JThrow(
-                                new JNew(
-                                        JTypeSpecifier.of("java", "lang", "IllegalStateException"),
-                                        ImmutableList.of()))),
+                                TrapCompilerImpl.compileTrap(trap))),
                 Optional.empty());
     }
 
@@ -90,7 +89,8 @@ public final class Truncation
         return newIfThrow(
                 new JMethodInvocation(
                         new JIdent(JQualifiedName.of(box, "isNaN")),
-                        ImmutableList.of(newRef("val"))));
+                        ImmutableList.of(newRef("val"))),
+                Trap.INVALID_CONVERSION);
     }
 
     private static JStatement newReturn(JQualifiedName... casts)
@@ -243,7 +243,8 @@ public final class Truncation
                                         new JBinary(
                                                 JBinaryOp.ConditionalAnd,
                                                 new JBinary(JBinaryOp.GreaterThanOrEqual, newRef("bits"), new JLiteral(0x80000000L)),
-                                                new JBinary(JBinaryOp.LessThan, newRef("bits"), new JLiteral(min)))))));
+                                                new JBinary(JBinaryOp.LessThan, newRef("bits"), new JLiteral(min))))),
+                        Trap.INTEGER_OVERFLOW));
     }
 
     private static JStatement newDoubleTruncationBoundsCheck(long max, long min)
@@ -265,7 +266,8 @@ public final class Truncation
                                         new JBinary(
                                                 JBinaryOp.ConditionalAnd,
                                                 newCompareUnsignedLong(JBinaryOp.GreaterThanOrEqual, newRef("bits"), new JLiteral(0x8000000000000000L)),
-                                                newCompareUnsignedLong(JBinaryOp.LessThan, newRef("bits"), new JLiteral(min)))))));
+                                                newCompareUnsignedLong(JBinaryOp.LessThan, newRef("bits"), new JLiteral(min))))),
+                        Trap.INTEGER_OVERFLOW));
     }
 
     private static JDeclaration newConvertFunction(String name, JQualifiedName fromPrim, JQualifiedName toPrim, JStatement... body)
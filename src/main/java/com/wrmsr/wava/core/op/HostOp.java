@@ -14,6 +14,7 @@
 package com.wrmsr.wava.core.op;
 
 import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.type.Type;
 
 import static com.wrmsr.wava.core.type.Signature.parseSignature;
 import static java.util.Objects.requireNonNull;
@@ -25,6 +26,11 @@ public enum HostOp
     GrowMemory(parseSignature("ii")),
     HasFeature(parseSignature("ii")),
 
+    // (ptr, end) -> ptr, trapping unless the end bytes past the unsigned ptr lie within memory.
+    CheckAddress(parseSignature("iii")),
+
+    // Spills are typed by their call's signature, (slot, value) for puts and (slot) for gets, so these are only the
+    // i64 forms.
     SpillPut(parseSignature("vil")),
     SpillGet(parseSignature("li"));
 
@@ -39,4 +45,14 @@ public enum HostOp
     {
         return signature;
     }
+
+    public static Signature getSpillPutSignature(Type type)
+    {
+        return Signature.of(Type.NONE, Type.I32, type);
+    }
+
+    public static Signature getSpillGetSignature(Type type)
+    {
+        return Signature.of(type, Type.I32);
+    }
 }
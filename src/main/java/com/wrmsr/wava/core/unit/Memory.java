@@ -26,7 +26,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 @Immutable
 public final class Memory
 {
-    public static final int PAGE_SIZE = 64 * 1024 * 1024;
+    public static final int PAGE_SIZE = 64 * 1024;
 
     private final int initialPages;
     private final OptionalInt maxPages;
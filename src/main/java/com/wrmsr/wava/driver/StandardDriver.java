@@ -17,6 +17,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.wrmsr.wava.compile.binary.BinaryCompiler;
 import com.wrmsr.wava.compile.binary.BinaryCompilerImpl;
+import com.wrmsr.wava.compile.bytecode.BytecodeModuleCompiler;
 import com.wrmsr.wava.compile.call.CallCompiler;
 import com.wrmsr.wava.compile.call.CallCompilerImpl;
 import com.wrmsr.wava.compile.call.CallIndirectCompilerImpl;
@@ -30,48 +31,82 @@ import com.wrmsr.wava.compile.memory.MemoryCompilerImpl;
 import com.wrmsr.wava.compile.memory.StackCompilerImpl;
 import com.wrmsr.wava.compile.module.ImportsCompilerImpl;
 import com.wrmsr.wava.compile.module.ModuleCompilationParticipant;
-import com.wrmsr.wava.compile.module.ModuleCompiler;
 import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
 import com.wrmsr.wava.compile.module.MultiModuleCompilerConfig;
 import com.wrmsr.wava.compile.module.MultiModuleCompilerImpl;
 import com.wrmsr.wava.compile.module.SignatureCompilerImpl;
 import com.wrmsr.wava.compile.module.TableCompilerImpl;
+import com.wrmsr.wava.compile.trap.TrapCompilerImpl;
 import com.wrmsr.wava.compile.unary.UnaryCompiler;
 import com.wrmsr.wava.compile.unary.UnaryCompilerImpl;
 import com.wrmsr.wava.core.type.Name;
 import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Memory;
 import com.wrmsr.wava.core.unit.Module;
 import com.wrmsr.wava.java.lang.JAccess;
 import com.wrmsr.wava.java.lang.JName;
 import com.wrmsr.wava.java.lang.JQualifiedName;
 import com.wrmsr.wava.java.lang.JRenderer;
 import com.wrmsr.wava.java.lang.compilationUnit.JCompilationUnit;
+import com.wrmsr.wava.transform.DeadFunctionElimination;
+import com.wrmsr.wava.transform.Devirtualization;
+import com.wrmsr.wava.transform.Inlining;
+import com.wrmsr.wava.transform.MethodSplitting;
 import com.wrmsr.wava.yen.global.YModule;
 import com.wrmsr.wava.yen.parser.ModuleFactory;
 import com.wrmsr.wava.yen.parser.Parser;
 import com.wrmsr.wava.yen.parser.element.Element;
 import com.wrmsr.wava.yen.parser.input.Input;
 import com.wrmsr.wava.yen.translation.UnitTranslation;
+import io.airlift.log.Logger;
 
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Consumer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Sets.immutableEnumSet;
 import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
 import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableMap;
+import static com.wrmsr.wava.util.collect.MoreOptionals.optionalToSet;
 import static java.util.Objects.requireNonNull;
 import static java.util.function.Function.identity;
 
 public final class StandardDriver
 {
-    private final Optional<JQualifiedName> packageName;
+    private static final Logger log = Logger.get(StandardDriver.class);
+
+    private final ModuleCompilerConfig moduleCompilerConfig;
+    private final MultiModuleCompilerConfig multiModuleCompilerConfig;
+    private final int maxMethodSize;
+
+    public StandardDriver(ModuleCompilerConfig moduleCompilerConfig, MultiModuleCompilerConfig multiModuleCompilerConfig, int maxMethodSize)
+    {
+        checkArgument(maxMethodSize > 0);
+        this.moduleCompilerConfig = requireNonNull(moduleCompilerConfig);
+        this.multiModuleCompilerConfig = requireNonNull(multiModuleCompilerConfig);
+        this.maxMethodSize = maxMethodSize;
+    }
+
+    public StandardDriver(ModuleCompilerConfig moduleCompilerConfig, int maxMethodSize)
+    {
+        this(moduleCompilerConfig, new MultiModuleCompilerConfig(), maxMethodSize);
+    }
+
+    public StandardDriver(Optional<JQualifiedName> packageName, int maxMethodSize)
+    {
+        this(
+                new ModuleCompilerConfig()
+                        .setPackageName(packageName.map(JQualifiedName::join).orElse(null)),
+                maxMethodSize);
+    }
 
     public StandardDriver(Optional<JQualifiedName> packageName)
     {
-        this.packageName = requireNonNull(packageName);
+        this(packageName, MethodSplitting.DEFAULT_MAX_METHOD_SIZE);
     }
 
     @FunctionalInterface
@@ -81,16 +116,55 @@ public final class StandardDriver
                 throws IOException;
     }
 
+    @FunctionalInterface
+    public interface ClassSink
+    {
+        void accept(String internalName, byte[] classFile)
+                throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface ResourceSink
+    {
+        void accept(String path, byte[] data)
+                throws IOException;
+    }
+
+    private static final ResourceSink NO_RESOURCE_SINK = (path, data) -> {
+        throw new IllegalStateException("No resource sink for " + path);
+    };
+
     public void compileWast(Name name, Input input, Sink sink)
+    {
+        compileWast(name, input, sink, NO_RESOURCE_SINK);
+    }
+
+    public void compileWast(Name name, Input input, Sink sink, ResourceSink resourceSink)
     {
         Element root = new Parser(input).parse();
         YModule ymodule = new ModuleFactory(root).create();
         Module module = UnitTranslation.translateModule(name, ymodule);
 
-        List<JCompilationUnit> sourceFiles = compileModule(module);
-        sourceFiles.forEach(sourceFile -> {
+        List<JCompilationUnit> sourceFiles = compileModule(module, optionalToSet(ymodule.getStart()), resourceSink);
+        sourceFiles.forEach(sourceFile -> render(sourceFile, sink));
+    }
+
+    public void compileWastToBytecode(Name name, Input input, Sink sink, ClassSink classSink)
+    {
+        compileWastToBytecode(name, input, sink, classSink, NO_RESOURCE_SINK);
+    }
+
+    public void compileWastToBytecode(Name name, Input input, Sink sink, ClassSink classSink, ResourceSink resourceSink)
+    {
+        Element root = new Parser(input).parse();
+        YModule ymodule = new ModuleFactory(root).create();
+        Module module = UnitTranslation.translateModule(name, ymodule);
+
+        BytecodeModuleCompiler.CompiledModule compiledModule = compileModuleToBytecode(module, optionalToSet(ymodule.getStart()), resourceSink);
+        render(compiledModule.getBaseClass(), sink);
+        compiledModule.getClassFiles().forEach((internalName, classFile) -> {
             try {
-                sink.accept(sourceFile, output -> JRenderer.renderWithIndent(r -> r.renderCompilationUnit(sourceFile), "    ", output));
+                classSink.accept(internalName, classFile);
             }
             catch (IOException e) {
                 throw Throwables.propagate(e);
@@ -98,55 +172,119 @@ public final class StandardDriver
         });
     }
 
+    private static void render(JCompilationUnit sourceFile, Sink sink)
+    {
+        try {
+            sink.accept(sourceFile, output -> JRenderer.renderWithIndent(r -> r.renderCompilationUnit(sourceFile), "    ", output));
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     public List<JCompilationUnit> compileModule(Module module)
+    {
+        return compileModule(module, ImmutableSet.of());
+    }
+
+    public List<JCompilationUnit> compileModule(Module module, Set<Name> extraRoots)
+    {
+        return compileModule(module, extraRoots, NO_RESOURCE_SINK);
+    }
+
+    public List<JCompilationUnit> compileModule(Module module, Set<Name> extraRoots, ResourceSink resourceSink)
+    {
+        module = processModule(module, extraRoots);
+        MemoryCompilerImpl memoryCompiler = new MemoryCompilerImpl(module, moduleCompilerConfig);
+        List<JCompilationUnit> compilationUnits = createModuleCompiler(module, memoryCompiler).compileModule(module);
+        writeMemoryImage(memoryCompiler, resourceSink);
+        return compilationUnits;
+    }
+
+    public BytecodeModuleCompiler.CompiledModule compileModuleToBytecode(Module module, Set<Name> extraRoots, ResourceSink resourceSink)
+    {
+        module = processModule(module, extraRoots);
+        MemoryCompilerImpl memoryCompiler = new MemoryCompilerImpl(module, moduleCompilerConfig);
+        BytecodeModuleCompiler.CompiledModule compiledModule = new BytecodeModuleCompiler(createModuleCompiler(module, memoryCompiler), moduleCompilerConfig, multiModuleCompilerConfig).compileModule(module);
+        writeMemoryImage(memoryCompiler, resourceSink);
+        return compiledModule;
+    }
+
+    private void writeMemoryImage(MemoryCompilerImpl memoryCompiler, ResourceSink resourceSink)
+    {
+        Optional<byte[]> memoryImage = memoryCompiler.getMemoryImage();
+        if (!memoryImage.isPresent()) {
+            return;
+        }
+        String prefix = Optional.ofNullable(moduleCompilerConfig.getPackageName()).map(n -> n.replace('.', '/') + "/").orElse("");
+        try {
+            resourceSink.accept(prefix + memoryCompiler.getMemoryImageName(), memoryImage.get());
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private Module processModule(Module module, Set<Name> extraRoots)
+    {
+        module = DeadFunctionElimination.eliminateDeadFunctions(module, extraRoots);
+        module = Devirtualization.devirtualizeCalls(module, Devirtualization.DEFAULT_MAX_SWITCH_SLOTS);
+        module = Inlining.inlineSmallFunctions(module, Inlining.DEFAULT_MAX_CALLEE_SIZE);
+        module = DeadFunctionElimination.eliminateDeadFunctions(module, extraRoots);
+        module = MethodSplitting.splitFunctions(module, maxMethodSize);
+        MethodSplitting.getOversizedFunctions(module, maxMethodSize).forEach((name, size) ->
+                log.warn("Function %s is still an estimated %d bytes of bytecode and will likely run interpreted", name.get(), size));
+
+        FunctionProcessor functionProcessor = new StandardFunctionProcessor(
+                (long) module.getMemory().getInitialPages() * Memory.PAGE_SIZE,
+                moduleCompilerConfig.isStackChecks() ? StackCompilerImpl.getStackLimit(module) : 0,
+                moduleCompilerConfig.isBoundsChecks());
+        List<Function> functions = module.getFunctions().entrySet().stream()
+                .map(Map.Entry::getValue)
+                .map(functionProcessor::processFunction)
+                .collect(toImmutableList());
+
+        return new Module(
+                module.getName(),
+                module.getMemory(),
+                module.getTable(),
+                module.getDeclaredSignatures(),
+                module.getImports(),
+                module.getExports(),
+                functions.stream().collect(toImmutableMap(Function::getName, identity())));
+    }
+
+    private MultiModuleCompilerImpl createModuleCompiler(Module module, MemoryCompilerImpl memoryCompiler)
     {
         BinaryCompiler binaryCompiler = new BinaryCompilerImpl();
-        CallCompiler callCompiler = new CallCompilerImpl();
+        CallCompiler callCompiler = new CallCompilerImpl(module, moduleCompilerConfig);
         UnaryCompiler unaryCompiler = new UnaryCompilerImpl();
-        LoadStoreCompiler loadStoreCompiler = new LoadStoreCompilerImpl();
+        LoadStoreCompiler loadStoreCompiler = new LoadStoreCompilerImpl(moduleCompilerConfig);
 
         FunctionCompiler functionCompiler = new FunctionCompilerImpl(
                 new FunctionAccess(immutableEnumSet(JAccess.PUBLIC, JAccess.FINAL)),
                 binaryCompiler,
                 callCompiler,
-                new CallIndirectCompilerImpl(),
+                new CallIndirectCompilerImpl(moduleCompilerConfig),
                 new ConstCompilerImpl(),
                 loadStoreCompiler,
                 unaryCompiler);
 
-        ModuleCompiler moduleCompiler = new MultiModuleCompilerImpl(
+        return new MultiModuleCompilerImpl(
                 ImmutableSet.of(
-                        new ImportsCompilerImpl(module),
+                        new ImportsCompilerImpl(module, moduleCompilerConfig),
                         new SignatureCompilerImpl(module),
-                        new TableCompilerImpl(module),
-                        new MemoryCompilerImpl(module),
-                        new StackCompilerImpl(),
+                        new TrapCompilerImpl(module, moduleCompilerConfig),
+                        new TableCompilerImpl(module, moduleCompilerConfig),
+                        memoryCompiler,
+                        new StackCompilerImpl(module, moduleCompilerConfig),
                         (ModuleCompilationParticipant) loadStoreCompiler,
                         (ModuleCompilationParticipant) callCompiler,
                         (ModuleCompilationParticipant) binaryCompiler,
                         (ModuleCompilationParticipant) unaryCompiler,
                         (ModuleCompilationParticipant) functionCompiler),
                 functionCompiler,
-                new ModuleCompilerConfig()
-                        .setPackageName(packageName.map(JQualifiedName::join).orElse(null)),
-                new MultiModuleCompilerConfig()
-                        .setNumFunctionsPerClass(100));
-
-        FunctionProcessor functionProcessor = new StandardFunctionProcessor();
-        List<Function> functions = module.getFunctions().entrySet().stream()
-                .map(Map.Entry::getValue)
-                .map(functionProcessor::processFunction)
-                .collect(toImmutableList());
-
-        module = new Module(
-                module.getName(),
-                module.getMemory(),
-                module.getTable(),
-                module.getDeclaredSignatures(),
-                module.getImports(),
-                module.getExports(),
-                functions.stream().collect(toImmutableMap(Function::getName, identity())));
-
-        return moduleCompiler.compileModule(module);
+                moduleCompilerConfig,
+                multiModuleCompilerConfig);
     }
 }
@@ -15,12 +15,24 @@ package com.wrmsr.wava.driver;
 
 import com.wrmsr.wava.analyze.Analyses;
 import com.wrmsr.wava.analyze.ControlTransferAnalysis;
+import com.wrmsr.wava.analyze.SwitchAnalysis;
 import com.wrmsr.wava.analyze.ValueTypeAnalysis;
+import com.wrmsr.wava.compile.memory.StackCompilerImpl;
 import com.wrmsr.wava.core.node.Node;
 import com.wrmsr.wava.core.type.Index;
 import com.wrmsr.wava.core.unit.Function;
 import com.wrmsr.wava.core.unit.Local;
 import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.transform.AddressCommoning;
+import com.wrmsr.wava.transform.BoundsChecking;
+import com.wrmsr.wava.transform.FramePromotion;
+import com.wrmsr.wava.transform.JumpThreading;
+import com.wrmsr.wava.transform.LocalCoalescing;
+import com.wrmsr.wava.transform.LoopInvariantHoisting;
+import com.wrmsr.wava.transform.RangeNarrowing;
+import com.wrmsr.wava.transform.Restructuring;
+import com.wrmsr.wava.transform.StackChecking;
+import com.wrmsr.wava.transform.Switchification;
 import com.wrmsr.wava.transform.Transforms;
 import com.wrmsr.wava.transform.statementizer.StatementizerTransform;
 import com.wrmsr.wava.util.NameGenerator;
@@ -30,6 +42,7 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 
 import java.util.stream.Stream;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
 import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableMap;
 import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
@@ -41,22 +54,58 @@ public final class StandardFunctionProcessor
     private final NameMangler callMangler;
     private final NameMangler labelMangler;
     private final NameMangler localMangler;
+    private final long safeMemorySize;
+    private final int stackLimit;
+    private final boolean boundsChecks;
 
-    public StandardFunctionProcessor(NameMangler callMangler, NameMangler labelMangler, NameMangler localMangler)
+    // A stack limit of zero disables stack overflow checks.
+    public StandardFunctionProcessor(NameMangler callMangler, NameMangler labelMangler, NameMangler localMangler, long safeMemorySize, int stackLimit, boolean boundsChecks)
     {
+        checkArgument(safeMemorySize >= 0);
+        checkArgument(stackLimit >= 0);
         this.callMangler = requireNonNull(callMangler);
         this.labelMangler = requireNonNull(labelMangler);
         this.localMangler = requireNonNull(localMangler);
+        this.safeMemorySize = safeMemorySize;
+        this.stackLimit = stackLimit;
+        this.boundsChecks = boundsChecks;
+    }
+
+    public StandardFunctionProcessor(NameMangler callMangler, NameMangler labelMangler, NameMangler localMangler, long safeMemorySize)
+    {
+        this(callMangler, labelMangler, localMangler, safeMemorySize, 0, false);
+    }
+
+    public StandardFunctionProcessor(NameMangler callMangler, NameMangler labelMangler, NameMangler localMangler)
+    {
+        this(callMangler, labelMangler, localMangler, 0L);
+    }
+
+    public StandardFunctionProcessor(long safeMemorySize, int stackLimit, boolean boundsChecks)
+    {
+        this(NameMangler.DEFAULT, NameMangler.INVERSE, NameMangler.INVERSE, safeMemorySize, stackLimit, boundsChecks);
+    }
+
+    public StandardFunctionProcessor(long safeMemorySize)
+    {
+        this(safeMemorySize, 0, false);
     }
 
     public StandardFunctionProcessor()
     {
-        this(NameMangler.DEFAULT, NameMangler.INVERSE, NameMangler.INVERSE);
+        this(0L);
     }
 
     @Override
     public Function processFunction(Function function)
     {
+        function = FramePromotion.promoteFrameSlots(function, StackCompilerImpl.STACK_POINTER_ADDRESS);
+        if (stackLimit > 0) {
+            function = StackChecking.insertStackChecks(function, StackCompilerImpl.STACK_POINTER_ADDRESS, stackLimit, StackCompilerImpl.STACK_RED_ZONE);
+        }
+        if (boundsChecks) {
+            function = BoundsChecking.insertBoundsChecks(function, safeMemorySize);
+        }
         Node body = function.getBody();
 
         body = Transforms.mangleCallNames(body, callMangler::mangleName);
@@ -86,9 +135,22 @@ public final class StandardFunctionProcessor
         body = Transforms.eliminateUnreferencedLabels(body, Analyses.getReferencedNames(body));
         body = Transforms.squishBlocks(body);
 
+        body = Switchification.switchify(body, SwitchAnalysis.analyze(body, ControlTransferAnalysis.analyze(body)));
+        body = JumpThreading.threadJumps(body);
+        body = Restructuring.restructureLabels(body);
+        body = Transforms.eliminateUnreferencedLabels(body, Analyses.getReferencedNames(body));
+        body = Transforms.squishBlocks(body);
+
         body = Transforms.eliminateUnreachable(body, ControlTransferAnalysis.analyze(body), true);
         body = Transforms.squishBlocks(body);
 
+        body = LoopInvariantHoisting.hoistLoopInvariants(body, tm, safeMemorySize);
+        body = Transforms.squishBlocks(body);
+
+        body = AddressCommoning.commonAddresses(body, tm);
+
+        body = RangeNarrowing.narrowRanges(body, function.getArgLocals().stream().map(Local::getIndex).collect(toImmutableSet()));
+
         Locals locals = new Locals(
                 Stream.concat(
                         function.getLocals().getList().stream()
@@ -97,11 +159,12 @@ public final class StandardFunctionProcessor
                                 .map(t -> new Local(t.getName(), t.getIndex(), t.getType()))
                 ).collect(toImmutableList()));
 
-        return new Function(
-                callMangler.mangleName(function.getName()),
-                function.getResult(),
-                function.getArgCount(),
-                locals,
-                body);
+        return LocalCoalescing.coalesceLocals(
+                new Function(
+                        callMangler.mangleName(function.getName()),
+                        function.getResult(),
+                        function.getArgCount(),
+                        locals,
+                        body));
     }
 }
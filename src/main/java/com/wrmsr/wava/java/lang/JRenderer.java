@@ -54,6 +54,7 @@ import com.wrmsr.wava.java.lang.tree.statement.JBlank;
 import com.wrmsr.wava.java.lang.tree.statement.JBlock;
 import com.wrmsr.wava.java.lang.tree.statement.JBreak;
 import com.wrmsr.wava.java.lang.tree.statement.JCase;
+import com.wrmsr.wava.java.lang.tree.statement.JCatch;
 import com.wrmsr.wava.java.lang.tree.statement.JContinue;
 import com.wrmsr.wava.java.lang.tree.statement.JDoWhileLoop;
 import com.wrmsr.wava.java.lang.tree.statement.JEmpty;
@@ -66,6 +67,7 @@ import com.wrmsr.wava.java.lang.tree.statement.JStatement;
 import com.wrmsr.wava.java.lang.tree.statement.JStatementVisitor;
 import com.wrmsr.wava.java.lang.tree.statement.JSwitch;
 import com.wrmsr.wava.java.lang.tree.statement.JThrow;
+import com.wrmsr.wava.java.lang.tree.statement.JTry;
 import com.wrmsr.wava.java.lang.tree.statement.JVariable;
 import com.wrmsr.wava.java.lang.tree.statement.JWhileLoop;
 import com.wrmsr.wava.java.poet.CodeBlock;
@@ -433,6 +435,25 @@ public final class JRenderer
                 return null;
             }
 
+            @Override
+            public Void visitJCatch(JCatch jstatement, Void context)
+            {
+                code.add("catch (");
+                boolean pipe = false;
+                for (JQualifiedName type : jstatement.getTypes()) {
+                    if (pipe) {
+                        code.add(" | ");
+                    }
+                    else {
+                        pipe = true;
+                    }
+                    renderQualifiedName(type);
+                }
+                code.add(" $L) ", jstatement.getName().get());
+                renderStatement(jstatement.getBlock());
+                return null;
+            }
+
             @Override
             public Void visitJContinue(JContinue jstatement, Void context)
             {
@@ -538,6 +559,31 @@ public final class JRenderer
                 return null;
             }
 
+            @Override
+            public Void visitJTry(JTry jstatement, Void context)
+            {
+                code.add("try ");
+                if (!jstatement.getResources().isEmpty()) {
+                    code.add("(");
+                    boolean semicolon = false;
+                    for (JVariable resource : jstatement.getResources()) {
+                        if (semicolon) {
+                            code.add("; ");
+                        }
+                        else {
+                            semicolon = true;
+                        }
+                        renderTypeSpecifier(resource.getType());
+                        code.add(" $L = ", resource.getName().get());
+                        renderExpression(resource.getValue().get());
+                    }
+                    code.add(") ");
+                }
+                renderStatement(jstatement.getBody());
+                jstatement.getCatches().forEach(JRenderer.this::renderStatement);
+                return null;
+            }
+
             @Override
             public Void visitJVariable(JVariable jstatement, Void context)
             {
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.java.lang.tree.statement;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.java.lang.JName;
+import com.wrmsr.wava.java.lang.JQualifiedName;
+
+import javax.annotation.concurrent.Immutable;
+
+import java.util.List;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+@Immutable
+public final class JCatch
+        extends JStatement
+{
+    private final List<JQualifiedName> types;
+    private final JName name;
+    private final JBlock block;
+
+    public JCatch(List<JQualifiedName> types, JName name, JBlock block)
+    {
+        checkArgument(!types.isEmpty());
+        this.types = ImmutableList.copyOf(types);
+        this.name = requireNonNull(name);
+        this.block = requireNonNull(block);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        JCatch jCatch = (JCatch) o;
+        return Objects.equals(types, jCatch.types) &&
+                Objects.equals(name, jCatch.name) &&
+                Objects.equals(block, jCatch.block);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(types, name, block);
+    }
+
+    public List<JQualifiedName> getTypes()
+    {
+        return types;
+    }
+
+    public JName getName()
+    {
+        return name;
+    }
+
+    public JBlock getBlock()
+    {
+        return block;
+    }
+
+    @Override
+    public <C, R> R accept(JStatementVisitor<C, R> visitor, C context)
+    {
+        return visitor.visitJCatch(this, context);
+    }
+}
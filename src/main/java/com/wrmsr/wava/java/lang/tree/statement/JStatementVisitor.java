@@ -45,6 +45,11 @@ public class JStatementVisitor<C, R>
         return visitJStatement(jstatement, context);
     }
 
+    public R visitJCatch(JCatch jstatement, C context)
+    {
+        return visitJStatement(jstatement, context);
+    }
+
     public R visitJContinue(JContinue jstatement, C context)
     {
         return visitJStatement(jstatement, context);
@@ -95,6 +100,11 @@ public class JStatementVisitor<C, R>
         return visitJStatement(jstatement, context);
     }
 
+    public R visitJTry(JTry jstatement, C context)
+    {
+        return visitJStatement(jstatement, context);
+    }
+
     public R visitJVariable(JVariable jstatement, C context)
     {
         return visitJStatement(jstatement, context);
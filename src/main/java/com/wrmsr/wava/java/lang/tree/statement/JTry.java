@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.java.lang.tree.statement;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.concurrent.Immutable;
+
+import java.util.List;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+@Immutable
+public final class JTry
+        extends JStatement
+{
+    private final List<JVariable> resources;
+    private final JBlock body;
+    private final List<JCatch> catches;
+
+    public JTry(List<JVariable> resources, JBlock body, List<JCatch> catches)
+    {
+        checkArgument(!resources.isEmpty() || !catches.isEmpty());
+        checkArgument(resources.stream().allMatch(r -> r.getValue().isPresent()));
+        this.resources = ImmutableList.copyOf(resources);
+        this.body = requireNonNull(body);
+        this.catches = ImmutableList.copyOf(catches);
+    }
+
+    public JTry(JBlock body, List<JCatch> catches)
+    {
+        this(ImmutableList.of(), body, catches);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        JTry jTry = (JTry) o;
+        return Objects.equals(resources, jTry.resources) &&
+                Objects.equals(body, jTry.body) &&
+                Objects.equals(catches, jTry.catches);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(resources, body, catches);
+    }
+
+    public List<JVariable> getResources()
+    {
+        return resources;
+    }
+
+    public JBlock getBody()
+    {
+        return body;
+    }
+
+    public List<JCatch> getCatches()
+    {
+        return catches;
+    }
+
+    @Override
+    public <C, R> R accept(JStatementVisitor<C, R> visitor, C context)
+    {
+        return visitor.visitJTry(this, context);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.util.temps.TempManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.transform.LoopInvariantHoisting.TRAPPING_INT_BINARY_OPS;
+import static com.wrmsr.wava.transform.LoopInvariantHoisting.TRAPPING_UNARY_OPS;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+
+public final class AddressCommoning
+{
+    private AddressCommoning()
+    {
+    }
+
+    private static final class Group
+    {
+        private final Node address;
+        private final Set<Index> dependencies;
+        private final int first;
+        private int last;
+        private int count;
+
+        private Group(Node address, int first)
+        {
+            this.address = address;
+            this.dependencies = Analyses.findNodes(address, GetLocal.class).stream().map(GetLocal::getIndex).collect(toImmutableSet());
+            this.first = first;
+            this.last = first;
+        }
+    }
+
+    public static Node commonAddresses(Node root, TempManager tm)
+    {
+        return commonBlockAddresses(foldAddressOffsets(root), tm);
+    }
+
+    public static Node foldAddressOffsets(Node root)
+    {
+        return foldAddressOffsets(root, base -> true);
+    }
+
+    // Codegen adds the offset to the pointer with int wraparound, so moving a constant between them is exact for an
+    // unchecked access. A bounds check adds them without wraparound, so ahead of BoundsChecking only accesses that will
+    // never be checked may be folded. After it every checked pointer is wrapped in its check and is left alone.
+    public static Node foldAddressOffsets(Node root, Predicate<Node> isFoldableBase)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitLoad(Load node, Void context)
+            {
+                Node base = getBase(node.getPtr());
+                if (base == node.getPtr() || !isFoldableBase.test(base)) {
+                    return node;
+                }
+                long offset = (long) node.getOffset() + getDisplacement(node.getPtr());
+                if (offset < 0 || offset > Integer.MAX_VALUE) {
+                    return node;
+                }
+                return new Load(node.getType(), node.getBytes(), node.isSigned(), (int) offset, node.getAlign(), base);
+            }
+
+            @Override
+            public Node visitStore(Store node, Void context)
+            {
+                Node base = getBase(node.getPtr());
+                if (base == node.getPtr() || !isFoldableBase.test(base)) {
+                    return node;
+                }
+                long offset = (long) node.getOffset() + getDisplacement(node.getPtr());
+                if (offset < 0 || offset > Integer.MAX_VALUE) {
+                    return node;
+                }
+                return new Store(node.getType(), node.getBytes(), (int) offset, node.getAlign(), base, node.getValue());
+            }
+        }, null);
+    }
+
+    private static Node getBase(Node ptr)
+    {
+        if (ptr instanceof Binary && ((Binary) ptr).getOp() == BinaryOp.Add) {
+            Binary binary = (Binary) ptr;
+            if (binary.getRight() instanceof Const) {
+                return binary.getLeft();
+            }
+            else if (binary.getLeft() instanceof Const) {
+                return binary.getRight();
+            }
+        }
+        return ptr;
+    }
+
+    private static long getDisplacement(Node ptr)
+    {
+        Binary binary = (Binary) ptr;
+        return ((Const) (binary.getRight() instanceof Const ? binary.getRight() : binary.getLeft())).getLiteral().getI32();
+    }
+
+    public static boolean isCommonable(Node address)
+    {
+        return (address instanceof Binary || address instanceof Unary) && address.accept(new Visitor<Void, Boolean>()
+        {
+            @Override
+            protected Boolean visitNode(Node node, Void context)
+            {
+                return false;
+            }
+
+            @Override
+            public Boolean visitBinary(Binary node, Void context)
+            {
+                return !TRAPPING_INT_BINARY_OPS.contains(node.getOp()) && node.getLeft().accept(this, context) && node.getRight().accept(this, context);
+            }
+
+            @Override
+            public Boolean visitConst(Const node, Void context)
+            {
+                return true;
+            }
+
+            @Override
+            public Boolean visitGetLocal(GetLocal node, Void context)
+            {
+                return true;
+            }
+
+            @Override
+            public Boolean visitUnary(Unary node, Void context)
+            {
+                return !TRAPPING_UNARY_OPS.contains(node.getOp()) && node.getValue().accept(this, context);
+            }
+        }, null);
+    }
+
+    private static List<Node> getAddresses(Node root)
+    {
+        return Analyses.linearize(root).stream()
+                .map(n -> n instanceof Load ? ((Load) n).getPtr() : n instanceof Store ? ((Store) n).getPtr() : null)
+                .filter(n -> n != null && isCommonable(n))
+                .collect(toImmutableList());
+    }
+
+    // Block children run strictly in sequence, so a temp set before the first child of a group dominates every later use in it.
+    // A group ends at any child assigning a local the address reads; the address is pure, so binding it early is safe.
+    private static Node commonBlockAddresses(Node root, TempManager tm)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitBlock(Block node, Void context)
+            {
+                List<Node> children = node.getChildren();
+                Map<Node, Group> open = new LinkedHashMap<>();
+                List<Group> groups = new ArrayList<>();
+                for (int i = 0; i < children.size(); ++i) {
+                    Node child = children.get(i);
+                    Set<Index> puts = Analyses.findNodes(child, SetLocal.class).stream().map(SetLocal::getIndex).collect(toImmutableSet());
+                    open.values().removeIf(g -> {
+                        if (g.dependencies.stream().anyMatch(puts::contains)) {
+                            groups.add(g);
+                            return true;
+                        }
+                        return false;
+                    });
+                    for (Node address : getAddresses(child)) {
+                        Group group = open.get(address);
+                        if (group == null) {
+                            group = new Group(address, i);
+                            if (group.dependencies.stream().anyMatch(puts::contains)) {
+                                continue;
+                            }
+                            open.put(address, group);
+                        }
+                        group.last = i;
+                        group.count++;
+                    }
+                }
+                groups.addAll(open.values());
+                groups.removeIf(g -> g.count < 2);
+                if (groups.isEmpty()) {
+                    return node;
+                }
+
+                Map<Integer, List<Group>> groupsByFirst = new HashMap<>();
+                Map<Group, Index> temps = new HashMap<>();
+                for (Group group : groups) {
+                    groupsByFirst.computeIfAbsent(group.first, i -> new ArrayList<>()).add(group);
+                    temps.put(group, tm.allocTemp(Type.I32).getIndex());
+                }
+
+                List<Node> contents = new ArrayList<>();
+                for (int i = 0; i < children.size(); ++i) {
+                    int index = i;
+                    for (Group group : groupsByFirst.getOrDefault(i, new ArrayList<>())) {
+                        contents.add(new SetLocal(temps.get(group), Type.I32, group.address));
+                    }
+                    Map<Node, Index> replacements = new HashMap<>();
+                    groups.stream()
+                            .filter(g -> g.first <= index && index <= g.last)
+                            .forEach(g -> replacements.put(g.address, temps.get(g)));
+                    contents.add(replacements.isEmpty() ? children.get(i) : replaceAddresses(children.get(i), replacements));
+                }
+                return new Block(contents);
+            }
+        }, null);
+    }
+
+    private static Node replaceAddresses(Node root, Map<Node, Index> replacements)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitLoad(Load node, Void context)
+            {
+                Index index = replacements.get(node.getPtr());
+                if (index == null) {
+                    return node;
+                }
+                return new Load(node.getType(), node.getBytes(), node.isSigned(), node.getOffset(), node.getAlign(), new GetLocal(index, Type.I32));
+            }
+
+            @Override
+            public Node visitStore(Store node, Void context)
+            {
+                Index index = replacements.get(node.getPtr());
+                if (index == null) {
+                    return node;
+                }
+                return new Store(node.getType(), node.getBytes(), node.getOffset(), node.getAlign(), new GetLocal(index, Type.I32), node.getValue());
+            }
+        }, null);
+    }
+}
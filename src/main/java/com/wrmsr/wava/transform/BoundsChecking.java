@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.analyze.RangeAnalysis;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.op.HostOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.util.NameGenerator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.wrmsr.wava.core.node.Nodes.reconstructNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+
+/*
+Routes the address of every load and store through a CheckAddress host call unless the access is known to be in
+bounds. Constant addresses are known to be in bounds when they fall within the initial memory, as memory never shrinks,
+as are addresses whose integer range does. Within straight-line code an access through a local is known to be in bounds
+when an earlier access through the same unchanged local already checked as far, which covers the common run of field
+accesses off one base pointer. Accesses through a local a loop never assigns that its first iteration makes before
+anything could branch or have an effect are checked once ahead of the loop instead of on every iteration.
+*/
+public final class BoundsChecking
+{
+    private BoundsChecking()
+    {
+    }
+
+    public static Function insertBoundsChecks(Function function, long safeMemorySize)
+    {
+        checkArgument(safeMemorySize >= 0);
+        List<Local> locals = new ArrayList<>(function.getLocals().getList());
+        Rewriter rewriter = new Rewriter(
+                safeMemorySize,
+                RangeAnalysis.analyze(function.getBody(), function.getArgLocals().stream().map(Local::getIndex).collect(toImmutableSet())),
+                locals,
+                new NameGenerator(new HashSet<>(function.getLocals().getLocalsByName().keySet()), "_bounds$"));
+        Node body = rewriter.rewrite(function.getBody(), new HashMap<>());
+        if (body == function.getBody()) {
+            return function;
+        }
+        return new Function(
+                function.getName(),
+                function.getResult(),
+                function.getArgCount(),
+                locals.size() == function.getLocals().getList().size() ? function.getLocals() : new Locals(locals),
+                body);
+    }
+
+    private static final class Rewriter
+    {
+        private final long safeMemorySize;
+        private final RangeAnalysis ranges;
+        private final List<Local> locals;
+        private final NameGenerator nameGenerator;
+
+        private Rewriter(long safeMemorySize, RangeAnalysis ranges, List<Local> locals, NameGenerator nameGenerator)
+        {
+            this.safeMemorySize = safeMemorySize;
+            this.ranges = ranges;
+            this.locals = locals;
+            this.nameGenerator = nameGenerator;
+        }
+
+        // Facts map locals to how many bytes past them are known to be in bounds, and hold on every path to the node.
+        private Node rewrite(Node node, Map<Index, Long> facts)
+        {
+            if (node instanceof Load) {
+                Load load = (Load) node;
+                Node ptr = rewrite(load.getPtr(), facts);
+                ptr = check(load.getPtr(), ptr, getEnd(load.getOffset(), load.getBytes()), facts);
+                return ptr == load.getPtr() ? load : new Load(load.getType(), load.getBytes(), load.isSigned(), load.getOffset(), load.getAlign(), ptr);
+            }
+            if (node instanceof Store) {
+                return rewriteStore((Store) node, facts);
+            }
+            if (node instanceof Loop) {
+                return rewriteLoop((Loop) node, facts);
+            }
+
+            // Conditions are evaluated on every path and the rest of a branching node's children on only some, so those
+            // only see facts about locals they never assign.
+            int unconditionalChildren;
+            if (node instanceof If || node instanceof Switch) {
+                unconditionalChildren = 1;
+            }
+            else if (node instanceof Label) {
+                unconditionalChildren = 0;
+            }
+            else {
+                unconditionalChildren = Integer.MAX_VALUE;
+            }
+
+            List<Node> children = node.getChildren();
+            List<Node> rewritten = new ArrayList<>();
+            boolean changed = false;
+            for (int i = 0; i < children.size(); ++i) {
+                Node child = children.get(i);
+                Node result;
+                if (i < unconditionalChildren) {
+                    result = rewrite(child, facts);
+                }
+                else {
+                    Map<Index, Long> branchFacts = new HashMap<>(facts);
+                    branchFacts.keySet().removeAll(getAssignedLocals(node));
+                    result = rewrite(child, branchFacts);
+                }
+                changed |= result != child;
+                rewritten.add(result);
+            }
+            if (unconditionalChildren < children.size()) {
+                facts.keySet().removeAll(getAssignedLocals(node));
+            }
+            if (node instanceof SetLocal) {
+                facts.remove(((SetLocal) node).getIndex());
+            }
+            return changed ? reconstructNode(node, rewritten.iterator()) : node;
+        }
+
+        private Node rewriteStore(Store store, Map<Index, Long> facts)
+        {
+            // A store traps only after its value is evaluated, so a value with effects is spilled ahead of the check.
+            Node ptr = rewrite(store.getPtr(), facts);
+            Node value = rewrite(store.getValue(), facts);
+            // The pointer is read before the value runs, so facts about locals the value assigns do not cover it.
+            Set<Index> assigned = getAssignedLocals(store.getValue());
+            facts.keySet().removeAll(assigned);
+            Node checked = check(store.getPtr(), ptr, getEnd(store.getOffset(), store.getBytes()), facts);
+            facts.keySet().removeAll(assigned);
+            if (checked == ptr || value instanceof Const || value instanceof GetLocal) {
+                return checked == store.getPtr() && value == store.getValue() ? store : new Store(store.getType(), store.getBytes(), store.getOffset(), store.getAlign(), checked, value);
+            }
+            Index ptrTemp = addLocal(Type.I32);
+            Index valueTemp = addLocal(store.getType());
+            Call checkAddress = (Call) checked;
+            return new Block(ImmutableList.of(
+                    new SetLocal(ptrTemp, Type.I32, ptr),
+                    new SetLocal(valueTemp, store.getType(), value),
+                    new Store(
+                            store.getType(),
+                            store.getBytes(),
+                            store.getOffset(),
+                            store.getAlign(),
+                            new Call(checkAddress.getTarget(), checkAddress.getSignature(), ImmutableList.of(new GetLocal(ptrTemp, Type.I32), checkAddress.getOperands().get(1))),
+                            new GetLocal(valueTemp, store.getType()))));
+        }
+
+        // Loop bodies run repeatedly, so they only see facts about locals the loop never assigns. A failing hoisted
+        // check traps where the first iteration would have, with nothing observable skipped in between.
+        private Node rewriteLoop(Loop loop, Map<Index, Long> facts)
+        {
+            Set<Index> assigned = getAssignedLocals(loop);
+            Map<Index, Long> ends = new LinkedHashMap<>();
+            collectEntryAccesses(loop.getBody(), assigned, ends);
+            List<Node> hoisted = new ArrayList<>();
+            ends.forEach((index, end) -> {
+                GetLocal ptr = new GetLocal(index, Type.I32);
+                Node checked = check(ptr, ptr, end, facts);
+                if (checked != ptr) {
+                    hoisted.add(checked);
+                }
+            });
+
+            Map<Index, Long> bodyFacts = new HashMap<>(facts);
+            bodyFacts.keySet().removeAll(assigned);
+            Node body = rewrite(loop.getBody(), bodyFacts);
+            facts.keySet().removeAll(assigned);
+            Node rewritten = body == loop.getBody() ? loop : new Loop(loop.getName(), body);
+            if (hoisted.isEmpty()) {
+                return rewritten;
+            }
+            hoisted.add(rewritten);
+            return new Block(hoisted);
+        }
+
+        private Node check(Node original, Node ptr, long end, Map<Index, Long> facts)
+        {
+            if (original instanceof Const && (((Const) original).getLiteral().getI32() & 0xFFFFFFFFL) + end <= safeMemorySize) {
+                return ptr;
+            }
+            Optional<RangeAnalysis.Range> range = ranges.get(original);
+            if (range.isPresent() && range.get().isNonNegative() && range.get().getMax() + end <= safeMemorySize) {
+                return ptr;
+            }
+            if (original instanceof GetLocal) {
+                Index index = ((GetLocal) original).getIndex();
+                if (facts.getOrDefault(index, 0L) >= end) {
+                    return ptr;
+                }
+                facts.put(index, end);
+            }
+            // No memory reaches 2GB, so ends past that always trap.
+            return new Call(
+                    new Call.HostTarget(HostOp.CheckAddress, Optional.empty()),
+                    HostOp.CheckAddress.getSignature(),
+                    ImmutableList.of(ptr, new Const(Literal.of((int) Math.min(end, Integer.MAX_VALUE)))));
+        }
+
+        private Index addLocal(Type type)
+        {
+            Index index = Index.of(locals.size());
+            locals.add(new Local(nameGenerator.get(), index, type));
+            return index;
+        }
+    }
+
+    // Records the accesses through unassigned locals the node makes before it could branch or have an effect, returning
+    // whether evaluation always carries on past it.
+    private static boolean collectEntryAccesses(Node node, Set<Index> assigned, Map<Index, Long> ends)
+    {
+        if (node instanceof Load) {
+            Load load = (Load) node;
+            if (!collectEntryAccesses(load.getPtr(), assigned, ends)) {
+                return false;
+            }
+            addEntryAccess(load.getPtr(), getEnd(load.getOffset(), load.getBytes()), assigned, ends);
+            return true;
+        }
+        if (node instanceof Store) {
+            Store store = (Store) node;
+            if (collectEntryAccesses(store.getPtr(), assigned, ends) && collectEntryAccesses(store.getValue(), assigned, ends)) {
+                addEntryAccess(store.getPtr(), getEnd(store.getOffset(), store.getBytes()), assigned, ends);
+            }
+            return false;
+        }
+        if (node instanceof If) {
+            collectEntryAccesses(((If) node).getCondition(), assigned, ends);
+            return false;
+        }
+        if (node instanceof Binary || node instanceof Unary || node instanceof Block || node instanceof SetLocal ||
+                node instanceof GetLocal || node instanceof Const || node instanceof Nop) {
+            return node.getChildren().stream().allMatch(c -> collectEntryAccesses(c, assigned, ends));
+        }
+        return false;
+    }
+
+    private static void addEntryAccess(Node ptr, long end, Set<Index> assigned, Map<Index, Long> ends)
+    {
+        if (ptr instanceof GetLocal && !assigned.contains(((GetLocal) ptr).getIndex())) {
+            ends.merge(((GetLocal) ptr).getIndex(), end, Math::max);
+        }
+    }
+
+    private static long getEnd(int offset, int bytes)
+    {
+        return (offset & 0xFFFFFFFFL) + bytes;
+    }
+
+    private static Set<Index> getAssignedLocals(Node node)
+    {
+        return Analyses.findNodes(node, SetLocal.class).stream()
+                .map(SetLocal::getIndex)
+                .collect(toImmutableSet());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.Sets;
+import com.wrmsr.wava.analyze.CallGraph;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Module;
+
+import java.util.Set;
+
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableMap;
+
+public final class DeadFunctionElimination
+{
+    private DeadFunctionElimination()
+    {
+    }
+
+    // extraRoots carries what Module does not model, such as the start function
+    public static Module eliminateDeadFunctions(Module module, Set<Name> extraRoots)
+    {
+        CallGraph cg = CallGraph.analyze(module);
+        Set<Name> live = cg.getReachable(Sets.union(CallGraph.getRoots(module), extraRoots));
+        if (live.size() == module.getFunctions().size()) {
+            return module;
+        }
+        return new Module(
+                module.getName(),
+                module.getMemory(),
+                module.getTable(),
+                module.getDeclaredSignatures(),
+                module.getImports(),
+                module.getExports(),
+                module.getFunctions().entrySet().stream()
+                        .filter(e -> live.contains(e.getKey()))
+                        .collect(toImmutableMap()));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.util.NameGenerator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wrmsr.wava.analyze.Analyses.getNames;
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableMap;
+import static java.util.function.Function.identity;
+
+public final class Devirtualization
+{
+    public static final int DEFAULT_MAX_SWITCH_SLOTS = 8;
+
+    private Devirtualization()
+    {
+    }
+
+    // Table slots holding each function of the given signature, in table order.
+    public static Map<Name, List<Integer>> getSignatureSlots(Module module, Signature signature)
+    {
+        Map<Name, List<Integer>> slots = new LinkedHashMap<>();
+        List<Name> names = module.getTable().getNames();
+        for (int i = 0; i < names.size(); ++i) {
+            if (module.getFunctions().get(names.get(i)).getSignature().equals(signature)) {
+                slots.computeIfAbsent(names.get(i), n -> new ArrayList<>()).add(i);
+            }
+        }
+        return slots;
+    }
+
+    private static Node breakWithCall(Name label, Call call)
+    {
+        if (call.getSignature().getResult() == Type.NONE) {
+            return new Block(ImmutableList.of(call, new Break(label, new Nop())));
+        }
+        return new Break(label, call);
+    }
+
+    // Each arm gets its own operand nodes, as analyses downstream expect the tree to be free of sharing.
+    private static List<Node> getOperands(List<Index> operands, Signature signature)
+    {
+        ImmutableList.Builder<Node> builder = ImmutableList.builder();
+        for (int i = 0; i < operands.size(); ++i) {
+            builder.add(new GetLocal(operands.get(i), signature.getArguments().get(i)));
+        }
+        return builder.build();
+    }
+
+    // Any slot outside those dispatched here holds a function of another signature or is out of bounds, so it traps.
+    public static Module devirtualizeCalls(Module module, int maxSwitchSlots)
+    {
+        return new Module(
+                module.getName(),
+                module.getMemory(),
+                module.getTable(),
+                module.getDeclaredSignatures(),
+                module.getImports(),
+                module.getExports(),
+                module.getFunctions().values().stream()
+                        .map(f -> devirtualizeCalls(f, module, maxSwitchSlots))
+                        .collect(toImmutableMap(Function::getName, identity())));
+    }
+
+    public static Function devirtualizeCalls(Function function, Module module, int maxSwitchSlots)
+    {
+        List<Local> locals = new ArrayList<>(function.getLocals().getList());
+        NameGenerator localNameGenerator = new NameGenerator(new HashSet<>(function.getLocals().getLocalsByName().keySet()), "_devirt$");
+        NameGenerator labelNameGenerator = new NameGenerator(new HashSet<>(getNames(function.getBody())), "_devirt$");
+        Map<Signature, Map<Name, List<Integer>>> slotsBySignature = new LinkedHashMap<>();
+
+        Node body = rewriteNode(function.getBody(), new Visitor<Void, Node>()
+        {
+            private Index allocLocal(Type type)
+            {
+                Index index = Index.of(locals.size());
+                locals.add(new Local(localNameGenerator.get(), index, type));
+                return index;
+            }
+
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitCallIndirect(CallIndirect node, Void context)
+            {
+                Signature signature = node.getSignature();
+                Map<Name, List<Integer>> slots = slotsBySignature.computeIfAbsent(signature, s -> getSignatureSlots(module, s));
+                int slotCount = slots.values().stream().mapToInt(List::size).sum();
+                if (slotCount == 0 || slotCount > maxSwitchSlots) {
+                    return node;
+                }
+
+                // Operands are spilled ahead of the dispatch so they are evaluated before it can trap.
+                Index target = allocLocal(Type.I32);
+                ImmutableList.Builder<Node> contents = ImmutableList.builder();
+                contents.add(new SetLocal(target, Type.I32, node.getTarget()));
+                List<Index> operands = new ArrayList<>();
+                for (int i = 0; i < node.getOperands().size(); ++i) {
+                    Type type = signature.getArguments().get(i);
+                    Index operand = allocLocal(type);
+                    contents.add(new SetLocal(operand, type, node.getOperands().get(i)));
+                    operands.add(operand);
+                }
+
+                if (slotCount == 1) {
+                    Name name = slots.keySet().iterator().next();
+                    contents.add(
+                            new If(
+                                    new Binary(BinaryOp.Eq, Type.I32, new GetLocal(target, Type.I32), new Const(Literal.of(slots.get(name).get(0)))),
+                                    new Call(new Call.DirectTarget(name), signature, getOperands(operands, signature)),
+                                    new Unreachable()));
+                    return new Block(contents.build());
+                }
+
+                Name label = labelNameGenerator.get();
+                List<Switch.Entry> entries = slots.entrySet().stream()
+                        .map(e -> new Switch.Entry(
+                                e.getValue().stream().map(Switch.Value::of).collect(toImmutableList()),
+                                breakWithCall(label, new Call(new Call.DirectTarget(e.getKey()), signature, getOperands(operands, signature)))))
+                        .collect(toImmutableList());
+                contents.add(
+                        new Label(
+                                label,
+                                new Switch(
+                                        new GetLocal(target, Type.I32),
+                                        ImmutableList.<Switch.Entry>builder()
+                                                .addAll(entries)
+                                                .add(new Switch.Entry(ImmutableList.of(Switch.Value.DEFAULT), new Unreachable()))
+                                                .build())));
+                return new Block(contents.build());
+            }
+        }, null);
+
+        if (locals.size() == function.getLocals().getList().size()) {
+            return function;
+        }
+        return new Function(
+                function.getName(),
+                function.getResult(),
+                function.getArgCount(),
+                new Locals(locals),
+                body);
+    }
+}
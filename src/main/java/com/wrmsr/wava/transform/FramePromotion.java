@@ -0,0 +1,282 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.analyze.LivenessAnalysis;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.util.NameGenerator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+
+public final class FramePromotion
+{
+    private FramePromotion()
+    {
+    }
+
+    private static final class Slot
+    {
+        private final int offset;
+        private final Type type;
+        private final int bytes;
+
+        private Slot(int offset, Type type, int bytes)
+        {
+            this.offset = offset;
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+
+    // Promotes the fixed-offset slots of a shadow stack frame to locals when the frame pointer never escapes. The frame
+    // pointer must be assigned once from the stack pointer and otherwise only used as the base of full-width accesses or
+    // to restore the stack pointer. Nothing else may read the stack pointer, as a pointer read from it could alias the
+    // frame.
+    public static Function promoteFrameSlots(Function function, int stackPointerAddress)
+    {
+        Node body = function.getBody();
+        if (Analyses.linearize(body).stream().filter(n -> isStackPointerLoad(n, stackPointerAddress)).count() != 1) {
+            return function;
+        }
+        Set<Index> args = function.getArgLocals().stream().map(Local::getIndex).collect(toImmutableSet());
+        Set<Index> uninitialized = LivenessAnalysis.findUninitializedReads(body, args);
+        List<Local> locals = new ArrayList<>(function.getLocals().getList());
+        NameGenerator nameGenerator = new NameGenerator(new HashSet<>(function.getLocals().getLocalsByName().keySet()), "_frame$");
+
+        List<SetLocal> setLocals = Analyses.linearize(body).stream()
+                .filter(SetLocal.class::isInstance)
+                .map(SetLocal.class::cast)
+                .collect(toImmutableList());
+        Set<Index> candidates = setLocals.stream()
+                .filter(s -> !args.contains(s.getIndex()) && !uninitialized.contains(s.getIndex()))
+                .filter(s -> isFrameAllocation(s.getValue(), stackPointerAddress))
+                .map(SetLocal::getIndex)
+                .collect(toImmutableSet());
+
+        boolean changed = false;
+        for (Index frame : candidates) {
+            if (setLocals.stream().filter(s -> s.getIndex().equals(frame)).count() != 1) {
+                continue;
+            }
+            // Only the accesses promoted away are folded, as the rest may yet be bounds checked.
+            Node folded = AddressCommoning.foldAddressOffsets(body, b -> isFrameBase(b, frame));
+            Optional<Map<Integer, Slot>> slots = getSlots(folded, frame, stackPointerAddress);
+            if (!slots.isPresent() || slots.get().isEmpty()) {
+                continue;
+            }
+            Map<Integer, Index> slotLocals = new TreeMap<>();
+            for (Slot slot : slots.get().values()) {
+                Index index = Index.of(locals.size());
+                locals.add(new Local(nameGenerator.get(), index, slot.type));
+                slotLocals.put(slot.offset, index);
+            }
+            body = promoteSlots(folded, frame, slots.get(), slotLocals);
+            changed = true;
+        }
+
+        if (!changed) {
+            return function;
+        }
+        return new Function(
+                function.getName(),
+                function.getResult(),
+                function.getArgCount(),
+                new Locals(locals),
+                body);
+    }
+
+    private static boolean isStackPointerLoad(Node node, int stackPointerAddress)
+    {
+        if (!(node instanceof Load)) {
+            return false;
+        }
+        Load load = (Load) node;
+        return load.getType() == Type.I32 &&
+                load.getBytes() == 4 &&
+                load.getPtr() instanceof Const &&
+                (long) ((Const) load.getPtr()).getLiteral().getI32() + load.getOffset() == stackPointerAddress;
+    }
+
+    static boolean isStackPointerStore(Node node, int stackPointerAddress)
+    {
+        if (!(node instanceof Store)) {
+            return false;
+        }
+        Store store = (Store) node;
+        return store.getType() == Type.I32 &&
+                store.getBytes() == 4 &&
+                store.getPtr() instanceof Const &&
+                (long) ((Const) store.getPtr()).getLiteral().getI32() + store.getOffset() == stackPointerAddress;
+    }
+
+    private static boolean isFrameAllocation(Node node, int stackPointerAddress)
+    {
+        if (isStackPointerStore(node, stackPointerAddress)) {
+            node = ((Store) node).getValue();
+        }
+        if (!(node instanceof Binary)) {
+            return false;
+        }
+        Binary binary = (Binary) node;
+        return (binary.getOp() == BinaryOp.Sub || binary.getOp() == BinaryOp.Add) &&
+                isStackPointerLoad(binary.getLeft(), stackPointerAddress) &&
+                binary.getRight() instanceof Const;
+    }
+
+    private static boolean isFrameBase(Node node, Index frame)
+    {
+        return (node instanceof GetLocal && ((GetLocal) node).getIndex().equals(frame)) ||
+                (node instanceof SetLocal && ((SetLocal) node).getIndex().equals(frame));
+    }
+
+    private static boolean isFullWidth(Type type, int bytes)
+    {
+        return bytes == (type == Type.I64 || type == Type.F64 ? 8 : 4);
+    }
+
+    private static Optional<Map<Integer, Slot>> getSlots(Node body, Index frame, int stackPointerAddress)
+    {
+        Map<Integer, Slot> slots = new TreeMap<>();
+        int[] uses = {0};
+        boolean ok = body.accept(new Visitor<Void, Boolean>()
+        {
+            private boolean addSlot(int offset, Type type, int bytes)
+            {
+                if (!isFullWidth(type, bytes)) {
+                    return false;
+                }
+                Slot slot = slots.get(offset);
+                if (slot == null) {
+                    slots.put(offset, new Slot(offset, type, bytes));
+                    return true;
+                }
+                return slot.type == type;
+            }
+
+            @Override
+            protected Boolean visitNode(Node node, Void context)
+            {
+                return node.getChildren().stream().allMatch(c -> c.accept(this, context));
+            }
+
+            @Override
+            public Boolean visitLoad(Load node, Void context)
+            {
+                if (isFrameBase(node.getPtr(), frame)) {
+                    uses[0] += node.getPtr() instanceof GetLocal ? 1 : 0;
+                    return addSlot(node.getOffset(), node.getType(), node.getBytes()) && visitNode(node, context);
+                }
+                return visitNode(node, context);
+            }
+
+            @Override
+            public Boolean visitStore(Store node, Void context)
+            {
+                if (isFrameBase(node.getPtr(), frame)) {
+                    uses[0] += node.getPtr() instanceof GetLocal ? 1 : 0;
+                    return addSlot(node.getOffset(), node.getType(), node.getBytes()) && visitNode(node, context);
+                }
+                if (isStackPointerStore(node, stackPointerAddress) && node.getValue() instanceof Binary) {
+                    Binary value = (Binary) node.getValue();
+                    if (value.getOp() == BinaryOp.Add && value.getLeft() instanceof GetLocal && ((GetLocal) value.getLeft()).getIndex().equals(frame) && value.getRight() instanceof Const) {
+                        uses[0]++;
+                        return true;
+                    }
+                }
+                return visitNode(node, context);
+            }
+        }, null);
+        if (!ok) {
+            return Optional.empty();
+        }
+
+        if (uses[0] != Analyses.linearize(body).stream().filter(n -> n instanceof GetLocal && ((GetLocal) n).getIndex().equals(frame)).count()) {
+            return Optional.empty();
+        }
+
+        int end = Integer.MIN_VALUE;
+        for (Slot slot : slots.values()) {
+            if (slot.offset < end) {
+                return Optional.empty();
+            }
+            end = slot.offset + slot.bytes;
+        }
+        return Optional.of(slots);
+    }
+
+    private static Node promoteSlots(Node body, Index frame, Map<Integer, Slot> slots, Map<Integer, Index> slotLocals)
+    {
+        return rewriteNode(body, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitLoad(Load node, Void context)
+            {
+                if (!isFrameBase(node.getPtr(), frame)) {
+                    return node;
+                }
+                return withBase(node.getPtr(), new GetLocal(slotLocals.get(node.getOffset()), slots.get(node.getOffset()).type));
+            }
+
+            @Override
+            public Node visitStore(Store node, Void context)
+            {
+                if (!isFrameBase(node.getPtr(), frame)) {
+                    return node;
+                }
+                return withBase(node.getPtr(), new SetLocal(slotLocals.get(node.getOffset()), slots.get(node.getOffset()).type, node.getValue()));
+            }
+        }, null);
+    }
+
+    // The frame pointer may be assigned inline as the base of its first access, in which case the assignment is kept.
+    private static Node withBase(Node base, Node access)
+    {
+        if (base instanceof GetLocal) {
+            return access;
+        }
+        return new Block(ImmutableList.of(base, access));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.analyze.LivenessAnalysis;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.util.NameGenerator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableMap;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+import static java.util.function.Function.identity;
+
+public final class Inlining
+{
+    public static final int DEFAULT_MAX_CALLEE_SIZE = 24;
+
+    private Inlining()
+    {
+    }
+
+    public static Set<Name> getInlineableFunctions(Module module, int maxCalleeSize)
+    {
+        return module.getFunctions().values().stream()
+                .filter(f -> Analyses.linearize(f.getBody()).size() <= maxCalleeSize)
+                .filter(f -> Analyses.findNodes(f.getBody(), Call.class).stream()
+                        .noneMatch(c -> c.getTarget() instanceof Call.DirectTarget && ((Call.DirectTarget) c.getTarget()).getName().equals(f.getName())))
+                .map(Function::getName)
+                .collect(toImmutableSet());
+    }
+
+    // Callee bodies are spliced in as they were before this pass, so chains are only flattened one level per run.
+    public static Module inlineSmallFunctions(Module module, int maxCalleeSize)
+    {
+        Set<Name> inlineable = getInlineableFunctions(module, maxCalleeSize);
+        if (inlineable.isEmpty()) {
+            return module;
+        }
+        return new Module(
+                module.getName(),
+                module.getMemory(),
+                module.getTable(),
+                module.getDeclaredSignatures(),
+                module.getImports(),
+                module.getExports(),
+                module.getFunctions().values().stream()
+                        .map(f -> inlineCalls(f, module.getFunctions(), inlineable))
+                        .collect(toImmutableMap(Function::getName, identity())));
+    }
+
+    public static Function inlineCalls(Function caller, Map<Name, Function> functions, Set<Name> inlineable)
+    {
+        List<Local> locals = new ArrayList<>(caller.getLocals().getList());
+        Set<Name> localNames = new HashSet<>(caller.getLocals().getLocalsByName().keySet());
+        Set<Name> labelNames = new HashSet<>(Analyses.getNames(caller.getBody()));
+        Analyses.findNodes(caller.getBody(), Call.class).stream()
+                .filter(c -> c.getTarget() instanceof Call.DirectTarget)
+                .map(c -> ((Call.DirectTarget) c.getTarget()).getName())
+                .filter(inlineable::contains)
+                .distinct()
+                .forEach(n -> labelNames.addAll(Analyses.getNames(functions.get(n).getBody())));
+        NameGenerator localNameGenerator = new NameGenerator(localNames, "_inline$");
+        NameGenerator labelNameGenerator = new NameGenerator(labelNames, "_inline$");
+        AtomicBoolean changed = new AtomicBoolean();
+
+        Node body = rewriteNode(caller.getBody(), new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitCall(Call node, Void context)
+            {
+                if (!(node.getTarget() instanceof Call.DirectTarget)) {
+                    return node;
+                }
+                Name calleeName = ((Call.DirectTarget) node.getTarget()).getName();
+                if (calleeName.equals(caller.getName()) || !inlineable.contains(calleeName)) {
+                    return node;
+                }
+                Function callee = functions.get(calleeName);
+
+                Map<Index, Index> indexMap = new HashMap<>();
+                for (Local local : callee.getLocals().getList()) {
+                    Index index = Index.of(locals.size());
+                    locals.add(new Local(localNameGenerator.get(), index, local.getType()));
+                    indexMap.put(local.getIndex(), index);
+                }
+                Name returnName = labelNameGenerator.get();
+
+                ImmutableList.Builder<Node> contents = ImmutableList.builder();
+                for (int i = 0; i < callee.getArgCount(); ++i) {
+                    Local arg = callee.getArgLocals().get(i);
+                    contents.add(new SetLocal(indexMap.get(arg.getIndex()), arg.getType(), node.getOperands().get(i)));
+                }
+                Set<Index> zeroInitialized = LivenessAnalysis.findUninitializedReads(
+                        callee.getBody(),
+                        callee.getArgLocals().stream().map(Local::getIndex).collect(toImmutableSet()));
+                for (Local local : callee.getNonArgLocals()) {
+                    if (zeroInitialized.contains(local.getIndex())) {
+                        contents.add(new SetLocal(indexMap.get(local.getIndex()), local.getType(), new Const(Literal.of(local.getType().zero()))));
+                    }
+                }
+                Node calleeBody = Transforms.remapLocals(callee.getBody(), indexMap);
+                calleeBody = Transforms.mangleLabelNames(calleeBody, n -> Name.of(n.get() + "$" + returnName.get()));
+                calleeBody = rewriteNode(calleeBody, new Visitor<Void, Node>()
+                {
+                    @Override
+                    protected Node visitNode(Node node, Void context)
+                    {
+                        return node;
+                    }
+
+                    @Override
+                    public Node visitReturn(Return node, Void context)
+                    {
+                        return new Break(returnName, node.getValue());
+                    }
+                }, null);
+                contents.add(calleeBody);
+
+                changed.set(true);
+                return new Label(
+                        returnName,
+                        new Block(contents.build()));
+            }
+        }, null);
+
+        if (!changed.get()) {
+            return caller;
+        }
+        return new Function(
+                caller.getName(),
+                caller.getResult(),
+                caller.getArgCount(),
+                new Locals(locals),
+                body);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.BreakTable;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.type.Name;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.wrmsr.wava.core.node.Nodes.reconstructNode;
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+
+public final class JumpThreading
+{
+    private JumpThreading()
+    {
+    }
+
+    // Valueless breaks only: meant to run after statementization, when labels no longer carry values.
+    public static Node threadJumps(Node root)
+    {
+        root = switchifyBreakTables(root);
+        Set<Name> valued = Analyses.linearize(root).stream()
+                .filter(n -> n instanceof Break && !(((Break) n).getValue() instanceof Nop))
+                .map(n -> ((Break) n).getTarget())
+                .collect(toImmutableSet());
+
+        Map<Name, Node> exits = new HashMap<>();
+        findExits(root, Optional.empty(), valued, exits);
+        root = rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitBreak(Break node, Void context)
+            {
+                Node ret = node;
+                for (int i = 0; i < exits.size() && ret instanceof Break && exits.containsKey(((Break) ret).getTarget()); ++i) {
+                    ret = exits.get(((Break) ret).getTarget());
+                }
+                return ret;
+            }
+        }, null);
+        return mergeSwitchEntries(root);
+    }
+
+    public static Node switchifyBreakTables(Node root)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitBreakTable(BreakTable node, Void context)
+            {
+                Map<Name, List<Switch.Value>> values = new LinkedHashMap<>();
+                for (int i = 0; i < node.getTargets().size(); ++i) {
+                    values.computeIfAbsent(node.getTargets().get(i), n -> new ArrayList<>()).add(Switch.Value.of(i));
+                }
+                values.computeIfAbsent(node.getDefaultTarget(), n -> new ArrayList<>()).add(Switch.Value.DEFAULT);
+                return new Switch(
+                        node.getCondition(),
+                        values.entrySet().stream()
+                                .map(e -> new Switch.Entry(e.getValue(), new Break(e.getKey(), new Nop())))
+                                .collect(toImmutableList()));
+            }
+        }, null);
+    }
+
+    // A node that can stand in for jumping past the given node: a break whose landing point is the same, or a
+    // trivial return that would run immediately after landing.
+    private static Optional<Node> getReplacement(Node next, Set<Name> valued)
+    {
+        if (next instanceof Break && ((Break) next).getValue() instanceof Nop && !valued.contains(((Break) next).getTarget())) {
+            return Optional.of(next);
+        }
+        else if (next instanceof Return) {
+            Node value = ((Return) next).getValue();
+            if (value instanceof Nop || value instanceof Const || value instanceof GetLocal) {
+                return Optional.of(next);
+            }
+        }
+        else if (next instanceof Unreachable) {
+            return Optional.of(next);
+        }
+        return Optional.empty();
+    }
+
+    private static void findExits(Node node, Optional<Node> exit, Set<Name> valued, Map<Name, Node> exits)
+    {
+        node.accept(new Visitor<Void, Void>()
+        {
+            @Override
+            protected Void visitNode(Node node, Void context)
+            {
+                node.getChildren().forEach(c -> findExits(c, Optional.empty(), valued, exits));
+                return null;
+            }
+
+            @Override
+            public Void visitBlock(Block node, Void context)
+            {
+                List<Node> children = node.getChildren();
+                for (int i = 0; i < children.size(); ++i) {
+                    findExits(children.get(i), i < children.size() - 1 ? getReplacement(children.get(i + 1), valued) : exit, valued, exits);
+                }
+                return null;
+            }
+
+            @Override
+            public Void visitIf(If node, Void context)
+            {
+                findExits(node.getCondition(), Optional.empty(), valued, exits);
+                findExits(node.getIfTrue(), exit, valued, exits);
+                findExits(node.getIfFalse(), exit, valued, exits);
+                return null;
+            }
+
+            @Override
+            public Void visitLabel(Label node, Void context)
+            {
+                if (valued.contains(node.getName())) {
+                    return visitNode(node, context);
+                }
+                if (exit.isPresent()) {
+                    exits.put(node.getName(), exit.get());
+                }
+                findExits(node.getBody(), Optional.of(exit.orElse(new Break(node.getName(), new Nop()))), valued, exits);
+                return null;
+            }
+
+            @Override
+            public Void visitLoop(Loop node, Void context)
+            {
+                findExits(node.getBody(), exit, valued, exits);
+                return null;
+            }
+
+            @Override
+            public Void visitSwitch(Switch node, Void context)
+            {
+                findExits(node.getCondition(), Optional.empty(), valued, exits);
+                List<Switch.Entry> entries = node.getEntries();
+                for (int i = 0; i < entries.size(); ++i) {
+                    findExits(entries.get(i).getBody(), i < entries.size() - 1 ? Optional.empty() : exit, valued, exits);
+                }
+                return null;
+            }
+        }, null);
+    }
+
+    private static boolean isTerminal(Node node)
+    {
+        return node instanceof Break || node instanceof Return || node instanceof Unreachable;
+    }
+
+    // Entries with identical terminal bodies are merged into the first, which is only safe when nothing falls into
+    // the removed entry.
+    public static Node mergeSwitchEntries(Node root)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitSwitch(Switch node, Void context)
+            {
+                Map<Node, Integer> firsts = new HashMap<>();
+                List<List<Switch.Value>> values = new ArrayList<>();
+                List<Node> bodies = new ArrayList<>();
+                boolean previousFallsThrough = false;
+                for (Switch.Entry entry : node.getEntries()) {
+                    Integer first = isTerminal(entry.getBody()) && !previousFallsThrough ? firsts.get(entry.getBody()) : null;
+                    if (first != null) {
+                        values.get(first).addAll(entry.getValues());
+                    }
+                    else {
+                        if (isTerminal(entry.getBody())) {
+                            firsts.putIfAbsent(entry.getBody(), bodies.size());
+                        }
+                        values.add(new ArrayList<>(entry.getValues()));
+                        bodies.add(entry.getBody());
+                    }
+                    previousFallsThrough = !isTerminal(entry.getBody());
+                }
+                if (bodies.size() == node.getEntries().size()) {
+                    return node;
+                }
+                ImmutableList.Builder<Switch.Entry> entries = ImmutableList.builder();
+                for (int i = 0; i < bodies.size(); ++i) {
+                    entries.add(new Switch.Entry(values.get(i), bodies.get(i)));
+                }
+                return new Switch(node.getCondition(), entries.build());
+            }
+        }, null);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.wrmsr.wava.analyze.BooleanAnalysis;
+import com.wrmsr.wava.analyze.LivenessAnalysis;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+import static java.util.Objects.requireNonNull;
+
+public final class LocalCoalescing
+{
+    private LocalCoalescing()
+    {
+    }
+
+    private static final class Slot
+    {
+        private final Name name;
+        private final Type type;
+        private final boolean isBoolean;
+        private final List<LivenessAnalysis.Interval> occupied = new ArrayList<>();
+
+        public Slot(Name name, Type type, boolean isBoolean)
+        {
+            this.name = requireNonNull(name);
+            this.type = requireNonNull(type);
+            this.isBoolean = isBoolean;
+        }
+
+        public boolean canHold(Type type, boolean isBoolean, LivenessAnalysis.Interval interval)
+        {
+            return this.type == type && this.isBoolean == isBoolean && occupied.stream().noneMatch(interval::overlaps);
+        }
+    }
+
+    public static Function coalesceLocals(Function function)
+    {
+        Set<Index> args = function.getArgLocals().stream().map(Local::getIndex).collect(toImmutableSet());
+        LivenessAnalysis la = LivenessAnalysis.analyze(function.getBody(), args);
+        // keep condition-only locals apart so they can still be emitted as booleans
+        BooleanAnalysis ba = BooleanAnalysis.analyze(function);
+
+        List<Slot> slots = new ArrayList<>();
+        Map<Index, Index> indexMap = new HashMap<>();
+        for (Local arg : function.getArgLocals()) {
+            Slot slot = new Slot(arg.getName(), arg.getType(), false);
+            if (la.isReferenced(arg.getIndex())) {
+                slot.occupied.add(la.getInterval(arg.getIndex()));
+            }
+            indexMap.put(arg.getIndex(), Index.of(slots.size()));
+            slots.add(slot);
+        }
+
+        List<Local> locals = function.getNonArgLocals().stream()
+                .filter(l -> la.isReferenced(l.getIndex()))
+                .sorted(Comparator.<Local>comparingInt(l -> la.getInterval(l.getIndex()).getStart()).thenComparing(Local::getIndex))
+                .collect(toImmutableList());
+        for (Local local : locals) {
+            LivenessAnalysis.Interval interval = la.getInterval(local.getIndex());
+            int i = 0;
+            boolean isBoolean = ba.isBooleanLocal(local.getIndex());
+            while (i < slots.size() && !slots.get(i).canHold(local.getType(), isBoolean, interval)) {
+                ++i;
+            }
+            if (i == slots.size()) {
+                slots.add(new Slot(local.getName(), local.getType(), isBoolean));
+            }
+            slots.get(i).occupied.add(interval);
+            indexMap.put(local.getIndex(), Index.of(i));
+        }
+
+        return new Function(
+                function.getName(),
+                function.getResult(),
+                function.getArgCount(),
+                Locals.of(slots.stream().map(s -> ImmutablePair.of(s.name, s.type)).collect(toImmutableList())),
+                Transforms.remapLocals(function.getBody(), indexMap));
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.wrmsr.wava.analyze.LocalAnalysis;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.op.UnaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.util.temps.Temp;
+import com.wrmsr.wava.util.temps.TempManager;
+
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static com.wrmsr.wava.core.node.Nodes.reconstructNode;
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+
+public final class LoopInvariantHoisting
+{
+    private LoopInvariantHoisting()
+    {
+    }
+
+    public static final Set<BinaryOp> TRAPPING_INT_BINARY_OPS = EnumSet.of(BinaryOp.DivS, BinaryOp.DivU, BinaryOp.RemS, BinaryOp.RemU);
+    public static final Set<UnaryOp> TRAPPING_UNARY_OPS = EnumSet.of(UnaryOp.TruncSFloat32, UnaryOp.TruncUFloat32, UnaryOp.TruncSFloat64, UnaryOp.TruncUFloat64);
+
+    // Loops are rewritten innermost first, so anything invariant in an enclosing loop keeps moving outwards.
+    public static Node hoistLoopInvariants(Node root, TempManager tm, long safeMemorySize)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitLoop(Loop node, Void context)
+            {
+                return hoistLoop(node, tm, safeMemorySize);
+            }
+        }, null);
+    }
+
+    public static boolean clobbersMemory(Node root)
+    {
+        return root.accept(new Visitor<Void, Boolean>()
+        {
+            @Override
+            protected Boolean visitNode(Node node, Void context)
+            {
+                return node.getChildren().stream().anyMatch(c -> c.accept(this, context));
+            }
+
+            @Override
+            public Boolean visitCall(Call node, Void context)
+            {
+                return true;
+            }
+
+            @Override
+            public Boolean visitCallIndirect(CallIndirect node, Void context)
+            {
+                return true;
+            }
+
+            @Override
+            public Boolean visitStore(Store node, Void context)
+            {
+                return true;
+            }
+        }, null);
+    }
+
+    private static Node hoistLoop(Loop loop, TempManager tm, long safeMemorySize)
+    {
+        Set<Index> loopPuts = LocalAnalysis.analyze(loop).get(loop).getLocalPuts();
+        boolean isMemoryClobbered = clobbersMemory(loop);
+
+        Map<Node, Boolean> invariance = new IdentityHashMap<>();
+        Visitor<Void, Boolean> invarianceVisitor = new Visitor<Void, Boolean>()
+        {
+            private boolean isInvariant(Node node)
+            {
+                Boolean ret = invariance.get(node);
+                if (ret == null) {
+                    ret = node.accept(this, null);
+                    invariance.put(node, ret);
+                }
+                return ret;
+            }
+
+            @Override
+            protected Boolean visitNode(Node node, Void context)
+            {
+                return false;
+            }
+
+            @Override
+            public Boolean visitBinary(Binary node, Void context)
+            {
+                if (!node.getType().isFloat() && TRAPPING_INT_BINARY_OPS.contains(node.getOp())) {
+                    return false;
+                }
+                return isInvariant(node.getLeft()) && isInvariant(node.getRight());
+            }
+
+            @Override
+            public Boolean visitConst(Const node, Void context)
+            {
+                return true;
+            }
+
+            @Override
+            public Boolean visitGetLocal(GetLocal node, Void context)
+            {
+                return !loopPuts.contains(node.getIndex());
+            }
+
+            @Override
+            public Boolean visitLoad(Load node, Void context)
+            {
+                if (isMemoryClobbered || !(node.getPtr() instanceof Const)) {
+                    return false;
+                }
+                long address = (((Const) node.getPtr()).getLiteral().getI32() & 0xFFFFFFFFL) + (node.getOffset() & 0xFFFFFFFFL);
+                return address + node.getBytes() <= safeMemorySize;
+            }
+
+            @Override
+            public Boolean visitUnary(Unary node, Void context)
+            {
+                return !TRAPPING_UNARY_OPS.contains(node.getOp()) && isInvariant(node.getValue());
+            }
+        };
+
+        Map<Node, SetLocal> hoisted = new LinkedHashMap<>();
+        Node body = loop.getBody().accept(new Visitor<Void, Node>()
+        {
+            private boolean isHoistable(Node node)
+            {
+                return (node instanceof Binary || node instanceof Unary || node instanceof Load) &&
+                        node.accept(invarianceVisitor, null) &&
+                        !isConstant(node);
+            }
+
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                if (isHoistable(node)) {
+                    Type type = getType(node);
+                    SetLocal setLocal = hoisted.computeIfAbsent(node, n -> {
+                        Temp temp = tm.allocTemp(type);
+                        return new SetLocal(temp.getIndex(), type, n);
+                    });
+                    return new GetLocal(setLocal.getIndex(), type);
+                }
+                return reconstructNode(node, node.getChildren().stream().map(c -> c.accept(this, context)).iterator());
+            }
+        }, null);
+
+        if (hoisted.isEmpty()) {
+            return loop;
+        }
+        return new Block(
+                Stream.concat(
+                        hoisted.values().stream(),
+                        Stream.of(new Loop(loop.getName(), body)))
+                        .collect(toImmutableList()));
+    }
+
+    private static boolean isConstant(Node node)
+    {
+        return node instanceof Const || (!(node instanceof Load) && !(node instanceof GetLocal) && node.getChildren().stream().allMatch(LoopInvariantHoisting::isConstant));
+    }
+
+    private static Type getType(Node node)
+    {
+        if (node instanceof Binary) {
+            return ((Binary) node).getType();
+        }
+        else if (node instanceof Unary) {
+            return ((Unary) node).getType();
+        }
+        else if (node instanceof Load) {
+            return ((Load) node).getType();
+        }
+        else {
+            throw new IllegalArgumentException();
+        }
+    }
+}
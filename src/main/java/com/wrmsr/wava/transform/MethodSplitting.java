@@ -0,0 +1,430 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.analyze.ControlTransferAnalysis;
+import com.wrmsr.wava.analyze.LocalAnalysis;
+import com.wrmsr.wava.analyze.ValueTypeAnalysis;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.BreakTable;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.Select;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.util.NameGenerator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.wrmsr.wava.core.node.Nodes.nodify;
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableMap;
+import static java.util.function.Function.identity;
+
+/*
+Keeps generated methods under HotSpot's HugeMethodLimit (8000 bytes of bytecode, above which methods are never JIT
+compiled) by repeatedly outlining whichever subtree saves the most into a new function until the remainder fits
+too. Sizes are estimated from the IR before statementization, so the default budget leaves some headroom.
+*/
+public final class MethodSplitting
+{
+    public static final int DEFAULT_MAX_METHOD_SIZE = 6000;
+
+    private static final Name EXTERNAL_CONTROL_NAME = Name.of("_external$control");
+    private static final Name EXTERNAL_VALUE_NAME = Name.of("_external$value");
+    private static final int MAX_CANDIDATES = 8;
+
+    // Rough javac output per node, counting the implicit this loads and virtual calls of memory accesses.
+    private static final Visitor<Void, Integer> NODE_SIZE_ESTIMATOR = new Visitor<Void, Integer>()
+    {
+        @Override
+        protected Integer visitNode(Node node, Void context)
+        {
+            return 0;
+        }
+
+        @Override
+        public Integer visitBinary(Binary node, Void context)
+        {
+            return 2;
+        }
+
+        @Override
+        public Integer visitBreak(Break node, Void context)
+        {
+            return 3;
+        }
+
+        @Override
+        public Integer visitCall(Call node, Void context)
+        {
+            return 4;
+        }
+
+        @Override
+        public Integer visitCallIndirect(CallIndirect node, Void context)
+        {
+            return 12;
+        }
+
+        @Override
+        public Integer visitConst(Const node, Void context)
+        {
+            return 3;
+        }
+
+        @Override
+        public Integer visitGetLocal(GetLocal node, Void context)
+        {
+            return 2;
+        }
+
+        @Override
+        public Integer visitIf(If node, Void context)
+        {
+            return 6;
+        }
+
+        @Override
+        public Integer visitLoad(Load node, Void context)
+        {
+            return 8;
+        }
+
+        @Override
+        public Integer visitLoop(Loop node, Void context)
+        {
+            return 3;
+        }
+
+        @Override
+        public Integer visitReturn(Return node, Void context)
+        {
+            return 1;
+        }
+
+        @Override
+        public Integer visitSelect(Select node, Void context)
+        {
+            return 8;
+        }
+
+        @Override
+        public Integer visitSetLocal(SetLocal node, Void context)
+        {
+            return 3;
+        }
+
+        @Override
+        public Integer visitStore(Store node, Void context)
+        {
+            return 8;
+        }
+
+        @Override
+        public Integer visitUnary(Unary node, Void context)
+        {
+            return 2;
+        }
+
+        @Override
+        public Integer visitUnreachable(Unreachable node, Void context)
+        {
+            return 8;
+        }
+
+        @Override
+        public Integer visitBreakTable(BreakTable node, Void context)
+        {
+            return 12 + 8 * node.getTargets().size();
+        }
+
+        @Override
+        public Integer visitSwitch(Switch node, Void context)
+        {
+            return 12 + node.getEntries().stream().mapToInt(e -> 3 + 8 * e.getValues().size()).sum();
+        }
+    };
+
+    private MethodSplitting()
+    {
+    }
+
+    public static int estimateBytecodeSize(Node root)
+    {
+        return Analyses.linearize(root).stream().mapToInt(n -> n.accept(NODE_SIZE_ESTIMATOR, null)).sum();
+    }
+
+    public static Map<Name, Integer> getOversizedFunctions(Module module, int maxMethodSize)
+    {
+        Map<Name, Integer> ret = new LinkedHashMap<>();
+        module.getFunctions().values().forEach(f -> {
+            int size = estimateBytecodeSize(f.getBody());
+            if (size > maxMethodSize) {
+                ret.put(f.getName(), size);
+            }
+        });
+        return ret;
+    }
+
+    public static Module splitFunctions(Module module, int maxMethodSize)
+    {
+        Map<Name, Function> functions = new LinkedHashMap<>(module.getFunctions());
+        Set<Name> functionNames = new HashSet<>(functions.keySet());
+        Deque<Function> queue = new ArrayDeque<>(functions.values());
+        boolean changed = false;
+        while (!queue.isEmpty()) {
+            Function function = queue.removeFirst();
+            NameGenerator nameGenerator = new NameGenerator(functionNames, function.getName().get() + "$outlined$");
+            while (estimateBytecodeSize(function.getBody()) > maxMethodSize) {
+                Optional<Outlining.OutlinedFunction> outlined = outlineLargestSubtree(function, maxMethodSize, nameGenerator);
+                if (!outlined.isPresent()) {
+                    break;
+                }
+                Function outlinedFunction = outlined.get().getFunction();
+                functionNames.add(outlinedFunction.getName());
+                functions.put(outlinedFunction.getName(), outlinedFunction);
+                queue.addLast(outlinedFunction);
+                function = new Function(
+                        function.getName(),
+                        function.getResult(),
+                        function.getArgCount(),
+                        withExternalLocals(function).getLocals(),
+                        outlined.get().getCallsite());
+                functions.put(function.getName(), function);
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return module;
+        }
+        return new Module(
+                module.getName(),
+                module.getMemory(),
+                module.getTable(),
+                module.getDeclaredSignatures(),
+                module.getImports(),
+                module.getExports(),
+                functions.values().stream().collect(toImmutableMap(Function::getName, identity())));
+    }
+
+    // Subtrees under a sixteenth of the budget don't pay for their call and spills, and those over three quarters leave
+    // no room for the wrapping in the outlined function. Returns the rewritten caller body as the callsite.
+    private static Optional<Outlining.OutlinedFunction> outlineLargestSubtree(Function function, int maxMethodSize, NameGenerator nameGenerator)
+    {
+        Node body = copyTree(chunkBlocks(function.getBody(), maxMethodSize / 2));
+        Set<Name> names = new HashSet<>();
+        if (!Analyses.linearize(body).stream()
+                .filter(n -> n instanceof Label || n instanceof Loop)
+                .allMatch(n -> names.add(n instanceof Label ? ((Label) n).getName() : ((Loop) n).getName()))) {
+            return Optional.empty();
+        }
+
+        LocalAnalysis loa = LocalAnalysis.analyze(body);
+        ControlTransferAnalysis cfa = ControlTransferAnalysis.analyze(body);
+        ValueTypeAnalysis vta = ValueTypeAnalysis.analyze(body, function.getResult() != Type.NONE);
+        Map<Node, Optional<Node>> parentsByNode = Analyses.getParents(body);
+        Map<Name, Node> nodesByName = Analyses.getNamedNodes(body);
+
+        Map<Node, Integer> sizes = new IdentityHashMap<>();
+        estimateSubtreeSizes(body, sizes);
+        List<Node> candidates = Analyses.linearize(body).stream()
+                .filter(n -> n != body)
+                .filter(n -> sizes.get(n) >= maxMethodSize / 16 && sizes.get(n) <= maxMethodSize * 3 / 4)
+                .filter(n -> isOutlineable(n, cfa, vta, nodesByName))
+                .sorted((l, r) -> Integer.compare(sizes.get(r), sizes.get(l)))
+                .limit(MAX_CANDIDATES)
+                .collect(toImmutableList());
+
+        Function caller = withExternalLocals(function);
+        Name outlinedName = nameGenerator.get();
+        Optional<Node> best = Optional.empty();
+        Optional<Outlining.OutlinedFunction> bestOutlined = Optional.empty();
+        int bestSavings = 0;
+        for (Node candidate : candidates) {
+            Outlining.OutlinedFunction outlined = Outlining.outlineFunction(
+                    caller,
+                    candidate,
+                    outlinedName,
+                    caller.getLocals().getLocal(EXTERNAL_CONTROL_NAME).getIndex(),
+                    caller.getLocals().getLocal(EXTERNAL_VALUE_NAME).getIndex(),
+                    loa,
+                    cfa,
+                    vta,
+                    parentsByNode,
+                    nodesByName);
+            // Call and spill overhead can outweigh a small subtree with many exits and live locals.
+            int savings = sizes.get(candidate) - estimateBytecodeSize(outlined.getCallsite());
+            if (savings > bestSavings) {
+                best = Optional.of(candidate);
+                bestOutlined = Optional.of(outlined);
+                bestSavings = savings;
+            }
+        }
+        if (!best.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(new Outlining.OutlinedFunction(
+                Transforms.replaceNode(body, best.get(), bestOutlined.get().getCallsite(), true),
+                bestOutlined.get().getFunction()));
+    }
+
+    private static int estimateSubtreeSizes(Node node, Map<Node, Integer> sizes)
+    {
+        int size = node.accept(NODE_SIZE_ESTIMATOR, null) + node.getChildren().stream().mapToInt(child -> estimateSubtreeSizes(child, sizes)).sum();
+        sizes.put(node, size);
+        return size;
+    }
+
+    private static boolean isOutlineable(Node node, ControlTransferAnalysis cfa, ValueTypeAnalysis vta, Map<Name, Node> nodesByName)
+    {
+        ControlTransferAnalysis.Entry entry = cfa.get(node);
+        if (entry.getExecution() == ControlTransferAnalysis.Execution.FALLTHROUGH) {
+            Type type = vta.get(node).getType();
+            if (type != Type.NONE && !type.isConcrete()) {
+                return false;
+            }
+        }
+        return entry.getTargets().stream()
+                .filter(t -> t instanceof ControlTransferAnalysis.NameTarget)
+                .map(t -> Outlining.getTargetType(((ControlTransferAnalysis.NameTarget) t).getName(), vta, nodesByName))
+                .allMatch(t -> t == Type.NONE || t.isConcrete());
+    }
+
+    private static Function withExternalLocals(Function function)
+    {
+        if (function.getLocals().getLocalsByName().containsKey(EXTERNAL_CONTROL_NAME)) {
+            return function;
+        }
+        List<Local> locals = function.getLocals().getList();
+        return new Function(
+                function.getName(),
+                function.getResult(),
+                function.getArgCount(),
+                new Locals(ImmutableList.<Local>builder()
+                        .addAll(locals)
+                        .add(new Local(EXTERNAL_CONTROL_NAME, Index.of(locals.size()), Type.I32))
+                        .add(new Local(EXTERNAL_VALUE_NAME, Index.of(locals.size() + 1), Type.I64))
+                        .build()),
+                function.getBody());
+    }
+
+    // Long straight-line blocks have no single child worth outlining, so their runs of statements are grouped into
+    // nested blocks which can be.
+    private static Node chunkBlocks(Node root, int maxChunkSize)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitBlock(Block node, Void context)
+            {
+                if (estimateBytecodeSize(node) <= maxChunkSize) {
+                    return node;
+                }
+                List<Node> chunks = new ArrayList<>();
+                List<Node> chunk = new ArrayList<>();
+                int chunkSize = 0;
+                for (Node child : node.getChildren()) {
+                    int childSize = estimateBytecodeSize(child);
+                    if (!chunk.isEmpty() && chunkSize + childSize > maxChunkSize) {
+                        chunks.add(nodify(chunk));
+                        chunk = new ArrayList<>();
+                        chunkSize = 0;
+                    }
+                    chunk.add(child);
+                    chunkSize += childSize;
+                }
+                chunks.add(nodify(chunk));
+                return chunks.size() > 1 ? new Block(chunks) : node;
+            }
+        }, null);
+    }
+
+    // The analyses key on node identity, so leaves shared by earlier passes are duplicated first.
+    private static Node copyTree(Node root)
+    {
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitConst(Const node, Void context)
+            {
+                return new Const(node.getLiteral());
+            }
+
+            @Override
+            public Node visitGetLocal(GetLocal node, Void context)
+            {
+                return new GetLocal(node.getIndex(), node.getType());
+            }
+
+            @Override
+            public Node visitNop(Nop node, Void context)
+            {
+                return new Nop();
+            }
+
+            @Override
+            public Node visitUnreachable(Unreachable node, Void context)
+            {
+                return new Unreachable();
+            }
+        }, null);
+    }
+}
@@ -17,6 +17,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import com.wrmsr.wava.analyze.Analyses;
 import com.wrmsr.wava.analyze.ControlTransferAnalysis;
 import com.wrmsr.wava.analyze.LocalAnalysis;
 import com.wrmsr.wava.analyze.ValueTypeAnalysis;
@@ -28,6 +29,7 @@ import com.wrmsr.wava.core.node.Call;
 import com.wrmsr.wava.core.node.Const;
 import com.wrmsr.wava.core.node.GetLocal;
 import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Loop;
 import com.wrmsr.wava.core.node.Node;
 import com.wrmsr.wava.core.node.Nop;
 import com.wrmsr.wava.core.node.Return;
@@ -42,10 +44,12 @@ import com.wrmsr.wava.core.type.Type;
 import com.wrmsr.wava.core.unit.Function;
 import com.wrmsr.wava.core.unit.Local;
 import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.core.unit.Module;
 import org.organicdesign.fp.collections.ImSet;
 
 import javax.annotation.concurrent.Immutable;
 
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -110,13 +114,18 @@ public final class Outlining
             ImSet<Index> entryLocalPuts = loa.get(node).getLocalPuts();
 
             ImSet<Index> nonEntryLocalGets = LocalAnalysis.EMPTY_LOCALS;
-            ImSet<Index> nonEntryLocalPuts = LocalAnalysis.EMPTY_LOCALS;
+            ImSet<Index> nonEntryLocalPuts = LocalAnalysis.EMPTY_LOCALS.union(function.getArgLocals().stream().map(Local::getIndex).collect(toImmutableList()));
             Optional<Node> cur = Optional.of(node);
             while (true) {
                 Optional<Node> next = requireNonNull(parentsByNode.get(cur.get()));
                 if (!next.isPresent()) {
                     break;
                 }
+                if (next.get() instanceof Loop) {
+                    Set<Index> carried = Sets.intersection(entryLocalGets, entryLocalPuts);
+                    nonEntryLocalGets = nonEntryLocalGets.union(carried);
+                    nonEntryLocalPuts = nonEntryLocalPuts.union(carried);
+                }
                 for (Node sibling : next.get().getChildren()) {
                     if (sibling == cur.get()) {
                         continue;
@@ -128,15 +137,16 @@ public final class Outlining
             }
 
             Set<Index> entryLocals = Sets.union(entryLocalGets, entryLocalPuts);
-            Set<Index> nonEntryLocals = Sets.union(nonEntryLocalGets, nonEntryLocalPuts);
-            Set<Index> entryOnlyLocals = Sets.difference(entryLocals, nonEntryLocals);
 
-            Set<Index> spilledOutLocalPutsSet = Sets.intersection(entryLocalPuts, nonEntryLocalGets);
+            // The return control and value locals are always set by a callsite right before being read, so callsites
+            // outlined again need not carry them across.
+            Set<Index> scratchLocals = ImmutableSet.of(externalRetControl, externalRetValue);
+            Set<Index> spilledOutLocalPutsSet = Sets.difference(Sets.intersection(entryLocalPuts, nonEntryLocalGets), scratchLocals);
             spilledOutLocalPuts = spilledOutLocalPutsSet.stream().sorted().collect(toImmutableList());
-            spilledInLocalGets = Sets.intersection(nonEntryLocalPuts, entryLocalGets).stream().filter(i -> !spilledOutLocalPutsSet.contains(i)).sorted().collect(toImmutableList());
+            spilledInLocalGets = Sets.intersection(nonEntryLocalPuts, entryLocalGets).stream().filter(i -> !spilledOutLocalPutsSet.contains(i) && !scratchLocals.contains(i)).sorted().collect(toImmutableList());
 
-            List<Index> entryOnlyLocalList = entryOnlyLocals.stream().sorted().collect(toImmutableList());
-            checkState(Sets.intersection(ImmutableSet.copyOf(spilledInLocalGets), ImmutableSet.copyOf(entryOnlyLocals)).isEmpty());
+            // Everything else is either private to the node or never assigned, and starts out zeroed either way.
+            List<Index> entryOnlyLocalList = Sets.difference(entryLocals, Sets.union(spilledOutLocalPutsSet, ImmutableSet.copyOf(spilledInLocalGets))).stream().sorted().collect(toImmutableList());
 
             allLocals = ImmutableList.<Index>builder()
                     .addAll(spilledOutLocalPuts)
@@ -157,9 +167,7 @@ public final class Outlining
                 targetTypesBuilder.put(ControlTransferAnalysis.Target.RETURN, function.getResult());
             }
             else if (target instanceof ControlTransferAnalysis.NameTarget) {
-                Name name = ((ControlTransferAnalysis.NameTarget) target).getName();
-                Type type = vta.get(nodesByName.get(name)).getType();
-                targetTypesBuilder.put(target, type);
+                targetTypesBuilder.put(target, getTargetType(((ControlTransferAnalysis.NameTarget) target).getName(), vta, nodesByName));
             }
             else {
                 throw new IllegalStateException();
@@ -192,7 +200,15 @@ public final class Outlining
             @Override
             public Node visitBreakTable(BreakTable node, Void context)
             {
-                return super.visitBreakTable(node, context);
+                return new BreakTable(
+                        node.getTargets().stream().map(this::translateTarget).collect(toImmutableList()),
+                        translateTarget(node.getDefaultTarget()),
+                        node.getCondition().accept(this, context));
+            }
+
+            private Name translateTarget(Name name)
+            {
+                return targetNameMap.getOrDefault(ControlTransferAnalysis.Target.of(name), name);
             }
 
             @Override
@@ -247,10 +263,15 @@ public final class Outlining
             }
         }
 
+        // Control transfer analysis is conservative, so some targets may never actually be broken to.
+        Set<Name> referencedNames = Analyses.getReferencedNames(outlinedBody);
         for (int i = 0; i < targets.size(); ++i) {
             ControlTransferAnalysis.Target target = targets.get(i);
             Name name = targetNameMap.get(target);
             Type type = targetTypes.get(target);
+            if (!referencedNames.contains(name)) {
+                continue;
+            }
 
             outlinedBody = new Label(
                     name,
@@ -281,37 +302,35 @@ public final class Outlining
                                                     internalRetControl,
                                                     Type.I32,
                                                     new Const(
-                                                            Literal.of(i))),
+                                                            Literal.of(i + 1))),
                                             new Break(
                                                     Name.of("_epilog$"),
                                                     new Nop())))));
         }
 
-        Node returnValueSpiller =
-                new Call(
-                        new Call.HostTarget(HostOp.SpillPut, Optional.empty()),
-                        HostOp.SpillPut.getSignature(),
-                        ImmutableList.of(
-                                new Const(
-                                        Literal.of(0)),
-                                new GetLocal(
-                                        internalRetValue,
-                                        Type.I64)));
+        // Slot 0 of the i64 spill carries the packed return value, and spilled locals follow it in slots of their own type.
+        Map<Type, Integer> spillSlotCounts = new EnumMap<>(Type.class);
+        spillSlotCounts.put(Type.I64, 1);
+        List<Integer> spillSlots = spilledOutLocalPuts.stream()
+                .map(i -> spillSlotCounts.merge(function.getLocals().getLocal(i).getType(), 1, Integer::sum) - 1)
+                .collect(toImmutableList());
+
+        Node returnValueSpiller = spillPut(
+                0,
+                Type.I64,
+                new GetLocal(
+                        internalRetValue,
+                        Type.I64));
 
         List<Node> localSpillers = enumerate(spilledOutLocalPuts.stream())
                 .map(i -> {
                     Type type = function.getLocals().getLocal(i.getItem()).getType();
-                    return new Call(
-                            new Call.HostTarget(HostOp.SpillPut, Optional.empty()),
-                            HostOp.SpillPut.getSignature(),
-                            ImmutableList.of(
-                                    new Const(
-                                            Literal.of(i.getIndex() + 1)),
-                                    packI64(
-                                            new GetLocal(
-                                                    localTranslationMap.get(i.getItem()),
-                                                    type),
-                                            type)));
+                    return spillPut(
+                            spillSlots.get(i.getIndex()),
+                            type,
+                            new GetLocal(
+                                    localTranslationMap.get(i.getItem()),
+                                    type));
                 }).collect(toImmutableList());
 
         outlinedBody = new Block(
@@ -376,12 +395,9 @@ public final class Outlining
                 new SetLocal(
                         externalRetValue,
                         Type.I64,
-                        new Call(
-                                new Call.HostTarget(HostOp.SpillGet, Optional.empty()),
-                                HostOp.SpillGet.getSignature(),
-                                ImmutableList.of(
-                                        new Const(
-                                                Literal.of(0)))));
+                        spillGet(
+                                0,
+                                Type.I64));
 
         List<Node> localUnspillers = enumerate(spilledOutLocalPuts.stream())
                 .map(i -> {
@@ -389,13 +405,8 @@ public final class Outlining
                     return new SetLocal(
                             i.getItem(),
                             type,
-                            unpackI64(
-                                    new Call(
-                                            new Call.HostTarget(HostOp.SpillGet, Optional.empty()),
-                                            HostOp.SpillGet.getSignature(),
-                                            ImmutableList.of(
-                                                    new Const(
-                                                            Literal.of(i.getIndex() + 1)))),
+                            spillGet(
+                                    spillSlots.get(i.getIndex()),
                                     type));
                 }).collect(toImmutableList());
 
@@ -406,26 +417,22 @@ public final class Outlining
                                 Type.I32),
                         Stream.concat(
                                 enumerate(targets.stream()).map(i -> {
+                                    Type type = targetTypes.get(i.getItem());
+                                    Node value = type != Type.NONE ?
+                                            unpackI64(
+                                                    new GetLocal(
+                                                            externalRetValue,
+                                                            Type.I64),
+                                                    type)
+                                            : new Nop();
                                     if (i.getItem().equals(ControlTransferAnalysis.Target.RETURN)) {
                                         return new Switch.Entry(
                                                 ImmutableList.of(Switch.Value.of(i.getIndex() + 1)),
                                                 new Return(
-                                                        unpackI64(
-                                                                new GetLocal(
-                                                                        externalRetValue,
-                                                                        Type.I64),
-                                                                function.getResult())));
+                                                        value));
                                     }
                                     else if (i.getItem() instanceof ControlTransferAnalysis.NameTarget) {
                                         Name name = ((ControlTransferAnalysis.NameTarget) i.getItem()).getName();
-                                        Type type = vta.get(nodesByName.get(name)).getType();
-                                        Node value = type != Type.NONE ?
-                                                unpackI64(
-                                                        new GetLocal(
-                                                                externalRetValue,
-                                                                Type.I64),
-                                                        function.getResult())
-                                                : new Nop();
                                         return new Switch.Entry(
                                                 ImmutableList.of(Switch.Value.of(i.getIndex() + 1)),
                                                 new Break(
@@ -454,10 +461,10 @@ public final class Outlining
                         .add(returnValueUnspiller)
                         .addAll(localUnspillers)
                         .add(controlSwitch)
-                        .add(maxCfa.getExecution() == ControlTransferAnalysis.Execution.FALLTHROUGH ?
+                        .add(maxCfa.getExecution() == ControlTransferAnalysis.Execution.FALLTHROUGH && maxVta.getType() != Type.NONE ?
                                 unpackI64(
                                         new GetLocal(
-                                                externalRetControl,
+                                                externalRetValue,
                                                 Type.I64),
                                         maxVta.getType()) :
                                 new Nop())
@@ -465,4 +472,48 @@ public final class Outlining
 
         return new OutlinedFunction(callsite, outlinedFunction);
     }
+
+    // The number of spill slots of each type used across the module, for sizing the spill arrays.
+    public static Map<Type, Integer> getSpillSlotCounts(Module module)
+    {
+        Map<Type, Integer> counts = new EnumMap<>(Type.class);
+        for (Function function : module.getFunctions().values()) {
+            for (Call call : Analyses.findNodes(function.getBody(), Call.class)) {
+                if (call.getTarget() instanceof Call.HostTarget && ((Call.HostTarget) call.getTarget()).getOp() == HostOp.SpillPut) {
+                    Node slot = call.getOperands().get(0);
+                    checkState(slot instanceof Const);
+                    counts.merge(call.getSignature().getArguments().get(1), ((Const) slot).getLiteral().getI32() + 1, Math::max);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static Node spillPut(int slot, Type type, Node value)
+    {
+        return new Call(
+                new Call.HostTarget(HostOp.SpillPut, Optional.empty()),
+                HostOp.getSpillPutSignature(type),
+                ImmutableList.of(
+                        new Const(
+                                Literal.of(slot)),
+                        value));
+    }
+
+    private static Node spillGet(int slot, Type type)
+    {
+        return new Call(
+                new Call.HostTarget(HostOp.SpillGet, Optional.empty()),
+                HostOp.getSpillGetSignature(type),
+                ImmutableList.of(
+                        new Const(
+                                Literal.of(slot))));
+    }
+
+    // Breaks to a loop continue it and so never carry a value.
+    public static Type getTargetType(Name name, ValueTypeAnalysis vta, Map<Name, Node> nodesByName)
+    {
+        Node target = requireNonNull(nodesByName.get(name));
+        return target instanceof Loop ? Type.NONE : vta.get(target).getType();
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableMap;
+import com.wrmsr.wava.analyze.RangeAnalysis;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.op.UnaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+
+import java.util.Map;
+import java.util.Set;
+
+import static com.wrmsr.wava.core.node.Nodes.reconstructNode;
+
+public final class RangeNarrowing
+{
+    private RangeNarrowing()
+    {
+    }
+
+    public static final Map<BinaryOp, BinaryOp> SIGNED_BINARY_OPS = ImmutableMap.<BinaryOp, BinaryOp>builder()
+            .put(BinaryOp.DivU, BinaryOp.DivS)
+            .put(BinaryOp.RemU, BinaryOp.RemS)
+            .put(BinaryOp.LtU, BinaryOp.LtS)
+            .put(BinaryOp.LeU, BinaryOp.LeS)
+            .put(BinaryOp.GtU, BinaryOp.GtS)
+            .put(BinaryOp.GeU, BinaryOp.GeS)
+            .build();
+
+    public static final Map<UnaryOp, UnaryOp> SIGNED_UNARY_OPS = ImmutableMap.<UnaryOp, UnaryOp>builder()
+            .put(UnaryOp.ExtendUInt32, UnaryOp.ExtendSInt32)
+            .put(UnaryOp.ConvertUInt32, UnaryOp.ConvertSInt32)
+            .put(UnaryOp.ConvertUInt64, UnaryOp.ConvertSInt64)
+            .build();
+
+    // Unsigned ops over operands proven non-negative are replaced by their cheaper signed forms, and masks that cannot
+    // clear any bit of their operand are dropped.
+    public static Node narrowRanges(Node root, Set<Index> args)
+    {
+        return narrow(root, RangeAnalysis.analyze(root, args));
+    }
+
+    private static Node narrow(Node node, RangeAnalysis ra)
+    {
+        if (node instanceof Binary) {
+            Binary binary = (Binary) node;
+            BinaryOp signedOp = SIGNED_BINARY_OPS.get(binary.getOp());
+            if (signedOp != null && ra.isNonNegative(binary.getLeft()) && ra.isNonNegative(binary.getRight()) && !isShiftOrMask(binary)) {
+                return new Binary(signedOp, binary.getType(), narrow(binary.getLeft(), ra), narrow(binary.getRight(), ra));
+            }
+            if (binary.getOp() == BinaryOp.And) {
+                if (isCoveringMask(binary.getRight(), binary.getLeft(), ra)) {
+                    return narrow(binary.getLeft(), ra);
+                }
+                else if (isCoveringMask(binary.getLeft(), binary.getRight(), ra)) {
+                    return narrow(binary.getRight(), ra);
+                }
+            }
+        }
+        else if (node instanceof Unary) {
+            Unary unary = (Unary) node;
+            UnaryOp signedOp = SIGNED_UNARY_OPS.get(unary.getOp());
+            if (signedOp != null && ra.isNonNegative(unary.getValue())) {
+                return new Unary(signedOp, unary.getType(), narrow(unary.getValue(), ra));
+            }
+        }
+        return reconstructNode(node, node.getChildren().stream().map(c -> narrow(c, ra)).iterator());
+    }
+
+    // Unsigned division and remainder by a power of two already lower to a shift or mask.
+    private static boolean isShiftOrMask(Binary binary)
+    {
+        if ((binary.getOp() != BinaryOp.DivU && binary.getOp() != BinaryOp.RemU) || !(binary.getRight() instanceof Const)) {
+            return false;
+        }
+        Const constant = (Const) binary.getRight();
+        long bits = constant.getLiteral().getType() == Type.I32 ? constant.getLiteral().getI32() & 0xFFFFFFFFL : constant.getLiteral().getI64();
+        return Long.bitCount(bits) == 1;
+    }
+
+    private static boolean isCoveringMask(Node mask, Node value, RangeAnalysis ra)
+    {
+        if (!(mask instanceof Const) || !ra.isNonNegative(value)) {
+            return false;
+        }
+        Const constant = (Const) mask;
+        long bits = constant.getLiteral().getType() == Type.I32 ? constant.getLiteral().getI32() : constant.getLiteral().getI64();
+        int length = 64 - Long.numberOfLeadingZeros(ra.get(value).get().getMax());
+        long low = length >= 63 ? Long.MAX_VALUE : (1L << length) - 1;
+        return (bits & low) == low;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.type.Name;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.wrmsr.wava.core.node.Nodes.nodify;
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableSet;
+
+/*
+Turns forward breaks out of labels back into if/else: within a label's body, an if with one arm ending in a break to the
+label absorbs the rest of the body into its other arm, and breaks left in tail position become no-ops. Labels whose
+breaks are all absorbed disappear with eliminateUnreferencedLabels.
+*/
+public final class Restructuring
+{
+    private Restructuring()
+    {
+    }
+
+    // Valueless labels only: meant to run after statementization.
+    public static Node restructureLabels(Node root)
+    {
+        Set<Name> valued = Analyses.linearize(root).stream()
+                .filter(n -> n instanceof Break && !(((Break) n).getValue() instanceof Nop))
+                .map(n -> ((Break) n).getTarget())
+                .collect(toImmutableSet());
+
+        return rewriteNode(root, new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitLabel(Label node, Void context)
+            {
+                if (valued.contains(node.getName())) {
+                    return node;
+                }
+                return new Label(node.getName(), restructure(node.getBody(), node.getName()));
+            }
+        }, null);
+    }
+
+    // Rewrites a node in tail position of the named label.
+    private static Node restructure(Node node, Name name)
+    {
+        if (isBreakTo(node, name)) {
+            return new Nop();
+        }
+        else if (node instanceof Block) {
+            List<Node> children = node.getChildren();
+            for (int i = 0; i < children.size() - 1; ++i) {
+                if (!(children.get(i) instanceof If)) {
+                    continue;
+                }
+                If ifNode = (If) children.get(i);
+                boolean trueBreaks = endsWithBreakTo(ifNode.getIfTrue(), name);
+                boolean falseBreaks = endsWithBreakTo(ifNode.getIfFalse(), name);
+                if (trueBreaks == falseBreaks) {
+                    continue;
+                }
+                Node rest = nodify(ImmutableList.<Node>builder()
+                        .add(trueBreaks ? ifNode.getIfFalse() : ifNode.getIfTrue())
+                        .addAll(children.subList(i + 1, children.size()))
+                        .build());
+                Node absorbed = new If(
+                        ifNode.getCondition(),
+                        trueBreaks ? ifNode.getIfTrue() : rest,
+                        trueBreaks ? rest : ifNode.getIfFalse());
+                return nodify(ImmutableList.<Node>builder()
+                        .addAll(children.subList(0, i))
+                        .add(restructure(absorbed, name))
+                        .build());
+            }
+            if (children.isEmpty()) {
+                return node;
+            }
+            return nodify(ImmutableList.<Node>builder()
+                    .addAll(children.subList(0, children.size() - 1))
+                    .add(restructure(children.get(children.size() - 1), name))
+                    .build());
+        }
+        else if (node instanceof If) {
+            If ifNode = (If) node;
+            return new If(
+                    ifNode.getCondition(),
+                    restructure(ifNode.getIfTrue(), name),
+                    restructure(ifNode.getIfFalse(), name));
+        }
+        else if (node instanceof Label) {
+            return new Label(((Label) node).getName(), restructure(((Label) node).getBody(), name));
+        }
+        else if (node instanceof Switch) {
+            Switch switchNode = (Switch) node;
+            List<Switch.Entry> entries = switchNode.getEntries();
+            if (entries.isEmpty()) {
+                return node;
+            }
+            return new Switch(
+                    switchNode.getCondition(),
+                    ImmutableList.<Switch.Entry>builder()
+                            .addAll(entries.subList(0, entries.size() - 1))
+                            .add(new Switch.Entry(entries.get(entries.size() - 1).getValues(), restructure(entries.get(entries.size() - 1).getBody(), name)))
+                            .build());
+        }
+        return node;
+    }
+
+    private static boolean isBreakTo(Node node, Name name)
+    {
+        return node instanceof Break && ((Break) node).getTarget().equals(name);
+    }
+
+    private static boolean endsWithBreakTo(Node node, Name name)
+    {
+        if (isBreakTo(node, name)) {
+            return true;
+        }
+        else if (node instanceof Block) {
+            return !node.getChildren().isEmpty() && endsWithBreakTo(node.getChildren().get(node.getChildren().size() - 1), name);
+        }
+        else if (node instanceof If) {
+            return endsWithBreakTo(((If) node).getIfTrue(), name) && endsWithBreakTo(((If) node).getIfFalse(), name);
+        }
+        return false;
+    }
+}
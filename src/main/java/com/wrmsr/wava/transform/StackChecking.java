@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.node.visitor.Visitor;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Local;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.util.NameGenerator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.wrmsr.wava.core.node.Nodes.rewriteNode;
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+
+/*
+Traps when a store would move the shadow stack pointer below the stack limit, before anything is written to the new
+frame. Stores that restore a saved pointer or pop a constant amount are left alone. The limit is expected to sit a red
+zone above the true bottom of the stack so leaf functions whose constant frames fit in the red zone need no check, as
+every caller checked its own frame against the limit before calling.
+*/
+public final class StackChecking
+{
+    private StackChecking()
+    {
+    }
+
+    public static Function insertStackChecks(Function function, int stackPointerAddress, int stackLimit, int redZoneSize)
+    {
+        checkArgument(redZoneSize >= 0);
+        List<Store> allocations = Analyses.linearize(function.getBody()).stream()
+                .filter(n -> FramePromotion.isStackPointerStore(n, stackPointerAddress))
+                .map(Store.class::cast)
+                .filter(s -> !isDeallocation(s.getValue()))
+                .collect(toImmutableList());
+        if (allocations.isEmpty() || (isLeaf(function) && getConstantFrameSize(allocations) <= redZoneSize)) {
+            return function;
+        }
+
+        List<Local> locals = new ArrayList<>(function.getLocals().getList());
+        NameGenerator nameGenerator = new NameGenerator(new HashSet<>(function.getLocals().getLocalsByName().keySet()), "_stack$");
+        Index stackPointer = Index.of(locals.size());
+        locals.add(new Local(nameGenerator.get(), stackPointer, Type.I32));
+
+        Node body = rewriteNode(function.getBody(), new Visitor<Void, Node>()
+        {
+            @Override
+            protected Node visitNode(Node node, Void context)
+            {
+                return node;
+            }
+
+            @Override
+            public Node visitStore(Store node, Void context)
+            {
+                if (!FramePromotion.isStackPointerStore(node, stackPointerAddress) || isDeallocation(node.getValue())) {
+                    return node;
+                }
+                return new Block(ImmutableList.of(
+                        new SetLocal(stackPointer, Type.I32, node.getValue()),
+                        new If(
+                                new Binary(BinaryOp.LtU, Type.I32, new GetLocal(stackPointer, Type.I32), new Const(Literal.of(stackLimit))),
+                                new Unreachable(),
+                                new Nop()),
+                        new Store(node.getType(), node.getBytes(), node.getOffset(), node.getAlign(), node.getPtr(), new GetLocal(stackPointer, Type.I32))));
+            }
+        }, null);
+
+        return new Function(
+                function.getName(),
+                function.getResult(),
+                function.getArgCount(),
+                new Locals(locals),
+                body);
+    }
+
+    // The new stack pointer is commonly also assigned to a frame pointer local as it is stored.
+    private static Node getStoredValue(Node value)
+    {
+        while (value instanceof SetLocal) {
+            value = ((SetLocal) value).getValue();
+        }
+        return value;
+    }
+
+    private static boolean isDeallocation(Node value)
+    {
+        value = getStoredValue(value);
+        if (value instanceof GetLocal) {
+            return true;
+        }
+        if (!(value instanceof Binary)) {
+            return false;
+        }
+        Binary binary = (Binary) value;
+        return binary.getOp() == BinaryOp.Add &&
+                binary.getRight() instanceof Const &&
+                ((Const) binary.getRight()).getLiteral().getI32() >= 0;
+    }
+
+    private static boolean isLeaf(Function function)
+    {
+        return Analyses.findNodes(function.getBody(), Call.class).isEmpty() &&
+                Analyses.findNodes(function.getBody(), CallIndirect.class).isEmpty();
+    }
+
+    private static long getConstantFrameSize(List<Store> allocations)
+    {
+        long size = 0;
+        for (Store store : allocations) {
+            Node value = getStoredValue(store.getValue());
+            if (!(value instanceof Binary)) {
+                return Long.MAX_VALUE;
+            }
+            Binary binary = (Binary) value;
+            if (binary.getOp() != BinaryOp.Sub || !(binary.getRight() instanceof Const)) {
+                return Long.MAX_VALUE;
+            }
+            size += ((Const) binary.getRight()).getLiteral().getI32() & 0xFFFFFFFFL;
+        }
+        return size;
+    }
+}
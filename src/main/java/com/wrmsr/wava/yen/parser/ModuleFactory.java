@@ -1446,11 +1446,8 @@ public class ModuleFactory
 
         int max = -1;
         int initial = Integer.parseInt(s.get(1).string());
-        if (s.size() == 2) {
-            return;
-        }
         int i = 2;
-        if (s.get(i).isString()) {
+        if (i < s.size() && s.get(i).isString()) {
             max = Integer.parseInt(s.get(i).string());
             i++;
         }
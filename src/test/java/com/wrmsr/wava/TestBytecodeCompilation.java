@@ -0,0 +1,606 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.compile.memory.MemoryBackend;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.compile.module.MultiModuleCompilerConfig;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Memory;
+import com.wrmsr.wava.driver.StandardDriver;
+import com.wrmsr.wava.java.javac.InProcJavaCompiler;
+import com.wrmsr.wava.java.javac.option.ClassOutputOption;
+import com.wrmsr.wava.java.lang.tree.declaration.JType;
+import com.wrmsr.wava.transform.MethodSplitting;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBytecodeCompilation
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (type $FUNCSIG$ii (func (param i32) (result i32)))\n" +
+            "  (import $log \"env\" \"log\" (param i32))\n" +
+            "  (table $twice $thrice)\n" +
+            "  (export \"loop\" $loop)\n" +
+            "  (export \"wide\" $wide)\n" +
+            "  (export \"cmp\" $cmp)\n" +
+            "  (export \"fcmp\" $fcmp)\n" +
+            "  (export \"sw\" $sw)\n" +
+            "  (func $twice (param $0 i32) (result i32) (i32.mul (get_local $0) (i32.const 2)))\n" +
+            "  (func $thrice (param $0 i32) (result i32) (i32.mul (get_local $0) (i32.const 3)))\n" +
+            "  (func $loop (param $0 i32) (param $1 i32) (result i32) (local $2 i32) (local $3 i32)\n" +
+            "    (loop $out $in\n" +
+            "      (br_if $out (i32.ge_u (get_local $3) (get_local $0)))\n" +
+            "      (set_local $2 (i32.add (get_local $2)\n" +
+            "        (call_indirect $FUNCSIG$ii (i32.and (get_local $3) (i32.const 1)) (i32.add (get_local $3) (get_local $1)))))\n" +
+            "      (i32.store (i32.const 64) (get_local $2))\n" +
+            "      (set_local $3 (i32.add (get_local $3) (i32.const 1)))\n" +
+            "      (br $in))\n" +
+            "    (call_import $log (get_local $2))\n" +
+            "    (i32.load8_u (i32.const 64)))\n" +
+            "  (func $wide (param $0 i32) (param $1 i32) (result i32) (local $2 i64)\n" +
+            "    (set_local $2 (i64.mul (i64.extend_s/i32 (get_local $0)) (i64.extend_u/i32 (get_local $1))))\n" +
+            "    (i32.wrap/i64 (i64.xor (i64.rem_u (get_local $2) (i64.const 1000)) (i64.shr_s (get_local $2) (i64.const 33)))))\n" +
+            "  (func $cmp (param $0 i32) (param $1 i32) (result i32)\n" +
+            "    (i32.add (i32.lt_u (get_local $0) (get_local $1))\n" +
+            "      (i32.add (i32.mul (i32.le_s (get_local $0) (get_local $1)) (i32.const 2))\n" +
+            "        (i32.mul (i32.eqz (i32.xor (get_local $0) (get_local $1))) (i32.const 4)))))\n" +
+            "  (func $fcmp (param $0 i32) (param $1 i32) (result i32) (local $2 f64)\n" +
+            "    (set_local $2 (f64.div (f64.convert_s/i32 (get_local $0)) (f64.convert_s/i32 (get_local $1))))\n" +
+            "    (i32.add (f64.lt (get_local $2) (f64.const 1.5))\n" +
+            "      (i32.add (i32.mul (f64.ge (get_local $2) (f64.const 1.5)) (i32.const 2))\n" +
+            "        (i32.mul (f64.ne (get_local $2) (get_local $2)) (i32.const 4)))))\n" +
+            "  (func $sw (param $0 i32) (result i32)\n" +
+            "    (block $d\n" +
+            "      (block $c2\n" +
+            "        (block $c1\n" +
+            "          (block $c0\n" +
+            "            (br_table $c0 $c1 $c2 $c1 $d (get_local $0)))\n" +
+            "          (return (i32.const 10)))\n" +
+            "        (return (i32.const 11)))\n" +
+            "      (return (i32.const 12)))\n" +
+            "    (i32.const 13))\n" +
+            ")";
+
+    public static final String GROW_CODE = "" +
+            "(module (memory 16 18)\n" +
+            "  (export \"grow\" $grow)\n" +
+            "  (export \"size\" $size)\n" +
+            "  (export \"peek\" $peek)\n" +
+            "  (export \"poke\" $poke)\n" +
+            "  (export \"sum\" $sum)\n" +
+            "  (func $grow (param $0 i32) (result i32) (grow_memory (get_local $0)))\n" +
+            "  (func $size (result i32) (current_memory))\n" +
+            "  (func $peek (param $0 i32) (result i32) (i32.load (get_local $0)))\n" +
+            "  (func $poke (param $0 i32) (param $1 i32) (i32.store (get_local $0) (get_local $1)))\n" +
+            "  (func $sum (param $0 i32) (param $1 i32) (result i32) (local $2 i32)\n" +
+            "    (loop $done $top\n" +
+            "      (set_local $2 (i32.add (get_local $2) (i32.load (get_local $0))))\n" +
+            "      (br_if $top (set_local $1 (i32.sub (get_local $1) (i32.const 1)))))\n" +
+            "    (get_local $2))\n" +
+            ")";
+
+    public static final String DATA_CODE = "" +
+            "(module (memory 1\n" +
+            "    (segment 16 \"hello\\00\")\n" +
+            "    (segment 4096 \"\\01\\02\\03\\04world\"))\n" +
+            "  (export \"peek\" $peek)\n" +
+            "  (func $peek (param $0 i32) (result i32) (i32.load8_u (get_local $0)))\n" +
+            ")";
+
+    public static final String STACK_CODE = "" +
+            "(module (memory 17\n" +
+            "    (segment 1040384 \"\01\"))\n" +
+            "  (export \"recurse\" $recurse)\n" +
+            "  (func $recurse (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=4 (i32.const 0) (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 64))))\n" +
+            "    (i32.store offset=8 (get_local $1) (get_local $0))\n" +
+            "    (if (get_local $0) (set_local $0 (call $recurse (i32.sub (get_local $0) (i32.const 1)))))\n" +
+            "    (i32.store offset=4 (i32.const 0) (i32.add (get_local $1) (i32.const 64)))\n" +
+            "    (i32.add (get_local $0) (i32.load offset=8 (get_local $1))))\n" +
+            ")";
+
+    public static final String TRAP_CODE = "" +
+            "(module (memory 1)\n" +
+            "  (export \"div\" $div)\n" +
+            "  (export \"rem\" $rem)\n" +
+            "  (export \"remu\" $remu)\n" +
+            "  (export \"trunc\" $trunc)\n" +
+            "  (export \"fail\" $fail)\n" +
+            "  (func $div (param $0 i32) (param $1 i32) (result i32) (i32.div_s (get_local $0) (get_local $1)))\n" +
+            "  (func $rem (param $0 i32) (param $1 i32) (result i32) (i32.rem_s (get_local $0) (get_local $1)))\n" +
+            "  (func $remu (param $0 i32) (param $1 i32) (result i32) (i32.rem_u (get_local $0) (get_local $1)))\n" +
+            "  (func $trunc (param $0 i32) (result i32) (i32.trunc_s/f32 (f32.div (f32.convert_s/i32 (get_local $0)) (f32.const 0))))\n" +
+            "  (func $fail (result i32) (unreachable))\n" +
+            ")";
+
+    private static final int[] INPUTS = {-7, -1, 0, 1, 2, 3, 4, 9, 1000, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+    private static StandardDriver.Sink sourceSink(Path dir, List<File> sourceFiles)
+    {
+        return (jcompilationUnit, renderer) -> {
+            JType jtype = (JType) jcompilationUnit.getBody();
+            StringWriter output = new StringWriter();
+            renderer.accept(output);
+            File file = dir.resolve(jtype.getName().get() + ".java").toFile();
+            Files.write(file.toPath(), output.toString().getBytes());
+            sourceFiles.add(file);
+        };
+    }
+
+    private static StandardDriver.ResourceSink resourceSink(Path dir)
+    {
+        return (path, data) -> {
+            Path file = dir.resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, data);
+        };
+    }
+
+    private static ClassLoader compileSource(Path dir, String code, MemoryBackend memoryBackend)
+            throws Exception
+    {
+        return compileSource(dir, code, new ModuleCompilerConfig().setPackageName("gen").setMemoryBackend(memoryBackend));
+    }
+
+    private static ClassLoader compileSource(Path dir, String code, ModuleCompilerConfig moduleCompilerConfig)
+            throws Exception
+    {
+        return compileSource(dir, code, moduleCompilerConfig, ImmutableList.of());
+    }
+
+    private static ClassLoader compileSource(Path dir, String code, ModuleCompilerConfig moduleCompilerConfig, List<File> hostSourceFiles)
+            throws Exception
+    {
+        List<File> sourceFiles = new ArrayList<>(hostSourceFiles);
+        new StandardDriver(moduleCompilerConfig, MethodSplitting.DEFAULT_MAX_METHOD_SIZE).compileWast(Name.of("t"), new StringInput(code), sourceSink(dir, sourceFiles), resourceSink(dir));
+        new InProcJavaCompiler().compileJava(ImmutableList.of(new ClassOutputOption(dir.toFile())), sourceFiles);
+        return new URLClassLoader(new URL[] {dir.toUri().toURL()});
+    }
+
+    private static ClassLoader compileBytecode(Path dir, String code)
+            throws Exception
+    {
+        return compileBytecode(dir, code, new MultiModuleCompilerConfig());
+    }
+
+    private static ClassLoader compileBytecode(Path dir, String code, MultiModuleCompilerConfig multiModuleCompilerConfig)
+            throws Exception
+    {
+        return compileBytecode(dir, code, new ModuleCompilerConfig().setPackageName("gen"), multiModuleCompilerConfig, ImmutableList.of());
+    }
+
+    private static ClassLoader compileBytecode(
+            Path dir,
+            String code,
+            ModuleCompilerConfig moduleCompilerConfig,
+            MultiModuleCompilerConfig multiModuleCompilerConfig,
+            List<File> hostSourceFiles)
+            throws Exception
+    {
+        List<File> sourceFiles = new ArrayList<>();
+        List<String> classNames = new ArrayList<>();
+        new StandardDriver(moduleCompilerConfig, multiModuleCompilerConfig, MethodSplitting.DEFAULT_MAX_METHOD_SIZE).compileWastToBytecode(
+                Name.of("t"),
+                new StringInput(code),
+                sourceSink(dir, sourceFiles),
+                (internalName, classFile) -> {
+                    Path path = dir.resolve(internalName + ".class");
+                    Files.createDirectories(path.getParent());
+                    Files.write(path, classFile);
+                    classNames.add(internalName);
+                });
+        assertEquals(1, sourceFiles.size());
+        assertEquals("gen/t$1", classNames.get(0));
+        assertEquals("gen/t", classNames.get(classNames.size() - 1));
+        sourceFiles.addAll(hostSourceFiles);
+        new InProcJavaCompiler().compileJava(ImmutableList.of(new ClassOutputOption(dir.toFile())), sourceFiles);
+        return new URLClassLoader(new URL[] {dir.toUri().toURL()});
+    }
+
+    private static List<String> run(ClassLoader classLoader)
+            throws Exception
+    {
+        List<String> results = new ArrayList<>();
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> logClass = classLoader.loadClass("gen.t$0$VI");
+        Constructor<?> importsCtor = importsClass.getConstructor();
+        importsCtor.setAccessible(true);
+        Object imports = importsCtor.newInstance();
+        Field logField = importsClass.getField("log");
+        logField.setAccessible(true);
+        logField.set(imports, Proxy.newProxyInstance(classLoader, new Class<?>[] {logClass}, (proxy, method, args) -> {
+            results.add("log " + args[0]);
+            return null;
+        }));
+
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(imports);
+        for (String name : new String[] {"loop", "wide", "cmp", "fcmp"}) {
+            Method method = moduleClass.getMethod(name, int.class, int.class);
+            method.setAccessible(true);
+            for (int a : INPUTS) {
+                for (int b : INPUTS) {
+                    if (name.equals("loop") && (a < 0 || a > 10)) {
+                        continue;
+                    }
+                    results.add(name + " " + a + " " + b + " " + method.invoke(instance, a, b));
+                }
+            }
+        }
+        Method sw = moduleClass.getMethod("sw", int.class);
+        sw.setAccessible(true);
+        for (int a : INPUTS) {
+            results.add("sw " + a + " " + sw.invoke(instance, a));
+        }
+        return results;
+    }
+
+    @Test
+    public void testMatchesSourceBackend()
+            throws Exception
+    {
+        Path sourceDir = Files.createTempDirectory("wava-source");
+        Path bytecodeDir = Files.createTempDirectory("wava-bytecode");
+
+        List<String> expected = run(compileSource(sourceDir, CODE, MemoryBackend.DIRECT_BYTE_BUFFER));
+        List<String> actual = run(compileBytecode(bytecodeDir, CODE));
+
+        assertFalse(expected.isEmpty());
+        assertTrue(expected.contains("sw 1 11"));
+        assertEquals(expected, actual);
+        assertFalse(bytecodeDir.resolve("gen/t$1.java").toFile().exists());
+    }
+
+    @Test
+    public void testStaticFunctionClasses()
+            throws Exception
+    {
+        List<String> expected = run(compileSource(Files.createTempDirectory("wava-source"), CODE, MemoryBackend.DIRECT_BYTE_BUFFER));
+        ClassLoader classLoader = compileBytecode(Files.createTempDirectory("wava-bytecode"), CODE, new MultiModuleCompilerConfig().setStaticFunctionClasses(true));
+        assertEquals(expected, run(classLoader));
+        assertEquals(Object.class, classLoader.loadClass("gen.t$1").getSuperclass());
+        assertEquals(classLoader.loadClass("gen.t$0"), classLoader.loadClass("gen.t").getSuperclass());
+        checkGrowMemory(compileBytecode(Files.createTempDirectory("wava-bytecode"), GROW_CODE, new MultiModuleCompilerConfig().setStaticFunctionClasses(true)));
+    }
+
+    @Test
+    public void testCallGraphPartitioning()
+            throws Exception
+    {
+        List<String> expected = run(compileSource(Files.createTempDirectory("wava-source"), CODE, MemoryBackend.DIRECT_BYTE_BUFFER));
+        for (boolean staticFunctionClasses : new boolean[] {false, true}) {
+            MultiModuleCompilerConfig config = new MultiModuleCompilerConfig()
+                    .setNumFunctionsPerClass(2)
+                    .setCallGraphPartitioning(true)
+                    .setStaticFunctionClasses(staticFunctionClasses);
+            assertEquals(expected, run(compileBytecode(Files.createTempDirectory("wava-bytecode"), CODE, config)));
+        }
+    }
+
+    @Test
+    public void testImportStubClass()
+            throws Exception
+    {
+        List<String> expected = run(compileSource(Files.createTempDirectory("wava-source"), CODE, MemoryBackend.DIRECT_BYTE_BUFFER)).stream()
+                .filter(r -> r.startsWith("log ") || r.startsWith("loop "))
+                .collect(toImmutableList());
+        ModuleCompilerConfig config = new ModuleCompilerConfig().setPackageName("gen").setImportStubClass("gen.Host");
+
+        Path sourceDir = Files.createTempDirectory("wava-source");
+        ClassLoader classLoader = compileSource(sourceDir, CODE, config, ImmutableList.of(writeHost(sourceDir)));
+        assertFalse(new String(Files.readAllBytes(sourceDir.resolve("t$0.java"))).contains("protected final VI log"));
+        assertEquals(expected, runLoopWithHost(classLoader));
+
+        Path bytecodeDir = Files.createTempDirectory("wava-bytecode");
+        assertEquals(expected, runLoopWithHost(compileBytecode(bytecodeDir, CODE, config, new MultiModuleCompilerConfig(), ImmutableList.of(writeHost(bytecodeDir)))));
+    }
+
+    private static File writeHost(Path dir)
+            throws Exception
+    {
+        File file = dir.resolve("Host.java").toFile();
+        Files.write(file.toPath(), ("" +
+                "package gen;\n" +
+                "public final class Host implements t$0.Imports.Stub {\n" +
+                "    public final java.util.List<String> results = new java.util.ArrayList<>();\n" +
+                "    public void log(int arg0) { results.add(\"log \" + arg0); }\n" +
+                "}\n").getBytes());
+        return file;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> runLoopWithHost(ClassLoader classLoader)
+            throws Exception
+    {
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> hostClass = classLoader.loadClass("gen.Host");
+        Object host = hostClass.getConstructor().newInstance();
+        Object imports = importsClass.getConstructor(classLoader.loadClass("gen.t$0$Imports$Stub")).newInstance(host);
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(imports);
+        List<String> results = (List<String>) hostClass.getField("results").get(host);
+        Method method = moduleClass.getMethod("loop", int.class, int.class);
+        method.setAccessible(true);
+        for (int a : INPUTS) {
+            for (int b : INPUTS) {
+                if (a >= 0 && a <= 10) {
+                    results.add("loop " + a + " " + b + " " + method.invoke(instance, a, b));
+                }
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void testMethodHandleTables()
+            throws Exception
+    {
+        List<String> expected = run(compileSource(Files.createTempDirectory("wava-source"), CODE, MemoryBackend.DIRECT_BYTE_BUFFER));
+        ModuleCompilerConfig config = new ModuleCompilerConfig().setPackageName("gen").setMethodHandleTables(true);
+
+        Path sourceDir = Files.createTempDirectory("wava-source");
+        assertEquals(expected, run(compileSource(sourceDir, CODE, config)));
+        assertTrue(new String(Files.readAllBytes(sourceDir.resolve("t$0.java"))).contains("java.lang.invoke.MethodHandle[] _iiTable"));
+
+        assertEquals(expected, run(compileBytecode(Files.createTempDirectory("wava-bytecode"), CODE, config, new MultiModuleCompilerConfig(), ImmutableList.of())));
+    }
+
+    @Test
+    public void testMemoryBackends()
+            throws Exception
+    {
+        List<String> expected = run(compileSource(Files.createTempDirectory("wava-source"), CODE, MemoryBackend.DIRECT_BYTE_BUFFER));
+        for (MemoryBackend memoryBackend : MemoryBackend.values()) {
+            assertEquals(memoryBackend.toString(), expected, run(compileSource(Files.createTempDirectory("wava-source"), CODE, memoryBackend)));
+        }
+    }
+
+    private static void checkGrowMemory(ClassLoader classLoader)
+            throws Exception
+    {
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(importsClass.getConstructor().newInstance());
+        List<Integer> events = new ArrayList<>();
+        Field listener = moduleClass.getField("_memoryGrowthListener");
+        listener.setAccessible(true);
+        listener.set(instance, (IntConsumer) events::add);
+
+        Method grow = moduleClass.getMethod("grow", int.class);
+        Method size = moduleClass.getMethod("size");
+        Method peek = moduleClass.getMethod("peek", int.class);
+        Method poke = moduleClass.getMethod("poke", int.class, int.class);
+        for (Method method : new Method[] {grow, size, peek, poke}) {
+            method.setAccessible(true);
+        }
+
+        int top = 16 * Memory.PAGE_SIZE;
+        assertEquals(16, size.invoke(instance));
+        poke.invoke(instance, 100, 42);
+        assertEquals(16, grow.invoke(instance, 1));
+        assertEquals(17, size.invoke(instance));
+        assertEquals(42, peek.invoke(instance, 100));
+        poke.invoke(instance, top, 7);
+        assertEquals(7, peek.invoke(instance, top));
+        assertEquals(-1, grow.invoke(instance, 2));
+        assertEquals(-1, grow.invoke(instance, -1));
+        assertEquals(17, grow.invoke(instance, 0));
+        assertEquals(17, grow.invoke(instance, 1));
+        assertEquals(18, size.invoke(instance));
+        assertEquals(7, peek.invoke(instance, top));
+        assertEquals(ImmutableList.of(17, 18), events);
+    }
+
+    @Test
+    public void testGrowMemory()
+            throws Exception
+    {
+        for (MemoryBackend memoryBackend : MemoryBackend.values()) {
+            checkGrowMemory(compileSource(Files.createTempDirectory("wava-source"), GROW_CODE, memoryBackend));
+        }
+        checkGrowMemory(compileBytecode(Files.createTempDirectory("wava-bytecode"), GROW_CODE));
+    }
+
+    private static List<Integer> peekAll(ClassLoader classLoader)
+            throws Exception
+    {
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(importsClass.getConstructor().newInstance());
+        Method peek = moduleClass.getMethod("peek", int.class);
+        peek.setAccessible(true);
+        List<Integer> results = new ArrayList<>();
+        for (int i = 0; i < 4200; ++i) {
+            results.add((Integer) peek.invoke(instance, i));
+        }
+        return results;
+    }
+
+    @Test
+    public void testMemoryImageResource()
+            throws Exception
+    {
+        List<Integer> expected = peekAll(compileSource(Files.createTempDirectory("wava-source"), DATA_CODE, MemoryBackend.DIRECT_BYTE_BUFFER));
+        assertEquals((Integer) (int) 'h', expected.get(16));
+        assertEquals((Integer) 4, expected.get(4099));
+
+        for (MemoryBackend memoryBackend : MemoryBackend.values()) {
+            Path dir = Files.createTempDirectory("wava-source");
+            ModuleCompilerConfig moduleCompilerConfig = new ModuleCompilerConfig()
+                    .setPackageName("gen")
+                    .setMemoryBackend(memoryBackend)
+                    .setMemoryImageResource(true);
+            assertEquals(memoryBackend.toString(), expected, peekAll(compileSource(dir, DATA_CODE, moduleCompilerConfig)));
+            assertEquals(4096 + 9 - 16, Files.size(dir.resolve("gen/t.memory")));
+            assertFalse(new String(Files.readAllBytes(dir.resolve("t$0.java"))).contains("_memorySegments"));
+        }
+    }
+
+    private static void checkStackOverflow(ClassLoader classLoader)
+            throws Exception
+    {
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(importsClass.getConstructor().newInstance());
+        Method recurse = moduleClass.getMethod("recurse", int.class);
+        recurse.setAccessible(true);
+        assertEquals(55, recurse.invoke(instance, 10));
+        try {
+            recurse.invoke(instance, 100000);
+            fail();
+        }
+        catch (InvocationTargetException e) {
+            assertEquals("gen.t$0$UnreachableException", e.getCause().getClass().getName());
+        }
+    }
+
+    @Test
+    public void testStackChecks()
+            throws Exception
+    {
+        ModuleCompilerConfig config = new ModuleCompilerConfig().setPackageName("gen").setStackChecks(true);
+        checkStackOverflow(compileSource(Files.createTempDirectory("wava-source"), STACK_CODE, config));
+        checkStackOverflow(compileBytecode(Files.createTempDirectory("wava-bytecode"), STACK_CODE, config, new MultiModuleCompilerConfig(), ImmutableList.of()));
+    }
+
+    private static void checkBoundsChecks(ClassLoader classLoader)
+            throws Exception
+    {
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(importsClass.getConstructor().newInstance());
+        Method grow = moduleClass.getMethod("grow", int.class);
+        Method peek = moduleClass.getMethod("peek", int.class);
+        Method sum = moduleClass.getMethod("sum", int.class, int.class);
+        for (Method method : new Method[] {grow, peek, sum}) {
+            method.setAccessible(true);
+        }
+
+        int top = 16 * Memory.PAGE_SIZE;
+        assertEquals(0, peek.invoke(instance, top - 4));
+        assertEquals(0, sum.invoke(instance, top - 4, 3));
+        for (int ptr : new int[] {top - 2, top, -4, Integer.MIN_VALUE}) {
+            for (Object[] args : new Object[][] {{ptr}, {ptr, 3}}) {
+                try {
+                    (args.length == 1 ? peek : sum).invoke(instance, args);
+                    fail();
+                }
+                catch (InvocationTargetException e) {
+                    assertEquals("gen.t$0$MemoryAccessException", e.getCause().getClass().getName());
+                }
+            }
+        }
+        grow.invoke(instance, 1);
+        assertEquals(0, peek.invoke(instance, top));
+    }
+
+    @Test
+    public void testBoundsChecks()
+            throws Exception
+    {
+        for (MemoryBackend memoryBackend : MemoryBackend.values()) {
+            ModuleCompilerConfig config = new ModuleCompilerConfig().setPackageName("gen").setMemoryBackend(memoryBackend).setBoundsChecks(true);
+            checkBoundsChecks(compileSource(Files.createTempDirectory("wava-source"), GROW_CODE, config));
+        }
+        ModuleCompilerConfig config = new ModuleCompilerConfig().setPackageName("gen").setBoundsChecks(true);
+        checkBoundsChecks(compileBytecode(Files.createTempDirectory("wava-bytecode"), GROW_CODE, config, new MultiModuleCompilerConfig(), ImmutableList.of()));
+    }
+
+    private static Throwable invokeTrap(Object instance, Method method, Object... args)
+            throws Exception
+    {
+        try {
+            method.invoke(instance, args);
+        }
+        catch (InvocationTargetException e) {
+            return e.getCause();
+        }
+        throw new AssertionError(method.getName());
+    }
+
+    private static void checkTraps(ClassLoader classLoader, boolean diagnostic)
+            throws Exception
+    {
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(importsClass.getConstructor().newInstance());
+        Method div = moduleClass.getMethod("div", int.class, int.class);
+        Method rem = moduleClass.getMethod("rem", int.class, int.class);
+        Method remu = moduleClass.getMethod("remu", int.class, int.class);
+        Method trunc = moduleClass.getMethod("trunc", int.class);
+        Method fail = moduleClass.getMethod("fail");
+        for (Method method : new Method[] {div, rem, remu, trunc, fail}) {
+            method.setAccessible(true);
+        }
+
+        assertEquals(-3, div.invoke(instance, -7, 2));
+        assertEquals(0, rem.invoke(instance, Integer.MIN_VALUE, -1));
+        assertEquals(1, remu.invoke(instance, -1, 2));
+        assertEquals("gen.t$0$IntegerDivideByZeroException", invokeTrap(instance, div, 7, 0).getClass().getName());
+        assertEquals("gen.t$0$IntegerOverflowException", invokeTrap(instance, div, Integer.MIN_VALUE, -1).getClass().getName());
+        assertEquals("gen.t$0$IntegerDivideByZeroException", invokeTrap(instance, rem, 7, 0).getClass().getName());
+        assertEquals("gen.t$0$IntegerDivideByZeroException", invokeTrap(instance, remu, 7, 0).getClass().getName());
+        assertEquals("gen.t$0$InvalidConversionException", invokeTrap(instance, trunc, 0).getClass().getName());
+        assertEquals("gen.t$0$IntegerOverflowException", invokeTrap(instance, trunc, 1).getClass().getName());
+
+        Throwable first = invokeTrap(instance, fail);
+        Throwable second = invokeTrap(instance, fail);
+        assertEquals("gen.t$0$UnreachableException", first.getClass().getName());
+        if (diagnostic) {
+            assertFalse(first == second);
+            assertTrue(first.getStackTrace().length > 0);
+            assertTrue(first.getMessage(), first.getMessage().contains("fail"));
+        }
+        else {
+            assertSame(first, second);
+            assertEquals(0, first.getStackTrace().length);
+        }
+    }
+
+    @Test
+    public void testTraps()
+            throws Exception
+    {
+        for (boolean diagnostic : new boolean[] {false, true}) {
+            ModuleCompilerConfig config = new ModuleCompilerConfig().setPackageName("gen").setDiagnosticTraps(diagnostic);
+            checkTraps(compileSource(Files.createTempDirectory("wava-source"), TRAP_CODE, config), diagnostic);
+            checkTraps(compileBytecode(Files.createTempDirectory("wava-bytecode"), TRAP_CODE, config, new MultiModuleCompilerConfig(), ImmutableList.of()), diagnostic);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.compile.module;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.wrmsr.wava.util.collect.MoreCollectors.toImmutableList;
+import static org.junit.Assert.assertEquals;
+
+public class TestFunctionPartitioning
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (export \"main\" $main)\n" +
+            "  (func $main (param $0 i32) (result i32) (i32.add (call $c (get_local $0)) (call $a (get_local $0))))\n" +
+            "  (func $c (param $0 i32) (result i32) (get_local $0))\n" +
+            "  (func $d (param $0 i32) (result i32) (get_local $0))\n" +
+            "  (func $a (param $0 i32) (result i32) (call $b (get_local $0)))\n" +
+            "  (func $e (param $0 i32) (result i32) (get_local $0))\n" +
+            "  (func $b (param $0 i32) (result i32) (call $a (get_local $0)))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    private static List<List<String>> names(List<List<Function>> chunks)
+    {
+        return chunks.stream()
+                .map(c -> c.stream().map(f -> f.getName().get()).collect(toImmutableList()))
+                .collect(toImmutableList());
+    }
+
+    @Test
+    public void testPartitionByCallGraph()
+            throws Throwable
+    {
+        assertEquals(
+                ImmutableList.of(ImmutableList.of("main", "c"), ImmutableList.of("d", "a"), ImmutableList.of("e", "b")),
+                names(FunctionPartitioning.partitionInDeclarationOrder(parse(), 2)));
+        assertEquals(
+                ImmutableList.of(ImmutableList.of("main", "c"), ImmutableList.of("a", "b"), ImmutableList.of("d", "e")),
+                names(FunctionPartitioning.partitionByCallGraph(parse(), 2, ImmutableMap.of())));
+        assertEquals(
+                ImmutableList.of(ImmutableList.of("main", "c"), ImmutableList.of("a", "b", "d"), ImmutableList.of("e")),
+                names(FunctionPartitioning.partitionByCallGraph(parse(), 3, ImmutableMap.of())));
+    }
+
+    @Test
+    public void testPartitionByProfile()
+            throws Throwable
+    {
+        Map<Name, Long> profile = FunctionPartitioning.parseProfile(ImmutableList.of("# calls", "b 100", "a 10", "", "main 1"));
+        assertEquals(ImmutableMap.of(Name.of("b"), 100L, Name.of("a"), 10L, Name.of("main"), 1L), profile);
+        assertEquals(
+                ImmutableList.of(ImmutableList.of("a", "b"), ImmutableList.of("main"), ImmutableList.of("c", "d"), ImmutableList.of("e")),
+                names(FunctionPartitioning.partitionByCallGraph(parse(), 2, profile)));
+    }
+}
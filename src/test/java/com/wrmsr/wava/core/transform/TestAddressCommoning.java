@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.transform.AddressCommoning;
+import com.wrmsr.wava.util.NameGenerator;
+import com.wrmsr.wava.util.temps.TempManager;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAddressCommoning
+{
+    private static Node address(int offset)
+    {
+        return new Binary(
+                BinaryOp.Add,
+                Type.I32,
+                new Binary(BinaryOp.Add, Type.I32, new GetLocal(Index.of(0), Type.I32), new Binary(BinaryOp.Shl, Type.I32, new GetLocal(Index.of(1), Type.I32), new Const(Literal.of(2)))),
+                new Const(Literal.of(offset)));
+    }
+
+    private static Node load(int offset)
+    {
+        return new Load(Type.I32, 4, false, 0, 4, address(offset));
+    }
+
+    @Test
+    public void testCommonAddresses()
+            throws Throwable
+    {
+        Node root = new Block(ImmutableList.of(
+                new Store(Type.I32, 4, 0, 4, address(8), load(4)),
+                new Store(Type.I32, 4, 0, 4, address(12), load(0)),
+                new SetLocal(Index.of(1), Type.I32, load(16)),
+                new Store(Type.I32, 4, 0, 4, address(4), load(0))));
+        TempManager tm = new TempManager(new NameGenerator(ImmutableSet.of(Name.of("a"), Name.of("b")), "_temp$"), Index.of(2), false);
+        Node ret = AddressCommoning.commonAddresses(root, tm);
+
+        assertEquals(2, tm.getTempList().size());
+        assertEquals(6, ret.getChildren().size());
+        assertEquals(SetLocal.class, ret.getChildren().get(0).getClass());
+        assertEquals(SetLocal.class, ret.getChildren().get(4).getClass());
+        assertEquals(1, Analyses.findNodes(ret.getChildren().get(3), Load.class).stream().filter(l -> l.getPtr() instanceof Binary && l.getOffset() == 16).count());
+        assertEquals(6, Analyses.findNodes(ret, Load.class).stream().filter(l -> l.getPtr() instanceof GetLocal).count() +
+                Analyses.findNodes(ret, Store.class).stream().filter(s -> s.getPtr() instanceof GetLocal).count());
+    }
+}
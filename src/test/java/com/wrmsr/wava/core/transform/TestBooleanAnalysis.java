@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.BooleanAnalysis;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Locals;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBooleanAnalysis
+{
+    private static final Locals LOCALS = Locals.of(ImmutableList.of(
+            ImmutablePair.of(Name.of("a"), Type.I32),
+            ImmutablePair.of(Name.of("b"), Type.I32),
+            ImmutablePair.of(Name.of("c"), Type.I32)));
+
+    @Test
+    public void testConditionOnlyLocal()
+            throws Throwable
+    {
+        Function function = new Function(
+                Name.of("f"),
+                Type.I32,
+                1,
+                LOCALS,
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(1), Type.I32, new Binary(
+                                        BinaryOp.And,
+                                        Type.I32,
+                                        new Binary(BinaryOp.LtS, Type.I32, new GetLocal(Index.of(0), Type.I32), new Const(Literal.of(4))),
+                                        new Binary(BinaryOp.Ne, Type.I32, new GetLocal(Index.of(0), Type.I32), new Const(Literal.of(1))))),
+                                new If(
+                                        new GetLocal(Index.of(1), Type.I32),
+                                        new Return(new Const(Literal.of(1))),
+                                        new Nop()),
+                                new SetLocal(Index.of(2), Type.I32, new Binary(BinaryOp.Eq, Type.I32, new GetLocal(Index.of(0), Type.I32), new Const(Literal.of(0)))),
+                                new Return(new GetLocal(Index.of(2), Type.I32)))));
+        BooleanAnalysis ba = BooleanAnalysis.analyze(function);
+        assertTrue(ba.isBooleanLocal(Index.of(1)));
+        assertFalse(ba.isBooleanLocal(Index.of(2)));
+        assertFalse(ba.isBooleanLocal(Index.of(0)));
+    }
+
+    @Test
+    public void testNonBooleanAssignmentDisqualifies()
+            throws Throwable
+    {
+        Function function = new Function(
+                Name.of("f"),
+                Type.I32,
+                1,
+                LOCALS,
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(1), Type.I32, new Const(Literal.of(1))),
+                                new SetLocal(Index.of(2), Type.I32, new Const(Literal.of(2))),
+                                new If(
+                                        new GetLocal(Index.of(1), Type.I32),
+                                        new SetLocal(Index.of(1), Type.I32, new GetLocal(Index.of(2), Type.I32)),
+                                        new Nop()),
+                                new If(
+                                        new GetLocal(Index.of(1), Type.I32),
+                                        new Return(new Const(Literal.of(1))),
+                                        new Nop()),
+                                new Return(new Const(Literal.of(0))))));
+        BooleanAnalysis ba = BooleanAnalysis.analyze(function);
+        assertFalse(ba.isBooleanLocal(Index.of(1)));
+        assertFalse(ba.isBooleanLocal(Index.of(2)));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.op.HostOp;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Memory;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.transform.BoundsChecking;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBoundsChecking
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (func $constant (result i32)\n" +
+            "    (i32.add (i32.load (i32.const 65532)) (i32.load (i32.const 65534))))\n" +
+            "  (func $fields (param $0 i32) (result i32)\n" +
+            "    (i32.store offset=4 (get_local $0) (i32.add (i32.load offset=8 (get_local $0)) (i32.load (get_local $0))))\n" +
+            "    (set_local $0 (i32.add (get_local $0) (i32.const 16)))\n" +
+            "    (i32.load (get_local $0)))\n" +
+            "  (func $branches (param $0 i32) (result i32)\n" +
+            "    (if (get_local $0) (i32.store offset=8 (get_local $0) (i32.const 1)))\n" +
+            "    (loop $l (br_if $l (i32.load (get_local $0))))\n" +
+            "    (i32.load offset=4 (get_local $0)))\n" +
+            "  (func $effects (param $0 i32) (result i32)\n" +
+            "    (i32.store offset=4 (get_local $0) (call $constant)))\n" +
+            "  (func $reassigned (param $0 i32) (param $1 i32) (result i32)\n" +
+            "    (i32.store (get_local $0) (i32.add (set_local $0 (get_local $1)) (i32.load (get_local $0)))))\n" +
+            "  (func $masked (param $0 i32) (result i32)\n" +
+            "    (i32.load (i32.and (get_local $0) (i32.const 1020))))\n" +
+            "  (func $invariant (param $0 i32) (param $1 i32) (result i32) (local $2 i32)\n" +
+            "    (loop $done $top\n" +
+            "      (set_local $2 (i32.add (get_local $2) (i32.load offset=4 (get_local $0))))\n" +
+            "      (br_if $top (i32.load (get_local $1))))\n" +
+            "    (get_local $2))\n" +
+            "  (func $induction (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (loop $done $top\n" +
+            "      (set_local $1 (i32.add (get_local $1) (i32.load (get_local $0))))\n" +
+            "      (set_local $0 (i32.add (get_local $0) (i32.const 4)))\n" +
+            "      (br_if $top (get_local $0)))\n" +
+            "    (get_local $1))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    private static int countChecks(Module module, String name)
+    {
+        return countChecks(BoundsChecking.insertBoundsChecks(module.getFunctions().get(Name.of(name)), Memory.PAGE_SIZE).getBody());
+    }
+
+    private static int countChecks(Node node)
+    {
+        return (int) Analyses.findNodes(node, Call.class).stream()
+                .filter(c -> c.getTarget() instanceof Call.HostTarget && ((Call.HostTarget) c.getTarget()).getOp() == HostOp.CheckAddress)
+                .count();
+    }
+
+    @Test
+    public void testInsertBoundsChecks()
+            throws Throwable
+    {
+        Module module = parse();
+        assertEquals(1, countChecks(module, "constant"));
+        assertEquals(2, countChecks(module, "fields"));
+        assertEquals(3, countChecks(module, "branches"));
+        assertEquals(1, countChecks(module, "effects"));
+        assertEquals(2, countChecks(module, "reassigned"));
+        assertEquals(0, countChecks(module, "masked"));
+    }
+
+    @Test
+    public void testCheckStoreAfterValue()
+            throws Throwable
+    {
+        Module module = parse();
+        Function function = module.getFunctions().get(Name.of("effects"));
+        Function checked = BoundsChecking.insertBoundsChecks(function, Memory.PAGE_SIZE);
+        assertEquals(function.getLocals().getList().size() + 2, checked.getLocals().getList().size());
+
+        List<Node> nodes = Analyses.linearize(checked.getBody());
+        Call call = Analyses.findNodes(checked.getBody(), Call.class).stream()
+                .filter(c -> c.getTarget() instanceof Call.DirectTarget)
+                .findFirst()
+                .get();
+        Call checkAddress = Analyses.findNodes(checked.getBody(), Call.class).stream()
+                .filter(c -> c.getTarget() instanceof Call.HostTarget)
+                .findFirst()
+                .get();
+        assertTrue(nodes.indexOf(call) < nodes.indexOf(checkAddress));
+    }
+
+    @Test
+    public void testHoistLoopInvariantChecks()
+            throws Throwable
+    {
+        Module module = parse();
+
+        Function invariant = BoundsChecking.insertBoundsChecks(module.getFunctions().get(Name.of("invariant")), Memory.PAGE_SIZE);
+        assertEquals(2, countChecks(invariant.getBody()));
+        assertEquals(0, countChecks(Analyses.findNodes(invariant.getBody(), Loop.class).iterator().next()));
+
+        Function induction = BoundsChecking.insertBoundsChecks(module.getFunctions().get(Name.of("induction")), Memory.PAGE_SIZE);
+        assertEquals(1, countChecks(Analyses.findNodes(induction.getBody(), Loop.class).iterator().next()));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.analyze.CallGraph;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.transform.DeadFunctionElimination;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestDeadFunctionElimination
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (type $ii (func (param i32) (result i32)))\n" +
+            "  (table $viaTable)\n" +
+            "  (export \"main\" $main)\n" +
+            "  (func $main (param $0 i32) (result i32) (i32.add (call $helper (get_local $0)) (call_indirect $ii (get_local $0) (get_local $0))))\n" +
+            "  (func $helper (param $0 i32) (result i32) (get_local $0))\n" +
+            "  (func $viaTable (param $0 i32) (result i32) (call $fromTable (get_local $0)))\n" +
+            "  (func $fromTable (param $0 i32) (result i32) (get_local $0))\n" +
+            "  (func $dead (param $0 i32) (result i32) (call $deader (get_local $0)))\n" +
+            "  (func $deader (param $0 i32) (result i32) (call $dead (get_local $0)))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    @Test
+    public void testCallGraph()
+            throws Throwable
+    {
+        CallGraph cg = CallGraph.analyze(parse());
+        assertEquals(ImmutableSet.of(Name.of("helper")), cg.get(Name.of("main")).getDirectCallees());
+        assertEquals(ImmutableSet.of(Name.of("viaTable")), cg.get(Name.of("main")).getIndirectCallees());
+        assertEquals(ImmutableSet.of(Name.of("main")), cg.getCallers(Name.of("viaTable")));
+    }
+
+    @Test
+    public void testEliminateDeadFunctions()
+            throws Throwable
+    {
+        Module module = DeadFunctionElimination.eliminateDeadFunctions(parse(), ImmutableSet.of());
+        assertEquals(
+                ImmutableSet.of(Name.of("main"), Name.of("helper"), Name.of("viaTable"), Name.of("fromTable")),
+                module.getFunctions().keySet());
+
+        module = DeadFunctionElimination.eliminateDeadFunctions(parse(), ImmutableSet.of(Name.of("dead")));
+        assertEquals(6, module.getFunctions().size());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.CallIndirect;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Signature;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.transform.Devirtualization;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDevirtualization
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (type $i (func (result i32)))\n" +
+            "  (type $ii (func (param i32) (result i32)))\n" +
+            "  (type $iii (func (param i32) (param i32) (result i32)))\n" +
+            "  (table $one $inc $dbl $inc $sub)\n" +
+            "  (export \"main\" $main)\n" +
+            "  (func $main (param $0 i32) (result i32)\n" +
+            "    (i32.add (call_indirect $i (get_local $0)) (call_indirect $ii (get_local $0) (get_local $0))))\n" +
+            "  (func $guarded (param $0 i32) (result i32)\n" +
+            "    (call_indirect $iii (get_local $0) (i32.load (get_local $0)) (call $one)))\n" +
+            "  (func $one (result i32) (i32.const 1))\n" +
+            "  (func $inc (param $0 i32) (result i32) (i32.add (get_local $0) (i32.const 1)))\n" +
+            "  (func $dbl (param $0 i32) (result i32) (i32.mul (get_local $0) (i32.const 2)))\n" +
+            "  (func $sub (param $0 i32) (param $1 i32) (result i32) (i32.sub (get_local $0) (get_local $1)))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    @Test
+    public void testDevirtualizeCalls()
+            throws Throwable
+    {
+        Module module = parse();
+        assertEquals(
+                ImmutableList.of(1, 3),
+                Devirtualization.getSignatureSlots(module, Signature.of(Type.I32, Type.I32)).get(Name.of("inc")));
+
+        Module devirtualized = Devirtualization.devirtualizeCalls(module, Devirtualization.DEFAULT_MAX_SWITCH_SLOTS);
+        Node body = devirtualized.getFunctions().get(Name.of("main")).getBody();
+        assertEquals(0, Analyses.findNodes(body, CallIndirect.class).size());
+        assertEquals(3, Analyses.findNodes(body, Call.class).size());
+        assertEquals(1, Analyses.findNodes(body, If.class).size());
+        assertEquals(1, Analyses.findNodes(body, Switch.class).size());
+
+        devirtualized = Devirtualization.devirtualizeCalls(module, 2);
+        assertEquals(1, Analyses.findNodes(devirtualized.getFunctions().get(Name.of("main")).getBody(), CallIndirect.class).size());
+
+        // The operands of a single target call are evaluated ahead of its guard, as they are ahead of a switch.
+        devirtualized = Devirtualization.devirtualizeCalls(module, Devirtualization.DEFAULT_MAX_SWITCH_SLOTS);
+        If guard = Analyses.findNodes(devirtualized.getFunctions().get(Name.of("guarded")).getBody(), If.class).iterator().next();
+        Call call = Analyses.findNodes(guard, Call.class).iterator().next();
+        assertTrue(call.getOperands().stream().allMatch(GetLocal.class::isInstance));
+    }
+}
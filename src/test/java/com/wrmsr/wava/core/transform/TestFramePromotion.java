@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.transform.FramePromotion;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestFramePromotion
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (import $sink \"env\" \"sink\" (param i32))\n" +
+            "  (func $local (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=8 (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 16))) (get_local $0))\n" +
+            "    (i64.store (get_local $1) (i64.const 3))\n" +
+            "    (i32.store (i32.add (get_local $1) (i32.const 12)) (i32.load offset=4 (i32.add (get_local $0) (i32.const 8))))\n" +
+            "    (i32.add (i32.load offset=8 (get_local $1)) (i32.wrap/i64 (i64.load (get_local $1)))))\n" +
+            "  (func $escaping (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=8 (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 16))) (get_local $0))\n" +
+            "    (call_import $sink (get_local $1))\n" +
+            "    (i32.load offset=8 (get_local $1)))\n" +
+            "  (func $aliased (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=4 (i32.const 0) (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 16))))\n" +
+            "    (i32.store offset=8 (get_local $1) (get_local $0))\n" +
+            "    (set_local $0 (i32.load offset=8 (i32.load offset=4 (i32.const 0))))\n" +
+            "    (i32.store offset=4 (i32.const 0) (i32.add (get_local $1) (i32.const 16)))\n" +
+            "    (i32.add (get_local $0) (i32.load offset=8 (get_local $1))))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    @Test
+    public void testPromoteFrameSlots()
+            throws Throwable
+    {
+        Module module = parse();
+
+        Function function = FramePromotion.promoteFrameSlots(module.getFunctions().get(Name.of("local")), 4);
+        assertEquals(5, function.getLocals().getList().size());
+        assertEquals(0, Analyses.findNodes(function.getBody(), Store.class).size());
+        assertEquals(2, Analyses.findNodes(function.getBody(), Load.class).size());
+
+        // Accesses off other bases keep their displacement, which a bounds check must see wrap as it would at runtime.
+        assertEquals(1, Analyses.findNodes(function.getBody(), Load.class).stream()
+                .filter(l -> l.getOffset() == 4 && l.getPtr() instanceof Binary)
+                .count());
+
+        Function escaping = module.getFunctions().get(Name.of("escaping"));
+        assertSame(escaping, FramePromotion.promoteFrameSlots(escaping, 4));
+
+        Function aliased = module.getFunctions().get(Name.of("aliased"));
+        assertSame(aliased, FramePromotion.promoteFrameSlots(aliased, 4));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Call;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.transform.Inlining;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestInlining
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (export \"main\" $main)\n" +
+            "  (func $main (param $0 i32) (result i32) (i32.add (call $square (get_local $0)) (call $square (call $rec (get_local $0)))))\n" +
+            "  (func $square (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (if (i32.lt_s (get_local $0) (i32.const 0)) (return (get_local $1)))\n" +
+            "    (i32.mul (get_local $0) (get_local $0)))\n" +
+            "  (func $rec (param $0 i32) (result i32) (call $rec (get_local $0)))\n" +
+            "  (func $seven (result i32) (i32.const 7))\n" +
+            "  (func $eight (result i32) (i32.add (call $seven) (i32.const 1)))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    @Test
+    public void testInlineSmallFunctions()
+            throws Throwable
+    {
+        Module module = parse();
+        assertEquals(ImmutableSet.of(Name.of("main"), Name.of("square"), Name.of("seven"), Name.of("eight")), Inlining.getInlineableFunctions(module, Inlining.DEFAULT_MAX_CALLEE_SIZE));
+
+        Function main = Inlining.inlineSmallFunctions(module, Inlining.DEFAULT_MAX_CALLEE_SIZE).getFunctions().get(Name.of("main"));
+        assertEquals(1, Analyses.findNodes(main.getBody(), Call.class).size());
+        assertTrue(Analyses.findNodes(main.getBody(), Return.class).isEmpty());
+        assertEquals(5, main.getLocals().getList().size());
+    }
+
+    @Test
+    public void testInlineWithoutLocals()
+            throws Throwable
+    {
+        Module module = parse();
+        Function eight = Inlining.inlineSmallFunctions(module, Inlining.DEFAULT_MAX_CALLEE_SIZE).getFunctions().get(Name.of("eight"));
+        assertTrue(Analyses.findNodes(eight.getBody(), Call.class).isEmpty());
+        assertEquals(0, eight.getLocals().getList().size());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.BreakTable;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.driver.StandardFunctionProcessor;
+import com.wrmsr.wava.transform.JumpThreading;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestJumpThreading
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (func $sw (param $0 i32) (result i32)\n" +
+            "    (block $d (block $c2 (block $c1 (block $c0\n" +
+            "      (br_table $c0 $c1 $c2 $c1 $d (get_local $0)))\n" +
+            "      (return (i32.const 10)))\n" +
+            "      (return (i32.const 11)))\n" +
+            "      (return (i32.const 12)))\n" +
+            "    (i32.const 13))\n" +
+            ")";
+
+    private static Function parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create())
+                .getFunctions().get(Name.of("sw"));
+    }
+
+    @Test
+    public void testThreadJumps()
+            throws Throwable
+    {
+        Node body = JumpThreading.threadJumps(parse().getBody());
+        assertTrue(Analyses.findNodes(body, BreakTable.class).isEmpty());
+        Switch switchNode = Analyses.findNodes(body, Switch.class).iterator().next();
+        assertEquals(4, switchNode.getEntries().size());
+        assertTrue(switchNode.getEntries().stream().limit(3).allMatch(e -> e.getBody() instanceof Return));
+    }
+
+    @Test
+    public void testProcessedSwitch()
+            throws Throwable
+    {
+        Node body = new StandardFunctionProcessor().processFunction(parse()).getBody();
+        assertTrue(Analyses.findNodes(body, Label.class).isEmpty());
+        assertEquals(1, Analyses.findNodes(body, Switch.class).size());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.transform.LocalCoalescing;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLocalCoalescing
+{
+    private static Function function(int argCount, Type[] types, Node body)
+    {
+        ImmutableList.Builder<Pair<Name, Type>> locals = ImmutableList.builder();
+        for (int i = 0; i < types.length; ++i) {
+            locals.add(ImmutablePair.of(Name.of("l" + i), types[i]));
+        }
+        return new Function(Name.of("f"), Type.I32, argCount, Locals.of(locals.build()), body);
+    }
+
+    @Test
+    public void testDisjointTempsShareSlot()
+            throws Throwable
+    {
+        Function in = function(
+                1,
+                new Type[] {Type.I32, Type.I32, Type.I32},
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(1), Type.I32, new GetLocal(Index.of(0), Type.I32)),
+                                new SetLocal(Index.of(2), Type.I32, new Binary(BinaryOp.Add, Type.I32, new GetLocal(Index.of(1), Type.I32), new Const(Literal.of(1)))),
+                                new Return(new GetLocal(Index.of(2), Type.I32)))));
+        Function out = LocalCoalescing.coalesceLocals(in);
+        assertEquals(1, out.getLocals().getList().size());
+    }
+
+    @Test
+    public void testTypesAreNotMixed()
+            throws Throwable
+    {
+        Function in = function(
+                0,
+                new Type[] {Type.I32, Type.I64},
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(0), Type.I32, new Const(Literal.of(1))),
+                                new SetLocal(Index.of(1), Type.I64, new Const(Literal.of(2L))),
+                                new Return(new Const(Literal.of(0))))));
+        Function out = LocalCoalescing.coalesceLocals(in);
+        assertEquals(2, out.getLocals().getList().size());
+    }
+
+    @Test
+    public void testLoopCarriedLocalsInterfere()
+            throws Throwable
+    {
+        Function in = function(
+                0,
+                new Type[] {Type.I32, Type.I32},
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(0), Type.I32, new Const(Literal.of(0))),
+                                new Loop(
+                                        Name.of("loop"),
+                                        new Block(
+                                                ImmutableList.of(
+                                                        new SetLocal(Index.of(1), Type.I32, new Const(Literal.of(1))),
+                                                        new SetLocal(Index.of(0), Type.I32, new Binary(BinaryOp.Add, Type.I32, new GetLocal(Index.of(0), Type.I32), new GetLocal(Index.of(1), Type.I32)))))),
+                                new Return(new Const(Literal.of(0))))));
+        Function out = LocalCoalescing.coalesceLocals(in);
+        assertEquals(2, out.getLocals().getList().size());
+    }
+}
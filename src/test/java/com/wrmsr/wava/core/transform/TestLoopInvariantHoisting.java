@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Store;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.transform.LoopInvariantHoisting;
+import com.wrmsr.wava.util.NameGenerator;
+import com.wrmsr.wava.util.temps.TempManager;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLoopInvariantHoisting
+{
+    private static TempManager newTempManager()
+    {
+        return new TempManager(new NameGenerator(ImmutableSet.of(), "_temp$"), Index.of(2), false);
+    }
+
+    private static Node newLoop(Node invariant, Node extra)
+    {
+        return new Loop(
+                Name.of("loop"),
+                new Block(
+                        ImmutableList.of(
+                                extra,
+                                new SetLocal(Index.of(1), Type.I32, new Binary(BinaryOp.Add, Type.I32, new GetLocal(Index.of(1), Type.I32), invariant)),
+                                new Break(Name.of("loop"), new Nop()))));
+    }
+
+    @Test
+    public void testHoistInvariant()
+            throws Throwable
+    {
+        Node invariant = new Binary(BinaryOp.Mul, Type.I32, new GetLocal(Index.of(0), Type.I32), new Const(Literal.of(3)));
+        TempManager tm = newTempManager();
+        Node out = LoopInvariantHoisting.hoistLoopInvariants(newLoop(invariant, new Nop()), tm, 0);
+        assertEquals(1, tm.getTempList().size());
+        assertEquals(
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(2), Type.I32, invariant),
+                                newLoop(new GetLocal(Index.of(2), Type.I32), new Nop()))),
+                out);
+    }
+
+    @Test
+    public void testLoadsStayBelowStores()
+            throws Throwable
+    {
+        Node load = new Load(Type.I32, 4, false, 0, 4, new Const(Literal.of(8)));
+        Node store = new Store(Type.I32, 4, 0, 4, new Const(Literal.of(8)), new Const(Literal.of(1)));
+        TempManager tm = newTempManager();
+        Node in = newLoop(load, store);
+        assertEquals(in, LoopInvariantHoisting.hoistLoopInvariants(in, tm, 65536));
+        assertEquals(
+                new Block(
+                        ImmutableList.of(
+                                new SetLocal(Index.of(2), Type.I32, load),
+                                newLoop(new GetLocal(Index.of(2), Type.I32), new Nop()))),
+                LoopInvariantHoisting.hoistLoopInvariants(newLoop(load, new Nop()), tm, 65536));
+    }
+
+    @Test
+    public void testTrappingOpsStay()
+            throws Throwable
+    {
+        Node in = newLoop(new Binary(BinaryOp.DivS, Type.I32, new GetLocal(Index.of(0), Type.I32), new Const(Literal.of(3))), new Nop());
+        assertEquals(in, LoopInvariantHoisting.hoistLoopInvariants(in, newTempManager(), 0));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.driver.StandardDriver;
+import com.wrmsr.wava.driver.StandardFunctionProcessor;
+import com.wrmsr.wava.java.javac.InProcJavaCompiler;
+import com.wrmsr.wava.java.javac.option.ClassOutputOption;
+import com.wrmsr.wava.java.lang.tree.declaration.JType;
+import com.wrmsr.wava.transform.MethodSplitting;
+import com.wrmsr.wava.transform.Outlining;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMethodSplitting
+{
+    private static final String CODE = createCode();
+
+    private static final int[] INPUTS = {0, 1, 2, 7, 40, 1005, 1029};
+
+    private static String createCode()
+    {
+        StringBuilder code = new StringBuilder();
+        code.append("(module (memory 1)\n");
+        code.append("  (export \"big\" $big)\n");
+        code.append("  (func $big (param $0 i32) (result i32) (local $1 i32) (local $2 f64)\n");
+        code.append("    (loop $done $top\n");
+        code.append("      (br_if $done (i32.ge_s (get_local $1) (get_local $0)))\n");
+        for (int i = 0; i < 30; ++i) {
+            code.append(String.format("      (block $b%d (br_if $b%d (i32.and (get_local $1) (i32.const %d)))\n", i, i, i + 1));
+            code.append(String.format("        (i32.store (i32.const %d) (i32.add (i32.load (i32.const %d)) (get_local $1)))\n", 64 + 4 * (i % 8), 64 + 4 * ((i + 1) % 8)));
+            code.append(String.format("        (set_local $2 (f64.add (get_local $2) (f64.const %d)))\n", i));
+            code.append(String.format("        (if (i32.eq (get_local $1) (i32.const %d)) (return (i32.const %d))))\n", 1000 + i, i));
+        }
+        code.append("      (set_local $1 (i32.add (get_local $1) (i32.const 1)))\n");
+        code.append("      (br $top))\n");
+        code.append("    (i32.add (i32.load (i32.const 64)) (i32.trunc_s/f64 (get_local $2))))\n");
+        code.append(")");
+        return code.toString();
+    }
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    private static List<String> run(int maxMethodSize)
+            throws Exception
+    {
+        Path dir = Files.createTempDirectory("wava-split");
+        List<File> sourceFiles = new ArrayList<>();
+        new StandardDriver(new ModuleCompilerConfig().setPackageName("gen"), maxMethodSize).compileWast(Name.of("t"), new StringInput(CODE), (jcompilationUnit, renderer) -> {
+            JType jtype = (JType) jcompilationUnit.getBody();
+            StringWriter output = new StringWriter();
+            renderer.accept(output);
+            File file = dir.resolve(jtype.getName().get() + ".java").toFile();
+            Files.write(file.toPath(), output.toString().getBytes());
+            sourceFiles.add(file);
+        });
+        new InProcJavaCompiler().compileJava(ImmutableList.of(new ClassOutputOption(dir.toFile())), sourceFiles);
+        ClassLoader classLoader = new URLClassLoader(new URL[] {dir.toUri().toURL()});
+
+        Class<?> importsClass = classLoader.loadClass("gen.t$0$Imports");
+        Class<?> moduleClass = classLoader.loadClass("gen.t");
+        Object instance = moduleClass.getConstructor(importsClass).newInstance(importsClass.getConstructor().newInstance());
+        Method big = moduleClass.getMethod("big", int.class);
+        big.setAccessible(true);
+        List<String> results = new ArrayList<>();
+        for (int input : INPUTS) {
+            results.add(input + " " + big.invoke(instance, input));
+        }
+        return results;
+    }
+
+    @Test
+    public void testSplitFunctions()
+            throws Throwable
+    {
+        Module module = parse();
+        int size = MethodSplitting.estimateBytecodeSize(module.getFunctions().get(Name.of("big")).getBody());
+        assertEquals(1, MethodSplitting.getOversizedFunctions(module, size / 2).size());
+
+        Module split = MethodSplitting.splitFunctions(module, size / 2);
+        assertTrue(split.getFunctions().size() > 1);
+        assertTrue(MethodSplitting.getOversizedFunctions(split, size / 2).isEmpty());
+        for (Function function : split.getFunctions().values()) {
+            new StandardFunctionProcessor().processFunction(function);
+        }
+        // The f64 accumulator is live out of the outlined loop body and spills as a double rather than as raw bits.
+        assertEquals(ImmutableMap.of(Type.I64, 1, Type.F64, 1), Outlining.getSpillSlotCounts(split));
+
+        assertSame(module, MethodSplitting.splitFunctions(module, size));
+    }
+
+    @Test
+    public void testSplitMatchesUnsplit()
+            throws Throwable
+    {
+        Module module = parse();
+        int size = MethodSplitting.estimateBytecodeSize(module.getFunctions().get(Name.of("big")).getBody());
+
+        assertEquals(run(MethodSplitting.DEFAULT_MAX_METHOD_SIZE), run(size / 2));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.analyze.RangeAnalysis;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Binary;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.Load;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Unary;
+import com.wrmsr.wava.core.op.BinaryOp;
+import com.wrmsr.wava.core.op.UnaryOp;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.transform.RangeNarrowing;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRangeAnalysis
+{
+    private static final Index ARG = Index.of(0);
+    private static final Index BYTE = Index.of(1);
+    private static final Index SHIFTED = Index.of(2);
+
+    private static Node body()
+    {
+        return new Block(ImmutableList.of(
+                new SetLocal(BYTE, Type.I32, new Binary(BinaryOp.And, Type.I32, new Load(Type.I32, 1, false, 0, 1, new GetLocal(ARG, Type.I32)), new Const(Literal.of(255)))),
+                new SetLocal(SHIFTED, Type.I32, new Binary(BinaryOp.ShrU, Type.I32, new GetLocal(ARG, Type.I32), new Const(Literal.of(1)))),
+                new Binary(
+                        BinaryOp.Add,
+                        Type.I32,
+                        new Binary(BinaryOp.LtU, Type.I32, new GetLocal(BYTE, Type.I32), new GetLocal(SHIFTED, Type.I32)),
+                        new Binary(BinaryOp.RemU, Type.I32, new GetLocal(ARG, Type.I32), new Const(Literal.of(10)))),
+                new Unary(UnaryOp.ExtendUInt32, Type.I64, new GetLocal(SHIFTED, Type.I32))));
+    }
+
+    @Test
+    public void testRangeAnalysis()
+            throws Throwable
+    {
+        RangeAnalysis ra = RangeAnalysis.analyze(body(), ImmutableSet.of(ARG));
+        assertEquals(new RangeAnalysis.Range(Type.I32, 0, 255), ra.getLocalRanges().get(BYTE));
+        assertEquals(new RangeAnalysis.Range(Type.I32, 0, Integer.MAX_VALUE), ra.getLocalRanges().get(SHIFTED));
+    }
+
+    @Test
+    public void testNarrowRanges()
+            throws Throwable
+    {
+        Node ret = RangeNarrowing.narrowRanges(body(), ImmutableSet.of(ARG));
+        assertEquals(Load.class, ((SetLocal) ret.getChildren().get(0)).getValue().getClass());
+        Binary add = (Binary) ret.getChildren().get(2);
+        assertEquals(BinaryOp.LtS, ((Binary) add.getLeft()).getOp());
+        assertEquals(BinaryOp.RemU, ((Binary) add.getRight()).getOp());
+        assertEquals(UnaryOp.ExtendSInt32, ((Unary) ret.getChildren().get(3)).getOp());
+        assertFalse(Analyses.findNodes(ret, Binary.class).stream().anyMatch(b -> b.getOp() == BinaryOp.And));
+        assertTrue(RangeAnalysis.analyze(ret, ImmutableSet.of(ARG)).isNonNegative(ret.getChildren().get(3)));
+    }
+
+    @Test
+    public void testNarrowPowerOfTwoOperands()
+            throws Throwable
+    {
+        Node body = new Block(ImmutableList.of(
+                new SetLocal(BYTE, Type.I32, new Binary(BinaryOp.And, Type.I32, new GetLocal(ARG, Type.I32), new Const(Literal.of(255)))),
+                new Binary(BinaryOp.LtU, Type.I32, new GetLocal(BYTE, Type.I32), new Const(Literal.of(256))),
+                new Binary(BinaryOp.DivU, Type.I32, new GetLocal(BYTE, Type.I32), new Const(Literal.of(8))),
+                new Binary(BinaryOp.RemU, Type.I32, new GetLocal(BYTE, Type.I32), new Const(Literal.of(16))),
+                new Binary(BinaryOp.DivU, Type.I32, new GetLocal(BYTE, Type.I32), new Const(Literal.of(10)))));
+
+        // Only unsigned division and remainder keep a power of two operand, as they lower to a shift or mask.
+        Node ret = RangeNarrowing.narrowRanges(body, ImmutableSet.of(ARG));
+        assertEquals(BinaryOp.LtS, ((Binary) ret.getChildren().get(1)).getOp());
+        assertEquals(BinaryOp.DivU, ((Binary) ret.getChildren().get(2)).getOp());
+        assertEquals(BinaryOp.RemU, ((Binary) ret.getChildren().get(3)).getOp());
+        assertEquals(BinaryOp.DivS, ((Binary) ret.getChildren().get(4)).getOp());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.google.common.collect.ImmutableList;
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.literal.Literal;
+import com.wrmsr.wava.core.node.Block;
+import com.wrmsr.wava.core.node.Break;
+import com.wrmsr.wava.core.node.Const;
+import com.wrmsr.wava.core.node.GetLocal;
+import com.wrmsr.wava.core.node.If;
+import com.wrmsr.wava.core.node.Label;
+import com.wrmsr.wava.core.node.Loop;
+import com.wrmsr.wava.core.node.Node;
+import com.wrmsr.wava.core.node.Nop;
+import com.wrmsr.wava.core.node.Return;
+import com.wrmsr.wava.core.node.SetLocal;
+import com.wrmsr.wava.core.node.Switch;
+import com.wrmsr.wava.core.type.Index;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.type.Type;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.driver.StandardFunctionProcessor;
+import com.wrmsr.wava.transform.Restructuring;
+import com.wrmsr.wava.transform.Transforms;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRestructuring
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (func $tmps (param $0 i32) (result i32)\n" +
+            "    (i32.add\n" +
+            "      (block $a (br_if $a (i32.const 1) (get_local $0)) (i32.const 2))\n" +
+            "      (block $b (br_if $b (i32.const 3) (i32.sub (get_local $0) (i32.const 1))) (i32.const 4))))\n" +
+            ")";
+
+    @Test
+    public void testRestructureLabels()
+            throws Throwable
+    {
+        Name name = Name.of("l");
+        Node body = new Label(name, new Block(ImmutableList.of(
+                new If(
+                        new GetLocal(Index.of(0), Type.I32),
+                        new Block(ImmutableList.of(new SetLocal(Index.of(1), Type.I32, new Const(Literal.of(1))), new Break(name, new Nop()))),
+                        new Nop()),
+                new SetLocal(Index.of(1), Type.I32, new Const(Literal.of(2))))));
+        body = Restructuring.restructureLabels(body);
+        body = Transforms.eliminateUnreferencedLabels(body, Analyses.getReferencedNames(body));
+        assertTrue(Analyses.findNodes(body, Label.class).isEmpty());
+        assertTrue(Analyses.findNodes(body, Break.class).isEmpty());
+        assertEquals(1, Analyses.findNodes(body, If.class).size());
+    }
+
+    @Test
+    public void testRestructureDefaultOnlySwitch()
+            throws Throwable
+    {
+        Name name = Name.of("l");
+        Node body = new Label(name, new Switch(
+                new GetLocal(Index.of(0), Type.I32),
+                ImmutableList.of(new Switch.Entry(ImmutableList.of(Switch.Value.DEFAULT), new Break(name, new Nop())))));
+        body = Restructuring.restructureLabels(body);
+        assertTrue(Analyses.findNodes(body, Break.class).isEmpty());
+        assertEquals(1, Analyses.findNodes(body, Switch.class).size());
+    }
+
+    @Test
+    public void testProcessedValueBlocks()
+            throws Throwable
+    {
+        Function function = UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create())
+                .getFunctions().get(Name.of("tmps"));
+        Node body = new StandardFunctionProcessor().processFunction(function).getBody();
+        assertTrue(Analyses.findNodes(body, Label.class).isEmpty());
+        assertTrue(Analyses.findNodes(body, Loop.class).isEmpty());
+        assertEquals(2, Analyses.findNodes(body, If.class).size());
+        assertTrue(Analyses.linearize(body).stream().anyMatch(n -> n instanceof Return));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wrmsr.wava.core.transform;
+
+import com.wrmsr.wava.analyze.Analyses;
+import com.wrmsr.wava.core.node.Unreachable;
+import com.wrmsr.wava.core.type.Name;
+import com.wrmsr.wava.core.unit.Function;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.transform.StackChecking;
+import com.wrmsr.wava.yen.parser.ModuleFactory;
+import com.wrmsr.wava.yen.parser.Parser;
+import com.wrmsr.wava.yen.parser.input.StringInput;
+import com.wrmsr.wava.yen.translation.UnitTranslation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestStackChecking
+{
+    public static final String CODE = "" +
+            "(module (memory 1)\n" +
+            "  (func $leaf (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=4 (i32.const 0) (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 16))))\n" +
+            "    (i32.store offset=8 (get_local $1) (get_local $0))\n" +
+            "    (i32.store offset=4 (i32.const 0) (i32.add (get_local $1) (i32.const 16)))\n" +
+            "    (i32.load offset=8 (get_local $1)))\n" +
+            "  (func $bigLeaf (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=4 (i32.const 0) (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 1024))))\n" +
+            "    (i32.store offset=8 (get_local $1) (get_local $0))\n" +
+            "    (i32.store offset=4 (i32.const 0) (get_local $1))\n" +
+            "    (get_local $0))\n" +
+            "  (func $caller (param $0 i32) (result i32) (local $1 i32)\n" +
+            "    (i32.store offset=4 (i32.const 0) (set_local $1 (i32.sub (i32.load offset=4 (i32.const 0)) (i32.const 16))))\n" +
+            "    (set_local $0 (call $leaf (get_local $0)))\n" +
+            "    (i32.store offset=4 (i32.const 0) (i32.add (get_local $1) (i32.const 16)))\n" +
+            "    (get_local $0))\n" +
+            ")";
+
+    private static Module parse()
+    {
+        return UnitTranslation.translateModule(Name.of("test"), new ModuleFactory(new Parser(new StringInput(CODE)).parse()).create());
+    }
+
+    @Test
+    public void testInsertStackChecks()
+            throws Throwable
+    {
+        Module module = parse();
+
+        Function leaf = module.getFunctions().get(Name.of("leaf"));
+        assertSame(leaf, StackChecking.insertStackChecks(leaf, 4, 1024, 256));
+
+        for (String name : new String[] {"bigLeaf", "caller"}) {
+            Function function = module.getFunctions().get(Name.of(name));
+            Function checked = StackChecking.insertStackChecks(function, 4, 1024, 256);
+            assertEquals(function.getLocals().getList().size() + 1, checked.getLocals().getList().size());
+            assertEquals(1, Analyses.findNodes(checked.getBody(), Unreachable.class).size());
+        }
+    }
+}
@@ -26,6 +26,7 @@ import com.wrmsr.wava.compile.const_.ConstCompilerImpl;
 import com.wrmsr.wava.compile.function.FunctionAccess;
 import com.wrmsr.wava.compile.function.FunctionCompilerImpl;
 import com.wrmsr.wava.compile.memory.LoadStoreCompilerImpl;
+import com.wrmsr.wava.compile.module.ModuleCompilerConfig;
 import com.wrmsr.wava.compile.unary.UnaryCompilerImpl;
 import com.wrmsr.wava.core.node.Node;
 import com.wrmsr.wava.core.node.Switch;
@@ -36,6 +37,9 @@ import com.wrmsr.wava.core.type.Type;
 import com.wrmsr.wava.core.unit.Function;
 import com.wrmsr.wava.core.unit.Local;
 import com.wrmsr.wava.core.unit.Locals;
+import com.wrmsr.wava.core.unit.Memory;
+import com.wrmsr.wava.core.unit.Module;
+import com.wrmsr.wava.core.unit.Table;
 import com.wrmsr.wava.driver.StandardFunctionProcessor;
 import com.wrmsr.wava.java.lang.JAccess;
 import com.wrmsr.wava.java.lang.JRenderer;
@@ -56,6 +60,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static com.google.common.collect.Sets.immutableEnumSet;
@@ -241,10 +246,12 @@ public class TestOutlining
         JMethod method = getOnlyElement(new FunctionCompilerImpl(
                 new FunctionAccess(immutableEnumSet(JAccess.PUBLIC, JAccess.FINAL)),
                 new BinaryCompilerImpl(),
-                new CallCompilerImpl(),
-                new CallIndirectCompilerImpl(),
+                new CallCompilerImpl(
+                        new Module(Name.of("outlining"), new Memory(0, OptionalInt.empty(), ImmutableList.of()), new Table(ImmutableList.of()), ImmutableList.of(), ImmutableList.of(), ImmutableList.of(), ImmutableList.of(function)),
+                        new ModuleCompilerConfig()),
+                new CallIndirectCompilerImpl(new ModuleCompilerConfig()),
                 new ConstCompilerImpl(),
-                new LoadStoreCompilerImpl(),
+                new LoadStoreCompilerImpl(new ModuleCompilerConfig()),
                 new UnaryCompilerImpl()
         ).compileFunction(function));
 